@@ -1,46 +0,0 @@
-/* This Source Code Form is subject to the terms of the Mozilla Public
- * License, v. 2.0. If a copy of the MPL was not distributed with this
- * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
-package com.ymcmp.midform.tac;
-
-public final class BindingCounter {
-
-    private int reads;
-    private int writes;
-
-    public BindingCounter() {
-        // Default constructor
-    }
-
-    public BindingCounter(BindingCounter counter) {
-        // Copy constructor
-        this.reads = counter.reads;
-        this.writes = counter.writes;
-    }
-
-    public void takeMaximum(BindingCounter counter) {
-        this.reads = Math.max(this.reads, counter.reads);
-        this.writes = Math.max(this.writes, counter.writes);
-    }
-
-    public void newRead() {
-        ++this.reads;
-    }
-
-    public void newWrite() {
-        ++this.writes;
-    }
-
-    public int getReads() {
-        return this.reads;
-    }
-
-    public int getWrites() {
-        return this.writes;
-    }
-
-    @Override
-    public String toString() {
-        return String.format("{reads=%d,writes=%d}", this.reads, this.writes);
-    }
-}
\ No newline at end of file
@@ -4,6 +4,7 @@
 package com.ymcmp.midform.tac;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -11,6 +12,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.ymcmp.midform.tac.statement.*;
@@ -24,6 +26,9 @@ public class Block implements Serializable {
 
     private List<Statement> statements;
 
+    // bumped on every change, see ControlFlowGraph::isCurrent
+    private transient int modCount;
+
     public Block(String name) {
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException("Block name cannot be empty");
@@ -58,6 +63,11 @@ public class Block implements Serializable {
         }
 
         this.statements = new LinkedList<>(statements);
+        ++this.modCount;
+    }
+
+    /* package */ int getModificationCount() {
+        return this.modCount;
     }
 
     public int numberOfStatements() {
@@ -69,6 +79,20 @@ public class Block implements Serializable {
         return stmt instanceof GotoStatement && ((GotoStatement) stmt).next == this;
     }
 
+    public Block getJumpTarget() {
+        // the target if the block ends with an unconditional jump
+        final Statement stmt = this.statements.get(this.statements.size() - 1);
+        return stmt instanceof GotoStatement ? ((GotoStatement) stmt).next : null;
+    }
+
+    public BranchStatement getBranchStatement() {
+        return (BranchStatement) this.statements.get(this.statements.size() - 1);
+    }
+
+    public List<Block> getSuccessors() {
+        return this.getBranchStatement().getSuccessors();
+    }
+
     public List<Statement> getStatements() {
         return Collections.unmodifiableList(this.statements);
     }
@@ -79,31 +103,55 @@ public class Block implements Serializable {
         }
     }
 
-    public void trace(Map<Block, Integer> markedBlocks, Map<Binding, BindingCounter> markedBindings) {
-        Integer old = markedBlocks.get(this);
-        if (old == null) {
-            // This means we have not traced this block yet
-            // mark down this is the first time we've been referenced
-            markedBlocks.put(this, 1);
-            // (so we trace it...)
-            for (final Statement stmt : this.statements) {
-                stmt.reachBlock(markedBlocks, markedBindings);
-            }
-        } else {
-            markedBlocks.put(this, old.intValue() + 1);
-        }
+    public boolean dropBindingStores(final Binding binding) {
+        return this.dropBindingStores(Collections.singleton(binding));
     }
 
-    public boolean dropBindingStores(final Binding binding) {
+    public boolean dropBindingStores(final Set<? extends Binding> bindings) {
         boolean mod = false;
         final ListIterator<Statement> it = this.statements.listIterator();
         while (it.hasNext()) {
             final Statement stmt = it.next();
-            if (stmt.isPure() && stmt.getResultRegister().map(binding::equals).orElse(false)) {
+            if (stmt.isPure() && stmt.getResultRegister().map(bindings::contains).orElse(false)) {
                 it.remove();
                 mod = true;
             }
         }
+        if (mod) {
+            ++this.modCount;
+        }
+        return mod;
+    }
+
+    public boolean dropDeadStores(final DataFlowAnalysis flow) {
+        // Walking backwards from the end of the block, a store is dead if
+        // nothing reads the binding afterwards. Bindings that have their
+        // address taken might be read through the reference, so those are
+        // always kept
+        final BitSet live = flow.getLiveOut(this);
+
+        boolean mod = false;
+        final ListIterator<Statement> it = this.statements.listIterator(this.statements.size());
+        while (it.hasPrevious()) {
+            final Statement stmt = it.previous();
+            final Optional<Binding> dst = stmt.getResultRegister();
+            if (dst.isPresent()) {
+                final Binding binding = dst.get();
+                final int id = flow.indexOf(binding);
+                if (stmt.isPure() && !live.get(id) && !flow.isAddressTaken(binding)) {
+                    it.remove();
+                    mod = true;
+                    continue;
+                }
+                live.clear(id);
+            }
+            for (final Value input : stmt.getInputs()) {
+                Statement.forEachBinding(input, binding -> live.set(flow.indexOf(binding)));
+            }
+        }
+        if (mod) {
+            ++this.modCount;
+        }
         return mod;
     }
 
@@ -132,6 +180,9 @@ public class Block implements Serializable {
                 mod = true;
             }
         }
+        if (mod) {
+            ++this.modCount;
+        }
         return mod;
     }
 
@@ -161,6 +212,9 @@ public class Block implements Serializable {
                 }
             }
         }
+        if (mod) {
+            ++this.modCount;
+        }
         return mod;
     }
 
@@ -175,6 +229,9 @@ public class Block implements Serializable {
                 it.set(repl);
             }
         }
+        if (mod) {
+            ++this.modCount;
+        }
         return mod;
     }
 
@@ -210,6 +267,9 @@ public class Block implements Serializable {
             throw new RuntimeException("Faulty block: no branch statement found!");
         }
 
+        if (mod) {
+            ++this.modCount;
+        }
         return mod;
     }
 
@@ -274,6 +334,7 @@ public class Block implements Serializable {
         // and replace the 2nd to last element with the tail call statement
         it.previous();
         it.set(new TailCallStatement(callStmt.sub, callStmt.arg));
+        ++this.modCount;
         return true;
     }
 
@@ -0,0 +1,18 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+public class BudgetExceededException extends EmulatorException {
+
+    private final String function;
+
+    public BudgetExceededException(String msg, String function) {
+        super(msg + " in " + function);
+        this.function = function;
+    }
+
+    public String getFunctionName() {
+        return this.function;
+    }
+}
@@ -0,0 +1,211 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import com.ymcmp.midform.tac.value.Value;
+
+// Evaluates calls to expr functions during optimization. The optimizer
+// visits the same call sites many times, so results (and failures) are
+// memoized per (subroutine, argument) and evicted in LRU order.
+//
+// Evaluation is also budgeted (see Emulator::setStepLimit), so that an
+// expr function that never terminates does not hang the compilation.
+//
+// The cache is guarded by this object's lock, but the lock is never held
+// while evaluating, so threads can evaluate different calls concurrently.
+public final class CompileTimeEvaluator {
+
+    private static final class CallKey {
+
+        public final Subroutine sub;
+        public final Value arg;
+
+        public CallKey(Subroutine sub, Value arg) {
+            this.sub = sub;
+            this.arg = arg;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.sub) * 31 + this.arg.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof CallKey) {
+                final CallKey key = (CallKey) obj;
+                return this.sub == key.sub && this.arg.equals(key.arg);
+            }
+            return false;
+        }
+    }
+
+    private static final class CallResult {
+
+        // result is null if the call failed
+        public final Value result;
+        public final int revision;
+
+        public CallResult(Value result, int revision) {
+            this.result = result;
+            this.revision = revision;
+        }
+    }
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    public static final long DEFAULT_STEP_LIMIT = 10000000;
+
+    private final Emulator emulator;
+    private final LinkedHashMap<CallKey, CallResult> cache;
+
+    private int cacheSize;
+    private volatile Consumer<String> diagnosticHandler;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public CompileTimeEvaluator() {
+        this(new Emulator(), DEFAULT_CACHE_SIZE);
+        this.emulator.setStepLimit(DEFAULT_STEP_LIMIT);
+    }
+
+    public CompileTimeEvaluator(Emulator emulator, int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative: " + cacheSize);
+        }
+
+        this.emulator = emulator;
+        this.cacheSize = cacheSize;
+
+        // access ordered, so the eldest entry is the least recently used
+        this.cache = new LinkedHashMap<CallKey, CallResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CallKey, CallResult> eldest) {
+                if (this.size() > CompileTimeEvaluator.this.cacheSize) {
+                    ++CompileTimeEvaluator.this.evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Emulator getEmulator() {
+        return this.emulator;
+    }
+
+    public synchronized int getCacheSize() {
+        return this.cacheSize;
+    }
+
+    public synchronized void setCacheSize(int cacheSize) {
+        // zero disables memoization
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        this.trimCache();
+    }
+
+    public long getStepLimit() {
+        return this.emulator.getStepLimit();
+    }
+
+    public void setStepLimit(long steps) {
+        // calls that ran out of budget before may succeed now
+        this.emulator.setStepLimit(steps);
+        this.dropFailures();
+    }
+
+    public long getTimeLimit() {
+        return this.emulator.getTimeLimit();
+    }
+
+    public void setTimeLimit(long millis) {
+        this.emulator.setTimeLimit(millis);
+        this.dropFailures();
+    }
+
+    public void setDiagnosticHandler(Consumer<String> handler) {
+        this.diagnosticHandler = handler;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized void clear() {
+        this.cache.clear();
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    public Optional<Value> evaluate(Subroutine sub, Value arg) {
+        final CallKey key = new CallKey(sub, arg);
+        final int revision = sub.getRevision();
+
+        synchronized (this) {
+            final CallResult memo = this.cache.get(key);
+            if (memo != null && memo.revision == revision) {
+                ++this.hits;
+                return Optional.ofNullable(memo.result);
+            }
+            ++this.misses;
+        }
+
+        Value result = null;
+        try {
+            result = this.emulator.callSubroutine(sub, arg);
+        } catch (BudgetExceededException ex) {
+            // give up and let it run at runtime instead
+            final Consumer<String> handler = this.diagnosticHandler;
+            if (handler != null) {
+                handler.accept("compile-time evaluation of " + sub.getName()
+                        + " deferred to runtime: " + ex.getMessage());
+            }
+        } catch (Throwable ex) {
+            // if any error happens, it's ok, we'll just defer
+            // the execution to runtime
+        }
+
+        synchronized (this) {
+            if (this.cacheSize > 0) {
+                // replaces stale entries too
+                this.cache.put(key, new CallResult(result, revision));
+            }
+        }
+        return Optional.ofNullable(result);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + this.hits + " misses: " + this.misses + " evictions: " + this.evictions + " cached: " + this.cache.size();
+    }
+
+    private synchronized void dropFailures() {
+        this.cache.values().removeIf(memo -> memo.result == null);
+    }
+
+    private void trimCache() {
+        while (this.cache.size() > this.cacheSize) {
+            this.cache.remove(this.cache.keySet().iterator().next());
+            ++this.evictions;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.value.*;
+
+// Sparse conditional constant propagation (Wegman and Zadeck) over the
+// whole subroutine. Every binding starts out as having no value yet, goes
+// to a constant once it is assigned one and ends up as unknown once it
+// could be two different things. Only edges that can actually be taken
+// are followed, so a branch that always goes one way does not spoil the
+// other side, and loops are assumed to keep their values until proven
+// otherwise.
+//
+// Mutable bindings are not in SSA form (the merges made by SSAConverter
+// are mutable too), so the values are tracked per block instead of per
+// binding. Afterwards, constant reads are replaced, jumps that only go one
+// way become gotos, and blocks that were never reached simply drop out of
+// the control flow graph.
+/* package */ final class ConstantPropagation {
+
+    // no value yet is null, could be anything is NOTHING
+    // and everything else is a constant
+    private static final Object NOTHING = new Object();
+
+    private final DataFlowAnalysis flow;
+    private final ControlFlowGraph cfg;
+
+    // the values at the start of each block and the edges taken so far
+    private final Object[][] valueIn;
+    private final BitSet executable = new BitSet();
+    private final BitSet[] edges;
+
+    private ConstantPropagation(Subroutine sub) {
+        this.flow = sub.getDataFlowAnalysis();
+        this.cfg = this.flow.getControlFlowGraph();
+        this.valueIn = new Object[this.cfg.size()][];
+        this.edges = new BitSet[this.cfg.size()];
+    }
+
+    public static Set<Block> propagate(Subroutine sub) {
+        // returns the blocks that were changed
+        final ConstantPropagation sccp = new ConstantPropagation(sub);
+        sccp.solve();
+        return sccp.rewrite();
+    }
+
+    private void solve() {
+        // parameters (and anything read through a reference) are unknown
+        final int size = this.cfg.size();
+        final Object[] entry = new Object[this.flow.numberOfBindings()];
+        for (int id = 0; id < entry.length; ++id) {
+            final Binding binding = this.flow.getBinding(id);
+            if (binding instanceof Binding.Parameter || this.flow.isAddressTaken(binding)) {
+                entry[id] = NOTHING;
+            }
+        }
+        this.valueIn[0] = entry;
+        this.executable.set(0);
+
+        // lowest index first, which is reverse post-order
+        final BitSet pending = new BitSet(size);
+        pending.set(0);
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+            pending.clear(i);
+            final Block block = this.cfg.getBlock(i);
+            final Object[] values = this.valueIn[i].clone();
+            for (final Statement stmt : block.getStatements()) {
+                this.transfer(stmt, values);
+            }
+
+            final List<Block> next = this.cfg.getSuccessors(block);
+            final BitSet taken = this.takenEdges(block, values);
+            this.edges[i] = taken;
+            for (int e = taken.nextSetBit(0); e >= 0; e = taken.nextSetBit(e + 1)) {
+                final int j = this.cfg.indexOf(next.get(e));
+                if (this.merge(j, values)) {
+                    this.executable.set(j);
+                    pending.set(j);
+                }
+            }
+        }
+    }
+
+    private boolean merge(int id, Object[] values) {
+        // returns true if the values at the start of the block changed
+        final Object[] in = this.valueIn[id];
+        if (in == null) {
+            this.valueIn[id] = values.clone();
+            return true;
+        }
+
+        boolean changed = false;
+        for (int k = 0; k < in.length; ++k) {
+            final Object met = meet(in[k], values[k]);
+            if (met != in[k]) {
+                in[k] = met;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a == NOTHING || a.equals(b)) return a;
+        return NOTHING;
+    }
+
+    private void transfer(Statement stmt, Object[] values) {
+        final Optional<Binding> dst = stmt.getResultRegister();
+        if (dst.isPresent()) {
+            final int id = this.flow.indexOf(dst.get());
+            if (values[id] != NOTHING) {
+                final Value result = this.evaluate(stmt, values);
+                values[id] = result == null ? NOTHING : result;
+            }
+        }
+    }
+
+    private Value evaluate(Statement stmt, Object[] values) {
+        // the constant the statement produces (null if there is none)
+        if (!stmt.isPure() || this.flow.isAddressTaken(stmt.getResultRegister().get())) {
+            return null;
+        }
+
+        final Statement folded = this.substitute(stmt, values);
+        if (folded == null) {
+            return null;
+        }
+
+        final Statement result;
+        try {
+            result = folded.unfoldConstants();
+        } catch (ArithmeticException ex) {
+            // leave it for the program to fail at runtime
+            return null;
+        }
+        if (result instanceof MoveStatement) {
+            final Value src = ((MoveStatement) result).src;
+            if (src.isCompileTimeConstant()) {
+                return src;
+            }
+        }
+        return null;
+    }
+
+    private BitSet takenEdges(Block block, Object[] values) {
+        // the successors (by position) that can be jumped to
+        final BitSet taken = new BitSet();
+        final int count = this.cfg.getSuccessors(block).size();
+        final BranchStatement branch = block.getBranchStatement();
+        if (branch instanceof ConditionalJumpStatement) {
+            final ConditionalJumpStatement jump = (ConditionalJumpStatement) branch;
+            final Statement folded = this.substitute(jump, values);
+            if (folded == null) {
+                // an operand has no value yet
+                return taken;
+            }
+
+            final Statement result = folded.unfoldConstants();
+            if (result instanceof GotoStatement) {
+                taken.set(((GotoStatement) result).next == jump.ifTrue ? 0 : 1);
+                return taken;
+            }
+        }
+        taken.set(0, count);
+        return taken;
+    }
+
+    private Statement substitute(Statement stmt, Object[] values) {
+        // replaces the reads that are constant, null if one of them has no
+        // value yet (it will get one later or this is never executed)
+        Statement result = stmt;
+        for (final Value input : stmt.getInputs()) {
+            final ArrayList<Binding> bindings = new ArrayList<>();
+            Statement.forEachBinding(input, bindings::add);
+            for (final Binding binding : bindings) {
+                final Object value = values[this.flow.indexOf(binding)];
+                if (value == null) {
+                    return null;
+                }
+                if (value != NOTHING) {
+                    result = result.replaceRead(binding, (Value) value);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Set<Block> rewrite() {
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (int i = this.executable.nextSetBit(0); i >= 0; i = this.executable.nextSetBit(i + 1)) {
+            final Block block = this.cfg.getBlock(i);
+            final Object[] values = this.valueIn[i].clone();
+            final List<Statement> stmts = block.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts.size());
+            boolean changed = false;
+
+            for (final Statement stmt : stmts) {
+                Statement next = stmt;
+                final Optional<Binding> dst = stmt.getResultRegister();
+                final Value result = dst.isPresent() ? this.evaluate(stmt, values) : null;
+                if (result != null) {
+                    // the whole computation is known
+                    if (!(stmt instanceof MoveStatement && ((MoveStatement) stmt).src.equals(result))) {
+                        next = new MoveStatement(dst.get(), result);
+                    }
+                } else if (!(stmt instanceof BranchStatement)) {
+                    next = this.replaceKnownReads(stmt, values);
+                }
+
+                this.transfer(stmt, values);
+                if (next != stmt) {
+                    changed = true;
+                }
+                repl.add(next);
+            }
+
+            // jumps that can only go one way
+            final int last = repl.size() - 1;
+            final Statement branch = repl.get(last);
+            final BitSet taken = this.edges[i];
+            if (branch instanceof ConditionalJumpStatement && taken.cardinality() == 1) {
+                final ConditionalJumpStatement jump = (ConditionalJumpStatement) branch;
+                repl.set(last, new GotoStatement(taken.get(0) ? jump.ifTrue : jump.ifFalse));
+                changed = true;
+            } else if (branch instanceof BranchStatement) {
+                final Statement next = this.replaceKnownReads(branch, values);
+                if (next != branch) {
+                    repl.set(last, next);
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                block.setStatements(repl);
+                mod.add(block);
+            }
+        }
+        return mod;
+    }
+
+    private Statement replaceKnownReads(Statement stmt, Object[] values) {
+        // unlike substitute, reads without a value are left alone
+        Statement result = stmt;
+        for (final Value input : stmt.getInputs()) {
+            final ArrayList<Binding> bindings = new ArrayList<>();
+            Statement.forEachBinding(input, bindings::add);
+            for (final Binding binding : bindings) {
+                final Object value = values[this.flow.indexOf(binding)];
+                if (value != null && value != NOTHING) {
+                    result = result.replaceRead(binding, (Value) value);
+                }
+            }
+        }
+        return result;
+    }
+}
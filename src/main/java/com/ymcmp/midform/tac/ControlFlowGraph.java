@@ -0,0 +1,321 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// The blocks reachable from the initial block of a subroutine and the
+// edges between them. Edges are kept per branch target, so a conditional
+// jump with both targets being the same block counts as two edges.
+//
+// Blocks are numbered in reverse post-order, which is also the order of
+// getBlocks: the entry comes first and (ignoring back edges) every block
+// comes before its successors. Analyses can use the numbers as indices.
+//
+// A graph is a snapshot (see Subroutine::getControlFlowGraph which
+// rebuilds it once it is out of date).
+public final class ControlFlowGraph {
+
+    private final Block entry;
+    private final Block[] blocks;
+    private final int[] stamps;
+    private final IdentityHashMap<Block, Integer> index;
+
+    private final List<List<Block>> successors;
+    private final List<List<Block>> predecessors;
+
+    // immediate dominator of each block (the entry's is itself) and the
+    // dominator tree numbered in pre and post order for dominates
+    private final int[] idom;
+    private final int[] domPre;
+    private final int[] domPost;
+    private final List<List<Block>> dominated;
+    private final BitSet[] frontier;
+
+    public ControlFlowGraph(Block entry) {
+        this.entry = entry;
+        this.index = new IdentityHashMap<>();
+        this.blocks = this.computeReversePostOrder();
+
+        final int size = this.blocks.length;
+        this.stamps = new int[size];
+        this.successors = new ArrayList<>(size);
+        this.predecessors = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            this.stamps[i] = this.blocks[i].getModificationCount();
+            this.successors.add(Collections.unmodifiableList(this.blocks[i].getSuccessors()));
+            this.predecessors.add(new ArrayList<>());
+        }
+        for (final Block block : this.blocks) {
+            for (final Block next : block.getSuccessors()) {
+                this.predecessors.get(this.index.get(next)).add(block);
+            }
+        }
+
+        this.idom = this.computeDominators();
+        this.domPre = new int[size];
+        this.domPost = new int[size];
+        this.dominated = new ArrayList<>(size);
+        this.computeDominatorTree();
+        this.frontier = this.computeDominanceFrontiers();
+    }
+
+    public Block getEntry() {
+        return this.entry;
+    }
+
+    public List<Block> getBlocks() {
+        // in reverse post-order
+        return Collections.unmodifiableList(Arrays.asList(this.blocks));
+    }
+
+    public int size() {
+        return this.blocks.length;
+    }
+
+    public boolean contains(Block block) {
+        return this.index.containsKey(block);
+    }
+
+    public int indexOf(Block block) {
+        // the position in reverse post-order, -1 if unreachable
+        final Integer id = this.index.get(block);
+        return id == null ? -1 : id.intValue();
+    }
+
+    public Block getBlock(int id) {
+        return this.blocks[id];
+    }
+
+    public List<Block> getSuccessors(Block block) {
+        return this.successors.get(this.checkedIndexOf(block));
+    }
+
+    public List<Block> getPredecessors(Block block) {
+        return Collections.unmodifiableList(this.predecessors.get(this.checkedIndexOf(block)));
+    }
+
+    public int numberOfReferences(Block block) {
+        // jumps to the block, plus one for the entry being called
+        final int refs = this.getPredecessors(block).size();
+        return block == this.entry ? refs + 1 : refs;
+    }
+
+    public Block getImmediateDominator(Block block) {
+        // null for the entry
+        final int id = this.checkedIndexOf(block);
+        return id == 0 ? null : this.blocks[this.idom[id]];
+    }
+
+    public List<Block> getDominatedBlocks(Block block) {
+        // children in the dominator tree
+        return Collections.unmodifiableList(this.dominated.get(this.checkedIndexOf(block)));
+    }
+
+    public boolean dominates(Block a, Block b) {
+        // every block dominates itself
+        final int i = this.checkedIndexOf(a);
+        final int j = this.checkedIndexOf(b);
+        return this.domPre[i] <= this.domPre[j] && this.domPost[j] <= this.domPost[i];
+    }
+
+    public List<Block> getDominanceFrontier(Block block) {
+        // blocks where the block's dominance ends, which is
+        // where values defined in the block meet other values
+        final BitSet set = this.frontier[this.checkedIndexOf(block)];
+        final ArrayList<Block> list = new ArrayList<>(set.cardinality());
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            list.add(this.blocks[i]);
+        }
+        return list;
+    }
+
+    public boolean isBackEdge(Block from, Block to) {
+        // the jump goes to a block that dominates it (a loop header)
+        return this.getSuccessors(from).contains(to) && this.dominates(to, from);
+    }
+
+    /* package */ boolean isCurrent(Block entry) {
+        // any change to the edges changes one of the reachable blocks
+        if (entry != this.entry) {
+            return false;
+        }
+        for (int i = 0; i < this.blocks.length; ++i) {
+            if (this.blocks[i].getModificationCount() != this.stamps[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int checkedIndexOf(Block block) {
+        final Integer id = this.index.get(block);
+        if (id == null) {
+            throw new IllegalArgumentException("Block " + block.name + " is not reachable");
+        }
+        return id.intValue();
+    }
+
+    private Block[] computeReversePostOrder() {
+        // iterative depth first search, since blocks can be chained deeply
+        final ArrayList<Block> post = new ArrayList<>();
+        final IdentityHashMap<Block, Boolean> seen = new IdentityHashMap<>();
+        final ArrayDeque<Block> visiting = new ArrayDeque<>();
+        final ArrayDeque<Integer> edges = new ArrayDeque<>();
+
+        seen.put(this.entry, Boolean.TRUE);
+        visiting.push(this.entry);
+        edges.push(0);
+        while (!visiting.isEmpty()) {
+            final Block block = visiting.peek();
+            final int edge = edges.pop();
+            final List<Block> next = block.getSuccessors();
+            if (edge < next.size()) {
+                edges.push(edge + 1);
+                final Block target = next.get(edge);
+                if (seen.put(target, Boolean.TRUE) == null) {
+                    visiting.push(target);
+                    edges.push(0);
+                }
+                continue;
+            }
+
+            visiting.pop();
+            post.add(block);
+        }
+
+        final int size = post.size();
+        final Block[] order = new Block[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = post.get(size - 1 - i);
+            this.index.put(order[i], i);
+        }
+        return order;
+    }
+
+    private int[] computeDominators() {
+        // Cooper, Harvey and Kennedy's iterative algorithm. Blocks are
+        // visited in reverse post-order, so it only takes a few rounds
+        final int size = this.blocks.length;
+        final int[] doms = new int[size];
+        Arrays.fill(doms, -1);
+        doms[0] = 0;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < size; ++i) {
+                int dom = -1;
+                for (final Block pred : this.predecessors.get(i)) {
+                    final int p = this.index.get(pred);
+                    if (doms[p] == -1) {
+                        // not processed yet
+                        continue;
+                    }
+                    dom = dom == -1 ? p : intersect(doms, p, dom);
+                }
+                if (doms[i] != dom) {
+                    doms[i] = dom;
+                    changed = true;
+                }
+            }
+        }
+        return doms;
+    }
+
+    private static int intersect(int[] doms, int a, int b) {
+        while (a != b) {
+            while (a > b) a = doms[a];
+            while (b > a) b = doms[b];
+        }
+        return a;
+    }
+
+    private void computeDominatorTree() {
+        final int size = this.blocks.length;
+        for (int i = 0; i < size; ++i) {
+            this.dominated.add(new ArrayList<>());
+        }
+        for (int i = 1; i < size; ++i) {
+            this.dominated.get(this.idom[i]).add(this.blocks[i]);
+        }
+
+        // number the tree (iteratively, same reason as above)
+        int counter = 0;
+        final ArrayDeque<Integer> visiting = new ArrayDeque<>();
+        final ArrayDeque<Integer> edges = new ArrayDeque<>();
+        this.domPre[0] = counter++;
+        visiting.push(0);
+        edges.push(0);
+        while (!visiting.isEmpty()) {
+            final int id = visiting.peek();
+            final int edge = edges.pop();
+            final List<Block> children = this.dominated.get(id);
+            if (edge < children.size()) {
+                edges.push(edge + 1);
+                final int child = this.index.get(children.get(edge));
+                this.domPre[child] = counter++;
+                visiting.push(child);
+                edges.push(0);
+                continue;
+            }
+
+            visiting.pop();
+            this.domPost[id] = counter++;
+        }
+    }
+
+    private BitSet[] computeDominanceFrontiers() {
+        // walk up from the predecessors of each join point
+        // until reaching its immediate dominator
+        final int size = this.blocks.length;
+        final BitSet[] sets = new BitSet[size];
+        for (int i = 0; i < size; ++i) {
+            sets[i] = new BitSet();
+        }
+        for (int i = 0; i < size; ++i) {
+            // the entry is also entered from outside
+            final List<Block> preds = this.predecessors.get(i);
+            if (preds.size() < (i == 0 ? 1 : 2)) {
+                continue;
+            }
+            final int stop = i == 0 ? -1 : this.idom[i];
+            for (final Block pred : preds) {
+                int runner = this.index.get(pred);
+                while (runner != stop) {
+                    sets[runner].set(i);
+                    if (runner == 0) {
+                        break;
+                    }
+                    runner = this.idom[runner];
+                }
+            }
+        }
+        return sets;
+    }
+
+    @Override
+    public String toString() {
+        final String ln = System.lineSeparator();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.blocks.length; ++i) {
+            final Block block = this.blocks[i];
+            sb.append(block.name).append(" ->");
+            for (final Block next : this.successors.get(i)) {
+                sb.append(' ').append(next.name);
+            }
+            if (i > 0) {
+                sb.append(" (idom ").append(this.blocks[this.idom[i]].name).append(')');
+            }
+            sb.append(ln);
+        }
+        return sb.toString();
+    }
+}
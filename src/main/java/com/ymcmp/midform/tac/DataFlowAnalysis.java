@@ -0,0 +1,401 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+import com.ymcmp.midform.tac.statement.MakeRefStatement;
+import com.ymcmp.midform.tac.statement.Statement;
+import com.ymcmp.midform.tac.value.*;
+
+// Facts about the bindings of a subroutine, computed over its control flow
+// graph. Bindings (and definitions) are numbered densely so that every set
+// is a bit set, and each analysis is an iterative fixpoint over the blocks:
+//
+// - liveness: bindings that may still be read after a point
+// - reaching definitions: stores that may have produced a value
+// - read counts and bindings whose address is taken (mkref)
+//
+// Like the graph, it is a snapshot (see Subroutine::getDataFlowAnalysis).
+public final class DataFlowAnalysis {
+
+    public static final class Definition {
+
+        public final Binding binding;
+
+        // both are null for parameters
+        public final Block block;
+        public final Statement statement;
+
+        /* package */ Definition(Binding binding, Block block, Statement statement) {
+            this.binding = binding;
+            this.block = block;
+            this.statement = statement;
+        }
+
+        public boolean isParameter() {
+            return this.block == null;
+        }
+
+        @Override
+        public String toString() {
+            return this.isParameter() ? "param " + this.binding : this.block.name + ": " + this.statement;
+        }
+    }
+
+    private final ControlFlowGraph cfg;
+    private final List<Binding.Parameter> params;
+
+    private final ArrayList<Binding> bindings = new ArrayList<>();
+    private final HashMap<Binding, Integer> ids = new HashMap<>();
+    private int[] reads = new int[16];
+    private final BitSet addressTaken = new BitSet();
+
+    // per block (in the graph's order): bindings read before being
+    // written in the block and bindings written in the block
+    private final BitSet[] uses;
+    private final BitSet[] defs;
+    private final BitSet[] liveIn;
+    private final BitSet[] liveOut;
+
+    private final ArrayList<Definition> definitions = new ArrayList<>();
+    private final ArrayList<BitSet> definitionsOf = new ArrayList<>();
+    private final BitSet[] reachIn;
+
+    public DataFlowAnalysis(ControlFlowGraph cfg, List<Binding.Parameter> params) {
+        this.cfg = cfg;
+        this.params = params;
+
+        final int size = cfg.size();
+        this.uses = new BitSet[size];
+        this.defs = new BitSet[size];
+        this.liveIn = new BitSet[size];
+        this.liveOut = new BitSet[size];
+        this.reachIn = new BitSet[size];
+
+        // parameters are defined on entry
+        for (final Binding.Parameter param : params) {
+            this.addDefinition(new Definition(param, null, null));
+        }
+
+        for (int i = 0; i < size; ++i) {
+            final Block block = cfg.getBlock(i);
+            final BitSet use = new BitSet();
+            final BitSet def = new BitSet();
+            for (final Statement stmt : block.getStatements()) {
+                for (final Value input : stmt.getInputs()) {
+                    Statement.forEachBinding(input, binding -> {
+                        final int id = this.number(binding);
+                        ++this.reads[id];
+                        if (!def.get(id)) {
+                            use.set(id);
+                        }
+                    });
+                }
+                if (stmt instanceof MakeRefStatement) {
+                    Statement.forEachBinding(((MakeRefStatement) stmt).src, binding -> this.addressTaken.set(this.number(binding)));
+                }
+
+                final Optional<Binding> dst = stmt.getResultRegister();
+                if (dst.isPresent()) {
+                    def.set(this.addDefinition(new Definition(dst.get(), block, stmt)));
+                }
+            }
+            this.uses[i] = use;
+            this.defs[i] = def;
+        }
+
+        this.computeLiveness();
+        this.computeReachingDefinitions();
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return this.cfg;
+    }
+
+    /* package */ boolean isCurrent(ControlFlowGraph cfg, List<Binding.Parameter> params) {
+        return this.cfg == cfg && this.params == params;
+    }
+
+    // ***** Bindings *****
+
+    public int numberOfBindings() {
+        return this.bindings.size();
+    }
+
+    public Binding getBinding(int id) {
+        return this.bindings.get(id);
+    }
+
+    public int indexOf(Binding binding) {
+        // -1 if the binding is never used
+        final Integer id = this.ids.get(binding);
+        return id == null ? -1 : id.intValue();
+    }
+
+    public int getReads(Binding binding) {
+        // reads from reachable blocks, not how many happen at runtime
+        final int id = this.indexOf(binding);
+        return id < 0 ? 0 : this.reads[id];
+    }
+
+    public boolean isAddressTaken(Binding binding) {
+        // it could be read (and written) through a reference
+        final int id = this.indexOf(binding);
+        return id >= 0 && this.addressTaken.get(id);
+    }
+
+    public boolean isStable(Value value) {
+        // holds the same value wherever it can be read: constants and
+        // bindings that are not mutable, only assigned once and not
+        // written through a reference
+        if (value instanceof Binding) {
+            return !(value instanceof Binding.Mutable)
+                    && this.getDefinitions((Binding) value).size() == 1
+                    && !this.isAddressTaken((Binding) value);
+        }
+        if (value instanceof Tuple) {
+            for (final Value element : ((Tuple) value).values) {
+                if (!this.isStable(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value.isCompileTimeConstant();
+    }
+
+    // ***** Liveness *****
+
+    public BitSet getLiveIn(Block block) {
+        return (BitSet) this.liveIn[this.cfg.indexOf(block)].clone();
+    }
+
+    public BitSet getLiveOut(Block block) {
+        return (BitSet) this.liveOut[this.cfg.indexOf(block)].clone();
+    }
+
+    public boolean isLiveOut(Block block, Binding binding) {
+        final int id = this.indexOf(binding);
+        return id >= 0 && this.liveOut[this.cfg.indexOf(block)].get(id);
+    }
+
+    // ***** Reaching definitions *****
+
+    public List<Definition> getDefinitions() {
+        return Collections.unmodifiableList(this.definitions);
+    }
+
+    public List<Definition> getDefinitions(Binding binding) {
+        final int id = this.indexOf(binding);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        return this.collect(this.definitionsOf.get(id));
+    }
+
+    public List<Definition> getReachingDefinitions(Block block) {
+        // the definitions that reach the start of the block
+        return this.collect(this.reachIn[this.cfg.indexOf(block)]);
+    }
+
+    public List<Definition> getReachingDefinitions(Block block, Binding binding) {
+        final int id = this.indexOf(binding);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+
+        final BitSet set = (BitSet) this.reachIn[this.cfg.indexOf(block)].clone();
+        set.and(this.definitionsOf.get(id));
+        return this.collect(set);
+    }
+
+    // ***** Validation *****
+
+    public void validate() {
+        // Every read must be preceded by a write and immutable bindings are
+        // written at most once, along every path that does not visit a block
+        // twice. Those paths only use the forward edges (loops are entered
+        // once), so a single pass in reverse post-order is enough.
+        final int size = this.cfg.size();
+        final BitSet[] mustOut = new BitSet[size];
+        final BitSet[] mayOut = new BitSet[size];
+
+        for (int i = 0; i < size; ++i) {
+            final Block block = this.cfg.getBlock(i);
+            final BitSet must;
+            final BitSet may;
+            if (i == 0) {
+                must = new BitSet();
+                for (final Binding.Parameter param : this.params) {
+                    must.set(this.indexOf(param));
+                }
+                may = (BitSet) must.clone();
+            } else {
+                must = new BitSet();
+                may = new BitSet();
+                boolean first = true;
+                for (final Block pred : this.cfg.getPredecessors(block)) {
+                    final int p = this.cfg.indexOf(pred);
+                    if (p >= i) {
+                        // back edge
+                        continue;
+                    }
+                    if (first) {
+                        must.or(mustOut[p]);
+                        first = false;
+                    } else {
+                        must.and(mustOut[p]);
+                    }
+                    may.or(mayOut[p]);
+                }
+            }
+
+            for (final Statement stmt : block.getStatements()) {
+                for (final Value input : stmt.getInputs()) {
+                    Statement.forEachBinding(input, binding -> {
+                        if (!must.get(this.indexOf(binding))) {
+                            throw new RuntimeException("Using an unassigned binding: " + binding);
+                        }
+                    });
+                }
+
+                final Optional<Binding> dst = stmt.getResultRegister();
+                if (dst.isPresent()) {
+                    final Binding binding = dst.get();
+                    final int id = this.indexOf(binding);
+                    if (binding instanceof Binding.Immutable && may.get(id)) {
+                        throw new RuntimeException("Immutable binding: " + binding + " is assigned more than once!");
+                    }
+                    must.set(id);
+                    may.set(id);
+                }
+            }
+
+            mustOut[i] = must;
+            mayOut[i] = may;
+        }
+    }
+
+    // ***** Helpers *****
+
+    private int number(Binding binding) {
+        final Integer old = this.ids.get(binding);
+        if (old != null) {
+            return old.intValue();
+        }
+
+        final int id = this.bindings.size();
+        this.bindings.add(binding);
+        this.ids.put(binding, id);
+        this.definitionsOf.add(new BitSet());
+        if (id == this.reads.length) {
+            this.reads = Arrays.copyOf(this.reads, id * 2);
+        }
+        return id;
+    }
+
+    private int addDefinition(Definition definition) {
+        // returns the binding's id
+        final int id = this.number(definition.binding);
+        this.definitionsOf.get(id).set(this.definitions.size());
+        this.definitions.add(definition);
+        return id;
+    }
+
+    private List<Definition> collect(BitSet set) {
+        final ArrayList<Definition> list = new ArrayList<>(set.cardinality());
+        for (int d = set.nextSetBit(0); d >= 0; d = set.nextSetBit(d + 1)) {
+            list.add(this.definitions.get(d));
+        }
+        return list;
+    }
+
+    private void computeLiveness() {
+        // backwards: in = uses + (out - defs), out = union of the successors'
+        // ins. Going in post-order, loops need one extra round each
+        final int size = this.cfg.size();
+        for (int i = 0; i < size; ++i) {
+            this.liveIn[i] = (BitSet) this.uses[i].clone();
+            this.liveOut[i] = new BitSet();
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; --i) {
+                final BitSet out = this.liveOut[i];
+                for (final Block next : this.cfg.getSuccessors(this.cfg.getBlock(i))) {
+                    out.or(this.liveIn[this.cfg.indexOf(next)]);
+                }
+
+                final BitSet in = (BitSet) out.clone();
+                in.andNot(this.defs[i]);
+                in.or(this.uses[i]);
+                if (!in.equals(this.liveIn[i])) {
+                    this.liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void computeReachingDefinitions() {
+        // forwards: out = gen + (in - kill), in = union of the predecessors'
+        // outs (and the parameters for the entry)
+        final int size = this.cfg.size();
+        final BitSet[] gen = new BitSet[size];
+        final BitSet[] kill = new BitSet[size];
+        final BitSet[] reachOut = new BitSet[size];
+
+        // definitions were numbered in the same order as the blocks
+        int d = this.params.size();
+        for (int i = 0; i < size; ++i) {
+            final BitSet g = new BitSet();
+            final BitSet k = new BitSet();
+            for (final Statement stmt : this.cfg.getBlock(i).getStatements()) {
+                if (stmt.getResultRegister().isPresent()) {
+                    final BitSet others = this.definitionsOf.get(this.indexOf(this.definitions.get(d).binding));
+                    g.andNot(others);
+                    g.set(d);
+                    k.or(others);
+                    ++d;
+                }
+            }
+            k.andNot(g);
+            gen[i] = g;
+            kill[i] = k;
+            this.reachIn[i] = new BitSet();
+            reachOut[i] = (BitSet) g.clone();
+        }
+        if (size > 0) {
+            this.reachIn[0].set(0, this.params.size());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < size; ++i) {
+                final BitSet in = this.reachIn[i];
+                for (final Block pred : this.cfg.getPredecessors(this.cfg.getBlock(i))) {
+                    in.or(reachOut[this.cfg.indexOf(pred)]);
+                }
+
+                final BitSet out = (BitSet) in.clone();
+                out.andNot(kill[i]);
+                out.or(gen[i]);
+                if (!out.equals(reachOut[i])) {
+                    reachOut[i] = out;
+                    changed = true;
+                }
+            }
+        }
+    }
+}
@@ -3,46 +3,290 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
-import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.PreparedSubroutine.PreparedBlock;
+import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.value.*;
 
 public final class Emulator {
 
-    private static final class Continuation extends Exception {
+    // Frames are kept on an explicit stack (instead of the Java stack)
+    // and are reused by later calls at the same depth
+    private static final class Frame {
 
-        public final FuncRef func;
-        public final Value arg;
+        public PreparedSubroutine code;
+        public Registers regs;
 
-        public Continuation(FuncRef func, Value arg) {
-            super("Calling " + func + ' ' + arg);
+        // only meaningful while this frame is waiting for a callee
+        public Node[] nodes;
+        public int pc;
+        public Operand.Slot resultSlot;
 
-            this.func = func;
-            this.arg = arg;
+        public void enter(PreparedSubroutine code, Value arg) {
+            // references made by the previous occupant may still be around
+            if (code.capturesFrame || this.regs == null || !code.fits(this.regs)
+                    || (this.code != null && this.code.capturesFrame)) {
+                this.regs = code.createRegisters();
+            }
+            this.code = code;
+
+            final List<Value> splatted = Subroutine.splatterArguments(arg);
+            final Operand.Slot[] params = code.params;
+            if (splatted.size() != params.length) {
+                throw new EmulatorException("Argument size mismatch: expected: " + params.length + " got: " + splatted.size());
+            }
+
+            int i = 0;
+            for (final Value value : splatted) {
+                params[i++].write(this.regs, value);
+            }
         }
     }
 
-    private final HashMap<String, Function<Value[], ? extends Value>> extHandlers = new HashMap<>();
+    // Everything that belongs to a running call. There is one per thread,
+    // so threads can share the emulator along with the prepared code
+    /* package */ static final class Context {
+
+        // how often the step and time limits are checked
+        private static final int FUEL_CHUNK = 4096;
+
+        private Frame[] frames = new Frame[16];
+        private int depth;
+
+        // budget of the outermost call, a step is
+        // a block entry or a call (including tail calls)
+        private int nesting;
+        private long fuel;
+        private long stepsLeft;
+        private long deadline;
+
+        // snapshot of the settings when the outermost call started
+        private int maxCallDepth;
+        private long stepLimit;
+        private long timeLimit;
+
+        public void start(Emulator emulator) {
+            this.maxCallDepth = emulator.maxCallDepth;
+            this.stepLimit = emulator.stepLimit;
+            this.timeLimit = emulator.timeLimit;
+
+            this.fuel = 0;
+            this.stepsLeft = this.stepLimit < 0 ? Long.MAX_VALUE : this.stepLimit;
+            this.deadline = this.timeLimit > 0 ? System.nanoTime() + this.timeLimit * 1000000 : 0;
+
+            if (this.stepLimit < 0 && this.deadline == 0) {
+                // nothing to check, so we never come back to refuel
+                this.fuel = Long.MAX_VALUE;
+            }
+        }
+
+        public void tick(Subroutine sub) {
+            if (--this.fuel < 0) {
+                this.refuel(sub);
+            }
+        }
+
+        private void refuel(Subroutine sub) {
+            // hand out fuel in chunks so the limits are not checked on every step
+            if (this.stepsLeft == 0) {
+                throw new BudgetExceededException("Step limit of " + this.stepLimit + " exceeded", sub.getName());
+            }
+            if (this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+                throw new BudgetExceededException("Time limit of " + this.timeLimit + "ms exceeded", sub.getName());
+            }
+
+            final long grant = Math.min(FUEL_CHUNK, this.stepsLeft);
+            this.stepsLeft -= grant;
+            this.fuel = grant - 1;
+        }
+
+        public Frame pushFrame(PreparedSubroutine code, Value arg) {
+            if (this.depth >= this.maxCallDepth) {
+                throw new CallDepthExceededException("Maximum call depth of " + this.maxCallDepth + " exceeded when calling " + code.sub.getName());
+            }
+            if (this.depth == this.frames.length) {
+                this.frames = Arrays.copyOf(this.frames, this.depth * 2);
+            }
+
+            Frame frame = this.frames[this.depth];
+            if (frame == null) {
+                frame = new Frame();
+                this.frames[this.depth] = frame;
+            }
+            ++this.depth;
+
+            frame.enter(code, arg);
+            return frame;
+        }
+
+        public Frame popFrame(int base, Value result) {
+            // returns the caller's frame (with the result stored),
+            // or null if the caller is outside of this execution
+            if (--this.depth == base) {
+                return null;
+            }
+
+            final Frame caller = this.frames[this.depth - 1];
+            caller.resultSlot.write(caller.regs, result);
+            return caller;
+        }
+    }
+
+    // A native function resolved to its handler. Call sites keep the last
+    // one they used, which stays valid until the handlers are changed.
+    // It is immutable, so sharing it through a plain field is safe
+    /* package */ static final class NativeBinding {
+
+        public final Emulator owner;
+        public final int generation;
+        public final FuncRef.Native ref;
+        public final NativeHandler handler;
+        public final Type result;
+
+        public NativeBinding(Emulator owner, int generation, FuncRef.Native ref, NativeHandler handler) {
+            this.owner = owner;
+            this.generation = generation;
+            this.ref = ref;
+            this.handler = handler;
+            this.result = ref.type.getOutput();
+        }
+    }
+
+    // Runs a range of a batch. Leaves run their rows back to back on the
+    // worker's own context, so the frames are reused from row to row
+    private final class BatchTask extends RecursiveAction {
+
+        private final PreparedSubroutine code;
+        private final MethodHandleCompiler.Compiled compiled;
+        private final Value[] args;
+        private final Value[] results;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        public BatchTask(PreparedSubroutine code, MethodHandleCompiler.Compiled compiled,
+                Value[] args, Value[] results, int start, int end, int grain) {
+            this.code = code;
+            this.compiled = compiled;
+            this.args = args;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= this.grain) {
+                final Context ctx = Emulator.this.contexts.get();
+                for (int i = this.start; i < this.end; ++i) {
+                    this.results[i] = Emulator.this.invoke(ctx, this.code, this.compiled, this.args[i]);
+                }
+                return;
+            }
+
+            final int mid = (this.start + this.end) >>> 1;
+            invokeAll(new BatchTask(this.code, this.compiled, this.args, this.results, this.start, mid, this.grain),
+                    new BatchTask(this.code, this.compiled, this.args, this.results, mid, this.end, this.grain));
+        }
+    }
+
+    public static final int DEFAULT_JIT_THRESHOLD = 1000;
+    public static final int DEFAULT_MAX_CALL_DEPTH = 100000;
+
+    private final ConcurrentHashMap<String, NativeHandler> extHandlers = new ConcurrentHashMap<>();
+
+    // bumped whenever the handlers change, which invalidates all bindings
+    private final AtomicInteger handlerGeneration = new AtomicInteger();
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
+
+    private volatile int jitThreshold = DEFAULT_JIT_THRESHOLD;
+    private volatile int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+    private volatile long stepLimit = -1;
+    private volatile long timeLimit = 0;
+
+    // null unless profiling, which is only supported from one thread
+    private volatile Profiler profiler;
 
     public void addExternalCallHandler(String name, Function<Value[], ? extends Value> f) {
-        this.extHandlers.put(name, Objects.requireNonNull(f));
+        this.addExternalCallHandler(name, NativeHandler.of(f));
+    }
+
+    public void addExternalCallHandler(String name, NativeHandler handler) {
+        this.extHandlers.put(name, Objects.requireNonNull(handler));
+        this.handlerGeneration.incrementAndGet();
     }
 
     public void removeExternalCallHandler(String name) {
         this.extHandlers.remove(name);
+        this.handlerGeneration.incrementAndGet();
     }
 
     public void reset() {
         this.extHandlers.clear();
+        this.handlerGeneration.incrementAndGet();
+        this.jitThreshold = DEFAULT_JIT_THRESHOLD;
+        this.maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+        this.stepLimit = -1;
+        this.timeLimit = 0;
+    }
+
+    public int getJitThreshold() {
+        return this.jitThreshold;
+    }
+
+    public void setJitThreshold(int threshold) {
+        // negative thresholds mean always interpret
+        this.jitThreshold = threshold;
+    }
+
+    public int getMaxCallDepth() {
+        return this.maxCallDepth;
+    }
+
+    public void setMaxCallDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Maximum call depth must be at least 1: " + depth);
+        }
+        this.maxCallDepth = depth;
+    }
+
+    public long getStepLimit() {
+        return this.stepLimit;
+    }
+
+    public void setStepLimit(long steps) {
+        // negative limits mean no limit
+        this.stepLimit = steps;
+    }
+
+    public long getTimeLimit() {
+        return this.timeLimit;
+    }
+
+    public void setTimeLimit(long millis) {
+        // in milliseconds, non-positive limits mean no limit
+        this.timeLimit = millis;
+    }
+
+    public Profiler getProfiler() {
+        return this.profiler;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        // null disables profiling
+        this.profiler = profiler;
     }
 
     public Value callSubroutine(Subroutine routine) {
@@ -50,111 +294,333 @@ public final class Emulator {
     }
 
     public Value callSubroutine(Subroutine routine, Value arg) {
+        // decoding only happens the first time (or after the IR changes)
+        final PreparedSubroutine code = routine.getPreparedForm();
+        return this.invoke(this.contexts.get(), code, this.tierUp(code, 1), arg);
+    }
+
+    public Value[] callSubroutineBatch(Subroutine routine, Value[] args) {
+        return this.callSubroutineBatch(routine, args, ForkJoinPool.commonPool());
+    }
+
+    public Value[] callSubroutineBatch(Subroutine routine, Stream<? extends Value> args) {
+        return this.callSubroutineBatch(routine, args.toArray(Value[]::new), ForkJoinPool.commonPool());
+    }
+
+    public Value[] callSubroutineBatch(Subroutine routine, Value[] args, ForkJoinPool pool) {
+        // results are in the same order as the arguments. Each row is a
+        // separate outermost call (with its own budget), but the routine
+        // is only prepared and considered for tier-up once per batch
+        final Value[] results = new Value[args.length];
+        if (args.length == 0) {
+            return results;
+        }
+
+        final PreparedSubroutine code = routine.getPreparedForm();
+        final MethodHandleCompiler.Compiled compiled = this.tierUp(code, args.length);
+
+        // the profiler cannot be shared across threads
+        final int grain = this.profiler != null
+                ? args.length
+                : Math.max(1, args.length / (pool.getParallelism() * 8));
+        pool.invoke(new BatchTask(code, compiled, args, results, 0, args.length, grain));
+        return results;
+    }
+
+    private Value invoke(Context ctx, PreparedSubroutine code, MethodHandleCompiler.Compiled compiled, Value arg) {
+        // native handlers may call back into the emulator, but
+        // those calls are still covered by the outermost budget
+        if (ctx.nesting++ == 0) {
+            ctx.start(this);
+        }
+
+        final int base = ctx.depth;
+        final Profiler prof = this.profiler;
+        final Object mark = prof == null ? null : prof.mark();
         try {
-            return this.internalCallSubroutine(routine, arg);
-        } catch (Continuation ex1) {
-            // trampoline
-            Continuation continuation = ex1;
-            while (true) {
-                try {
-                    return this.performCall(continuation.func, continuation.arg);
-                } catch (Continuation ex2) {
-                    continuation = ex2;
-                }
+            ctx.tick(code.sub);
+
+            if (compiled != null) {
+                return compiled.invoke(ctx, arg);
+            }
+            return this.execute(ctx, base, ctx.pushFrame(code, arg));
+        } finally {
+            // only unwind the frames that belong to this call
+            ctx.depth = base;
+            --ctx.nesting;
+            if (mark != null) {
+                prof.restore(mark);
             }
         }
     }
 
-    private Value internalCallSubroutine(Subroutine routine, Value arg) throws Continuation {
-        final HashMap<Binding, Value> locals = new HashMap<>();
-        final Iterator<Value> splatted = Subroutine.splatterArguments(arg).iterator();
-        final Iterator<Binding.Parameter> params = routine.getParameters().iterator();
-        while (splatted.hasNext() || params.hasNext()) {
-            // which is nice: if size mismatch, iterator will throw error!
-            locals.put(params.next(), splatted.next());
+    public Value callExternal(String name, Value arg) {
+        // without a signature, integral results are boxed as int64
+        final NativeHandler handler = this.extHandlers.get(name);
+        if (handler == null) {
+            throw new EmulatorException("No handler for native function " + name);
         }
-        return this.execute(locals, blockToIterator(routine.getInitialBlock()));
+        return handler.invoke(null, arg);
     }
 
-    public Value callExternal(String name, Value arg) {
-        return this.extHandlers.get(name).apply(Subroutine.splatterArguments(arg).toArray(new Value[0]));
+    public void link(Subroutine routine) {
+        // binds the native calls of everything reachable from routine,
+        // so missing or mismatched handlers are reported before running
+        final IdentityHashMap<Subroutine, Boolean> visited = new IdentityHashMap<>();
+        final ArrayDeque<Subroutine> pending = new ArrayDeque<>();
+        pending.add(routine);
+        visited.put(routine, Boolean.TRUE);
+
+        Subroutine sub;
+        while ((sub = pending.poll()) != null) {
+            for (final PreparedBlock block : sub.getPreparedForm().blocks()) {
+                for (final Node node : block.nodes) {
+                    final Operand target;
+                    if (node instanceof Node.Call) {
+                        target = ((Node.Call) node).sub;
+                    } else if (node instanceof Node.TailCall) {
+                        target = ((Node.TailCall) node).sub;
+                    } else {
+                        continue;
+                    }
+                    if (!(target instanceof Operand.Constant)) {
+                        // dynamic targets are bound when they are called
+                        continue;
+                    }
+
+                    final Value fptr = ((Operand.Constant) target).value;
+                    if (fptr instanceof FuncRef.Local) {
+                        final Subroutine callee = ((FuncRef.Local) fptr).sub;
+                        if (visited.put(callee, Boolean.TRUE) == null) {
+                            pending.add(callee);
+                        }
+                    } else if (node instanceof Node.Call) {
+                        final Node.Call call = (Node.Call) node;
+                        call.binding = this.bind(call.binding, (FuncRef) fptr);
+                    } else {
+                        final Node.TailCall call = (Node.TailCall) node;
+                        call.binding = this.bind(call.binding, (FuncRef) fptr);
+                    }
+                }
+            }
+        }
     }
 
-    private Value performCall(FuncRef fptr, Value arg) throws Continuation {
-        if (fptr instanceof FuncRef.Native) {
-            return this.callExternal(((FuncRef.Native) fptr).name, arg);
+    private MethodHandleCompiler.Compiled tierUp(PreparedSubroutine code, int calls) {
+        // the profiler needs to see everything, so stay in the interpreter
+        if (this.jitThreshold < 0 || code.jitRejected || this.profiler != null) {
+            return null;
         }
-        if (fptr instanceof FuncRef.Local) {
-            return this.internalCallSubroutine(((FuncRef.Local) fptr).sub, arg);
+        MethodHandleCompiler.Compiled compiled = code.compiled;
+        if (compiled == null && (code.hotness += calls) > this.jitThreshold) {
+            // compile it once it is hot, but if the compiler rejects
+            // it, then we never try again (until the IR changes).
+            // racing threads might both compile it, which is harmless
+            compiled = MethodHandleCompiler.compile(code.sub);
+            code.jitRejected = compiled == null;
+            code.compiled = compiled;
         }
-
-        throw new RuntimeException("Unrecognized FuncRef type: " + fptr.getClass().getSimpleName() + "::" + fptr);
+        return compiled;
     }
 
-    public Value execute(final Map<Binding, Value> locals, Iterator<Statement> pc) throws Continuation {
+    private Value execute(final Context ctx, final int base, Frame frame) {
+        PreparedSubroutine sub = frame.code;
+        Registers regs = frame.regs;
+        Node[] code = sub.entry.nodes;
+        int pc = 0;
+
+        final Profiler prof = this.profiler;
+        if (prof != null) {
+            prof.enterSubroutine(sub.sub);
+            prof.enterBlock(sub.sub, sub.entry.block);
+        }
+
         while (true) {
-            Statement stmt = pc.next();
+            final Node node = code[pc++];
+            if (prof != null) {
+                prof.executeStatement(node.source);
+            }
+
+            switch (node.kind) {
+            case Node.SIMPLE:
+                ((Node.Simple) node).execute(regs);
+                break;
+            case Node.JUMP:
+            case Node.BRANCH: {
+                // we jump by changing the current program counter
+                final PreparedBlock next;
+                if (node.kind == Node.JUMP) {
+                    next = ((Node.Jump) node).target;
+                } else {
+                    final Node.Branch branch = (Node.Branch) node;
+                    next = branch.test(regs) ? branch.ifTrue : branch.ifFalse;
+                }
 
-            // quasi-execute it by unfolding the constants
-            stmt = stmt.unfoldConstants();
+                code = next.nodes;
+                pc = 0;
+                ++sub.hotness;
+                ctx.tick(sub.sub);
+                if (prof != null) {
+                    prof.enterBlock(sub.sub, next.block);
+                }
+                break;
+            }
+            case Node.RETURN: {
+                final Value result = ((Node.Return) node).value.read(regs);
+                if (prof != null) {
+                    prof.exitSubroutine();
+                }
+                if ((frame = ctx.popFrame(base, result)) == null) {
+                    return result;
+                }
 
-            // substitute the variables
-            for (final Map.Entry<Binding, Value> entry : locals.entrySet()) {
-                stmt = stmt.replaceRead(entry.getKey(), entry.getValue());
+                sub = frame.code;
+                regs = frame.regs;
+                code = frame.nodes;
+                pc = frame.pc;
+                break;
             }
+            case Node.CALL: {
+                final Node.Call call = (Node.Call) node;
+                final FuncRef fptr = (FuncRef) call.sub.read(regs);
+                ctx.tick(sub.sub);
+                if (prof != null) {
+                    prof.call(fptr);
+                }
 
-            // then unfold the constants again!
-            stmt = stmt.unfoldConstants();
+                if (fptr instanceof FuncRef.Local) {
+                    final Value arg = call.arg.read(regs);
+                    final PreparedSubroutine callee = ((FuncRef.Local) fptr).sub.getPreparedForm();
+                    final MethodHandleCompiler.Compiled compiled = this.tierUp(callee, 1);
+                    if (compiled != null) {
+                        call.dst.write(regs, compiled.invoke(ctx, arg));
+                        break;
+                    }
 
-            // then check if this statement is one of the few
-            // *must-be-implemented-by-runtime* types
-            if (stmt instanceof MoveStatement) {
-                // add (or update it) into the current locals
-                final MoveStatement moveStmt = (MoveStatement) stmt;
-                locals.put(moveStmt.dst, moveStmt.src);
-            } else if (stmt instanceof ReturnStatement) {
-                // we return
-                return ((ReturnStatement) stmt).value;
-            } else if (stmt instanceof GotoStatement) {
-                // we jump by changing the current program counter
-                pc = blockToIterator(((GotoStatement) stmt).next);
-            } else if (stmt instanceof CallStatement) {
-                // It depends if it is a native call or a local call
-                final CallStatement callStmt = (CallStatement) stmt;
-                final Value ret = this.performCall((FuncRef) callStmt.sub, callStmt.arg);
-                locals.put(callStmt.dst, ret);
-            } else if (stmt instanceof TailCallStatement) {
-                // See CallStatement, but we throw a continuation (and let the trampoline deal with it)
-                final TailCallStatement callStmt = (TailCallStatement) stmt;
-                throw new Continuation((FuncRef) callStmt.sub, callStmt.arg);
-            } else if (stmt instanceof MakeRefStatement) {
-                final MakeRefStatement mkref = (MakeRefStatement) stmt;
-                locals.put(mkref.dst, new BindingRef(mkref.src) {
-                    @Override
-                    public void storeValue(Value value) {
-                        locals.put(this.referent, value);
+                    // save where to resume, then switch to the callee
+                    frame.nodes = code;
+                    frame.pc = pc;
+                    frame.resultSlot = call.dst;
+
+                    frame = ctx.pushFrame(callee, arg);
+                    sub = callee;
+                    regs = frame.regs;
+                    code = callee.entry.nodes;
+                    pc = 0;
+                    if (prof != null) {
+                        prof.enterSubroutine(callee.sub);
+                        prof.enterBlock(callee.sub, callee.entry.block);
                     }
+                } else {
+                    // native arguments are read by the handler, which
+                    // might not need to box them
+                    final NativeBinding binding = this.bind(call.binding, fptr);
+                    call.binding = binding;
+                    this.callNative(binding, call.arg, call.dst, regs);
+                }
+                break;
+            }
+            case Node.TAIL_CALL: {
+                final Node.TailCall call = (Node.TailCall) node;
+                final FuncRef fptr = (FuncRef) call.sub.read(regs);
+                ctx.tick(sub.sub);
+                final Value arg = call.arg.read(regs);
+                if (prof != null) {
+                    prof.tailCall(fptr);
+                }
 
-                    @Override
-                    public Value loadValue() {
-                        return locals.get(this.referent);
+                Value result;
+                if (fptr instanceof FuncRef.Local) {
+                    final PreparedSubroutine callee = ((FuncRef.Local) fptr).sub.getPreparedForm();
+                    final MethodHandleCompiler.Compiled compiled = this.tierUp(callee, 1);
+                    if (compiled == null) {
+                        // the current frame is no longer needed, reuse it
+                        frame.enter(callee, arg);
+                        sub = callee;
+                        regs = frame.regs;
+                        code = callee.entry.nodes;
+                        pc = 0;
+                        if (prof != null) {
+                            prof.replaceSubroutine(callee.sub);
+                            prof.enterBlock(callee.sub, callee.entry.block);
+                        }
+                        break;
                     }
-                });
-            } else if (stmt instanceof LoadRefStatement) {
-                final LoadRefStatement ldref = (LoadRefStatement) stmt;
-                final BindingRef ref = (BindingRef) locals.get(ldref.ref);
-                locals.put(ldref.dst, ref.loadValue());
-            } else if (stmt instanceof StoreRefStatement) {
-                final StoreRefStatement stref = (StoreRefStatement) stmt;
-                final BindingRef ref = (BindingRef) locals.get(stref.ref);
-                ref.storeValue(stref.src);
-            } else {
-                throw new RuntimeException("Unrecognized statement pattern: " + stmt);
+                    result = compiled.invoke(ctx, arg);
+                } else {
+                    final NativeBinding binding = this.bind(call.binding, fptr);
+                    call.binding = binding;
+                    result = this.callNative(binding, arg);
+                }
+
+                // the callee has already returned, so we return too
+                if (prof != null) {
+                    prof.exitSubroutine();
+                }
+                if ((frame = ctx.popFrame(base, result)) == null) {
+                    return result;
+                }
+
+                sub = frame.code;
+                regs = frame.regs;
+                code = frame.nodes;
+                pc = frame.pc;
+                break;
             }
+            default:
+                throw new EmulatorException("Unrecognized node kind: " + node.kind + " from " + node.source);
+            }
+        }
+    }
+
+    private NativeBinding bind(NativeBinding cached, FuncRef fptr) {
+        // the handler is only looked up again if the handlers have
+        // changed (or the site calls something else this time)
+        final int generation = this.handlerGeneration.get();
+        if (cached != null && cached.owner == this && cached.generation == generation
+                && (cached.ref == fptr || cached.ref.equals(fptr))) {
+            return cached;
+        }
+
+        if (!(fptr instanceof FuncRef.Native)) {
+            throw new EmulatorException("Unrecognized FuncRef type: " + fptr.getClass().getSimpleName() + "::" + fptr);
+        }
+
+        final FuncRef.Native ref = (FuncRef.Native) fptr;
+        final NativeHandler handler = this.extHandlers.get(ref.name);
+        if (handler == null) {
+            throw new EmulatorException("No handler for native function " + ref.name);
+        }
+        handler.checkType(ref);
+        return new NativeBinding(this, generation, ref, handler);
+    }
+
+    private void callNative(NativeBinding binding, Operand arg, Operand.Slot dst, Registers regs) {
+        final Profiler prof = this.profiler;
+        if (prof == null) {
+            binding.handler.invoke(binding.result, arg, dst, regs);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            binding.handler.invoke(binding.result, arg, dst, regs);
+        } finally {
+            prof.nativeCall(binding.ref.name, System.nanoTime() - start);
         }
     }
 
-    private static Iterator<Statement> blockToIterator(Block block) {
-        return block.getStatements().iterator();
+    private Value callNative(NativeBinding binding, Value arg) {
+        final Profiler prof = this.profiler;
+        if (prof == null) {
+            return binding.handler.invoke(binding.result, arg);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            return binding.handler.invoke(binding.result, arg);
+        } finally {
+            prof.nativeCall(binding.ref.name, System.nanoTime() - start);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,15 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+public class EmulatorException extends RuntimeException {
+
+    public EmulatorException(String msg) {
+        super(msg);
+    }
+
+    public EmulatorException(String msg, Throwable ex) {
+        super(msg, ex);
+    }
+}
@@ -0,0 +1,723 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.statement.BinaryStatement.BinaryOperator;
+import com.ymcmp.midform.tac.statement.UnaryStatement.UnaryOperator;
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// A stronger (and slower) tier that optimizes the pure computations of a
+// block with equality saturation. Peephole applies one rewrite at a time
+// and only if it makes things simpler right away, so it never finds
+// results that need a few steps that do not pay off on their own, like
+// (a * b + c * a + d) - d becoming a * (b + c).
+//
+// Instead, the computations go into an e-graph, which keeps every
+// expression found to be equal to another in the same class. The rewrites
+// only ever add expressions, so all of them are applied until nothing new
+// comes up (or the node or time limit is reached), and the cheapest
+// expression of each class is picked afterwards.
+//
+// The computations that are looked at are the pure statements assigning
+// an immutable binding exactly once, reading only constants, stable
+// bindings from other blocks and each other. All of them are recomputed
+// where the first one used to be, but only if that is cheaper according
+// to the cost model. Division by something that might be zero is left
+// out since it could fail earlier than it used to.
+//
+// Off unless enabled (see Subroutine::getEqualitySaturation).
+public final class EqualitySaturation {
+
+    public static final int DEFAULT_NODE_LIMIT = 2000;
+    public static final long DEFAULT_TIME_LIMIT = 50;
+
+    // An operator applied to classes, or a constant or binding (then op is null)
+    private static final class Node {
+
+        public final Enum<?> op;
+        public final Value leaf;
+        public final int[] args;
+
+        public Node(Enum<?> op, Value leaf, int... args) {
+            this.op = op;
+            this.leaf = leaf;
+            this.args = args;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.op) * 31 + Objects.hashCode(this.leaf) * 17 + Arrays.hashCode(this.args);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Node) {
+                final Node node = (Node) obj;
+                // constants of different types can compare equal
+                return this.op == node.op && Objects.equals(this.leaf, node.leaf) && Arrays.equals(this.args, node.args)
+                        && (this.leaf == null || this.leaf.getType().equals(node.leaf.getType()));
+            }
+            return false;
+        }
+    }
+
+    private static final class EGraph {
+
+        // classes that were merged point to the one they were merged into
+        private final ArrayList<Integer> parents = new ArrayList<>();
+        private final ArrayList<List<Node>> nodes = new ArrayList<>();
+        private final ArrayList<Type> types = new ArrayList<>();
+        private final ArrayList<Value> constants = new ArrayList<>();
+        private final HashMap<Node, Integer> memo = new HashMap<>();
+        private final int limit;
+        private int size;
+
+        public EGraph(int limit) {
+            this.limit = limit;
+        }
+
+        public boolean isFull() {
+            // rules stop adding once the node limit is reached
+            return this.size >= this.limit;
+        }
+
+        public int find(int id) {
+            int root = id;
+            while (this.parents.get(root) != root) {
+                root = this.parents.get(root);
+            }
+            return root;
+        }
+
+        public int numberOfClasses() {
+            return this.parents.size();
+        }
+
+        public List<Node> nodesOf(int id) {
+            return this.nodes.get(this.find(id));
+        }
+
+        public Type typeOf(int id) {
+            return this.types.get(this.find(id));
+        }
+
+        public Value constantOf(int id) {
+            return this.constants.get(this.find(id));
+        }
+
+        public boolean isConstant(int id, long k) {
+            final Value value = this.constantOf(id);
+            return value instanceof ImmInteger && ((ImmInteger) value).content == k;
+        }
+
+        public int add(Node node, Type type) {
+            final Node canon = this.canonical(node);
+            final Integer existing = this.memo.get(canon);
+            if (existing != null) {
+                return this.find(existing);
+            }
+
+            final int id = this.parents.size();
+            this.parents.add(id);
+            this.nodes.add(new ArrayList<>(Arrays.asList(canon)));
+            this.types.add(type);
+            this.constants.add(canon.op == null && canon.leaf.isCompileTimeConstant() ? canon.leaf : null);
+            this.memo.put(canon, id);
+            ++this.size;
+            return id;
+        }
+
+        public int leaf(Value value) {
+            return this.add(new Node(null, value), value.getType());
+        }
+
+        public boolean union(int a, int b) {
+            final int ra = this.find(a);
+            final int rb = this.find(b);
+            if (ra == rb) {
+                return false;
+            }
+
+            this.parents.set(rb, ra);
+            this.nodes.get(ra).addAll(this.nodes.get(rb));
+            this.nodes.set(rb, null);
+            if (this.constants.get(ra) == null) {
+                this.constants.set(ra, this.constants.get(rb));
+            }
+            return true;
+        }
+
+        public void rebuild() {
+            // merges classes that now have the same node and folds the
+            // ones whose operands all turned out to be constants
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                this.memo.clear();
+                for (int id = 0; id < this.parents.size(); ++id) {
+                    if (this.find(id) != id) {
+                        continue;
+                    }
+
+                    final LinkedHashSet<Node> unique = new LinkedHashSet<>();
+                    for (final Node node : this.nodes.get(id)) {
+                        unique.add(this.canonical(node));
+                    }
+                    this.nodes.set(id, new ArrayList<>(unique));
+
+                    for (final Node node : unique) {
+                        final Integer other = this.memo.putIfAbsent(node, id);
+                        if (other != null && this.union(other, id)) {
+                            changed = true;
+                        }
+                    }
+                }
+
+                for (int id = 0; id < this.parents.size(); ++id) {
+                    if (this.find(id) != id || this.constants.get(id) != null) {
+                        continue;
+                    }
+                    for (final Node node : new ArrayList<>(this.nodes.get(id))) {
+                        final Value folded = this.fold(node);
+                        if (folded != null) {
+                            changed |= this.union(id, this.leaf(folded));
+                            break;
+                        }
+                    }
+                }
+            }
+            this.size = 0;
+            for (int id = 0; id < this.parents.size(); ++id) {
+                if (this.find(id) == id) {
+                    this.size += this.nodes.get(id).size();
+                }
+            }
+        }
+
+        private Value fold(Node node) {
+            if (node.op == null) {
+                return null;
+            }
+            final Value[] values = new Value[node.args.length];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = this.constantOf(node.args[i]);
+                if (values[i] == null) {
+                    return null;
+                }
+            }
+
+            try {
+                if (node.op instanceof BinaryOperator) {
+                    return ((BinaryOperator) node.op).evaluate(values[0], values[1]);
+                }
+                return ((UnaryOperator) node.op).evaluate(values[0]);
+            } catch (ArithmeticException ex) {
+                // leave it for the program to fail at runtime
+                return null;
+            }
+        }
+
+        private Node canonical(Node node) {
+            if (node.op == null) {
+                return node;
+            }
+            final int[] args = new int[node.args.length];
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = this.find(node.args[i]);
+            }
+            return new Node(node.op, null, args);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Rule {
+
+        public void apply(EGraph g, int id, Node node);
+    }
+
+    private static final Rule[] RULES;
+
+    static {
+        final Set<BinaryOperator> commutative = Collections.unmodifiableSet(EnumSet.of(
+                BinaryOperator.ADD_II, BinaryOperator.MUL_II, BinaryOperator.AND_II, BinaryOperator.OR_II, BinaryOperator.XOR_II,
+                BinaryOperator.ADD_DD, BinaryOperator.MUL_DD));
+        // (doubles do not associate)
+        final Set<BinaryOperator> associative = Collections.unmodifiableSet(EnumSet.of(
+                BinaryOperator.ADD_II, BinaryOperator.MUL_II, BinaryOperator.AND_II, BinaryOperator.OR_II, BinaryOperator.XOR_II));
+
+        RULES = new Rule[] {
+            // a op b = b op a
+            (g, id, n) -> {
+                if (commutative.contains(n.op)) {
+                    g.union(id, g.add(new Node(n.op, null, n.args[1], n.args[0]), g.typeOf(id)));
+                }
+            },
+            // (a op b) op c = a op (b op c)
+            (g, id, n) -> {
+                if (!associative.contains(n.op)) {
+                    return;
+                }
+                for (final Node lhs : new ArrayList<>(g.nodesOf(n.args[0]))) {
+                    if (lhs.op == n.op && !g.isFull()) {
+                        final int bc = g.add(new Node(n.op, null, lhs.args[1], n.args[1]), g.typeOf(id));
+                        g.union(id, g.add(new Node(n.op, null, lhs.args[0], bc), g.typeOf(id)));
+                    }
+                }
+            },
+            // a * b + a * c = a * (b + c)
+            (g, id, n) -> {
+                if (n.op != BinaryOperator.ADD_II) {
+                    return;
+                }
+                for (final Node lhs : new ArrayList<>(g.nodesOf(n.args[0]))) {
+                    for (final Node rhs : new ArrayList<>(g.nodesOf(n.args[1]))) {
+                        if (g.isFull()) {
+                            return;
+                        }
+                        if (lhs.op == BinaryOperator.MUL_II && rhs.op == BinaryOperator.MUL_II && g.find(lhs.args[0]) == g.find(rhs.args[0])) {
+                            final int sum = g.add(new Node(BinaryOperator.ADD_II, null, lhs.args[1], rhs.args[1]), g.typeOf(id));
+                            g.union(id, g.add(new Node(BinaryOperator.MUL_II, null, lhs.args[0], sum), g.typeOf(id)));
+                        }
+                    }
+                }
+            },
+            // a - b = a + -b (and back)
+            (g, id, n) -> {
+                if (n.op == BinaryOperator.SUB_II) {
+                    final int neg = g.add(new Node(UnaryOperator.NEG_I, null, n.args[1]), g.typeOf(id));
+                    g.union(id, g.add(new Node(BinaryOperator.ADD_II, null, n.args[0], neg), g.typeOf(id)));
+                } else if (n.op == BinaryOperator.ADD_II) {
+                    for (final Node rhs : new ArrayList<>(g.nodesOf(n.args[1]))) {
+                        if (rhs.op == UnaryOperator.NEG_I) {
+                            g.union(id, g.add(new Node(BinaryOperator.SUB_II, null, n.args[0], rhs.args[0]), g.typeOf(id)));
+                        }
+                    }
+                }
+            },
+            // a * 2 = a + a
+            (g, id, n) -> {
+                if (n.op == BinaryOperator.MUL_II && g.isConstant(n.args[1], 2)) {
+                    g.union(id, g.add(new Node(BinaryOperator.ADD_II, null, n.args[0], n.args[0]), g.typeOf(id)));
+                }
+            },
+            // identities
+            (g, id, n) -> {
+                if (!(n.op instanceof BinaryOperator)) {
+                    return;
+                }
+                final int a = n.args[0];
+                final int b = n.args[1];
+                switch ((BinaryOperator) n.op) {
+                case ADD_II:
+                case OR_II:
+                case XOR_II:
+                    if (g.isConstant(b, 0)) g.union(id, a);
+                    break;
+                case SUB_II:
+                    if (g.isConstant(b, 0)) g.union(id, a);
+                    break;
+                case MUL_II:
+                    if (g.isConstant(b, 1)) g.union(id, a);
+                    if (g.isConstant(b, 0)) g.union(id, g.leaf(integer(0)));
+                    break;
+                case AND_II:
+                    if (g.isConstant(b, -1)) g.union(id, a);
+                    if (g.isConstant(b, 0)) g.union(id, g.leaf(integer(0)));
+                    break;
+                default:
+                    break;
+                }
+                if (g.find(a) == g.find(b)) {
+                    switch ((BinaryOperator) n.op) {
+                    case SUB_II:
+                    case XOR_II:
+                    case CMP_II:
+                    case CMP_CC:
+                    case CMP_SS:
+                        g.union(id, g.leaf(integer(0)));
+                        break;
+                    case AND_II:
+                    case OR_II:
+                        g.union(id, a);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            },
+            // - -a = a, ~~a = a, +a = a
+            (g, id, n) -> {
+                if (n.op == UnaryOperator.POS_I || n.op == UnaryOperator.POS_D) {
+                    g.union(id, n.args[0]);
+                } else if (n.op == UnaryOperator.NEG_I || n.op == UnaryOperator.NOT_I || n.op == UnaryOperator.NEG_D || n.op == UnaryOperator.NOT_Z) {
+                    for (final Node src : new ArrayList<>(g.nodesOf(n.args[0]))) {
+                        if (src.op == n.op) {
+                            g.union(id, src.args[0]);
+                        }
+                    }
+                }
+            },
+        };
+    }
+
+    private volatile boolean enabled;
+    private volatile int nodeLimit = DEFAULT_NODE_LIMIT;
+    private volatile long timeLimit = DEFAULT_TIME_LIMIT;
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getNodeLimit() {
+        return this.nodeLimit;
+    }
+
+    public void setNodeLimit(int nodeLimit) {
+        // per block
+        this.nodeLimit = nodeLimit;
+    }
+
+    public long getTimeLimit() {
+        return this.timeLimit;
+    }
+
+    public void setTimeLimit(long timeLimit) {
+        // in milliseconds per block
+        this.timeLimit = timeLimit;
+    }
+
+    /* package */ Set<Block> optimize(Subroutine sub) {
+        // returns the blocks that were changed
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        if (!this.enabled) {
+            return mod;
+        }
+
+        final DataFlowAnalysis flow = sub.getDataFlowAnalysis();
+        final HashSet<String> taken = new HashSet<>();
+        for (int id = 0; id < flow.numberOfBindings(); ++id) {
+            taken.add(flow.getBinding(id).name);
+        }
+        final int[] counter = new int[1];
+        for (final Block block : flow.getControlFlowGraph().getBlocks()) {
+            if (this.optimizeBlock(flow, block, taken, counter)) {
+                mod.add(block);
+            }
+        }
+        return mod;
+    }
+
+    private boolean optimizeBlock(DataFlowAnalysis flow, Block block, Set<String> taken, int[] counter) {
+        final List<Statement> stmts = block.getStatements();
+        final EGraph g = new EGraph(this.nodeLimit);
+
+        // binding -> class for the results of the region
+        final LinkedHashMap<Binding, Integer> results = new LinkedHashMap<>();
+        final HashSet<Statement> region = new HashSet<>();
+        int first = -1;
+        int oldCost = 0;
+        for (int i = 0; i < stmts.size(); ++i) {
+            final Statement stmt = stmts.get(i);
+            final Integer id = this.addStatement(g, flow, block, stmt, results);
+            if (id != null) {
+                results.put(stmt.getResultRegister().get(), id);
+                region.add(stmt);
+                oldCost += costOf(stmt);
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        if (region.isEmpty()) {
+            return false;
+        }
+
+        // the results that are needed outside the region
+        final LinkedHashSet<Binding> roots = new LinkedHashSet<>();
+        for (final Statement stmt : stmts) {
+            if (!region.contains(stmt)) {
+                for (final Value input : stmt.getInputs()) {
+                    Statement.forEachBinding(input, binding -> {
+                        if (results.containsKey(binding)) {
+                            roots.add(binding);
+                        }
+                    });
+                }
+            }
+        }
+        for (final Binding result : results.keySet()) {
+            if (flow.isLiveOut(block, result)) {
+                roots.add(result);
+            }
+        }
+
+        this.saturate(g);
+
+        final Node[] best = extract(g);
+        final ArrayList<Statement> emitted = new ArrayList<>();
+        final HashMap<Integer, Value> computed = new HashMap<>();
+        final HashSet<Binding> assigned = new HashSet<>();
+        for (final Binding root : roots) {
+            final Value value = emit(g, best, g.find(results.get(root)), results, roots, computed, assigned, emitted, taken, counter);
+            if (assigned.add(root)) {
+                emitted.add(new MoveStatement(root, value));
+            }
+        }
+
+        int newCost = 0;
+        for (final Statement stmt : emitted) {
+            newCost += costOf(stmt);
+        }
+        if (newCost >= oldCost) {
+            return false;
+        }
+
+        final ArrayList<Statement> repl = new ArrayList<>(stmts.size());
+        for (int i = 0; i < stmts.size(); ++i) {
+            if (i == first) {
+                repl.addAll(emitted);
+            }
+            if (!region.contains(stmts.get(i))) {
+                repl.add(stmts.get(i));
+            }
+        }
+        block.setStatements(repl);
+        return true;
+    }
+
+    private Integer addStatement(EGraph g, DataFlowAnalysis flow, Block block, Statement stmt, Map<Binding, Integer> results) {
+        // the class of the statement's result, null if it is not part of the region
+        if (!stmt.isPure() || !(stmt instanceof BinaryStatement || stmt instanceof UnaryStatement || stmt instanceof MoveStatement)) {
+            return null;
+        }
+
+        final Binding dst = stmt.getResultRegister().get();
+        if (!(dst instanceof Binding.Immutable) || flow.getDefinitions(dst).size() != 1 || flow.isAddressTaken(dst)) {
+            return null;
+        }
+        if (stmt instanceof BinaryStatement) {
+            final BinaryStatement bin = (BinaryStatement) stmt;
+            if ((bin.operator == BinaryOperator.DIV_II || bin.operator == BinaryOperator.MOD_II)
+                    && !(bin.rhs instanceof ImmInteger && ((ImmInteger) bin.rhs).content != 0)) {
+                return null;
+            }
+        }
+
+        final List<Value> inputs = stmt.getInputs();
+        final int[] args = new int[inputs.size()];
+        for (int i = 0; i < args.length; ++i) {
+            final Integer id = operandOf(g, flow, block, inputs.get(i), results);
+            if (id == null) {
+                return null;
+            }
+            args[i] = id;
+        }
+
+        if (stmt instanceof BinaryStatement) {
+            return g.add(new Node(((BinaryStatement) stmt).operator, null, args), dst.getType());
+        }
+        if (stmt instanceof UnaryStatement) {
+            return g.add(new Node(((UnaryStatement) stmt).operator, null, args), dst.getType());
+        }
+        return args[0];
+    }
+
+    private static Integer operandOf(EGraph g, DataFlowAnalysis flow, Block block, Value value, Map<Binding, Integer> results) {
+        // constants and bindings that can be read anywhere in the block
+        if (value instanceof Binding) {
+            final Integer result = results.get(value);
+            if (result != null) {
+                return result;
+            }
+
+            final Binding binding = (Binding) value;
+            if (!flow.isStable(binding) || flow.isAddressTaken(binding) || flow.getDefinitions(binding).get(0).block == block) {
+                return null;
+            }
+            return g.leaf(binding);
+        }
+        if (value instanceof ImmInteger || value instanceof ImmDouble || value instanceof ImmBoolean
+                || value instanceof ImmCharacter || value instanceof ImmString) {
+            return g.leaf(value);
+        }
+        return null;
+    }
+
+    private void saturate(EGraph g) {
+        final long deadline = System.nanoTime() + this.timeLimit * 1000000L;
+        g.rebuild();
+        while (true) {
+            final int before = g.numberOfClasses();
+            final int sizeBefore = g.size;
+
+            // apply everything to what is there now, then clean up
+            final int classes = g.numberOfClasses();
+            outer:
+            for (int id = 0; id < classes; ++id) {
+                if (g.find(id) != id) {
+                    continue;
+                }
+                for (final Node node : new ArrayList<>(g.nodesOf(id))) {
+                    for (final Rule rule : RULES) {
+                        rule.apply(g, g.find(id), g.canonical(node));
+                    }
+                    if (g.isFull() || System.nanoTime() > deadline) {
+                        break outer;
+                    }
+                }
+            }
+            g.rebuild();
+
+            if (g.isFull() || System.nanoTime() > deadline) {
+                break;
+            }
+            if (g.numberOfClasses() == before && g.size == sizeBefore) {
+                // nothing new, saturated
+                break;
+            }
+        }
+    }
+
+    private static Node[] extract(EGraph g) {
+        // the cheapest node of each class (by the total cost of its tree)
+        final int count = g.numberOfClasses();
+        final long[] cost = new long[count];
+        final Node[] best = new Node[count];
+        Arrays.fill(cost, Long.MAX_VALUE);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int id = 0; id < count; ++id) {
+                if (g.find(id) != id) {
+                    continue;
+                }
+                for (final Node node : g.nodesOf(id)) {
+                    long total = costOf(node.op);
+                    for (final int arg : node.args) {
+                        final long c = cost[g.find(arg)];
+                        if (c == Long.MAX_VALUE) {
+                            total = Long.MAX_VALUE;
+                            break;
+                        }
+                        total += c;
+                    }
+                    if (total < cost[id]) {
+                        cost[id] = total;
+                        best[id] = node;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static Value emit(EGraph g, Node[] best, int id, Map<Binding, Integer> results, Set<Binding> roots,
+            Map<Integer, Value> computed, Set<Binding> assigned, List<Statement> emitted, Set<String> taken, int[] counter) {
+        final Value done = computed.get(id);
+        if (done != null) {
+            return done;
+        }
+
+        final Node node = best[id];
+        if (node.op == null) {
+            computed.put(id, node.leaf);
+            return node.leaf;
+        }
+
+        final Value[] args = new Value[node.args.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = emit(g, best, g.find(node.args[i]), results, roots, computed, assigned, emitted, taken, counter);
+        }
+
+        // reuse a name from the class, preferably one that is needed anyway
+        Binding dst = null;
+        for (final Map.Entry<Binding, Integer> entry : results.entrySet()) {
+            final Binding binding = entry.getKey();
+            if (g.find(entry.getValue()) == id && !assigned.contains(binding) && (dst == null || roots.contains(binding) && !roots.contains(dst))) {
+                dst = binding;
+            }
+        }
+        if (dst == null) {
+            dst = new Binding.Immutable(fresh(taken, counter), g.typeOf(id));
+        }
+        assigned.add(dst);
+
+        if (node.op instanceof BinaryOperator) {
+            emitted.add(new BinaryStatement((BinaryOperator) node.op, dst, args[0], args[1]));
+        } else {
+            emitted.add(new UnaryStatement((UnaryOperator) node.op, dst, args[0]));
+        }
+        computed.put(id, dst);
+        return dst;
+    }
+
+    private static String fresh(Set<String> taken, int[] counter) {
+        // % cannot appear in source names
+        while (true) {
+            final String candidate = "%e" + ++counter[0];
+            if (taken.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static int costOf(Statement stmt) {
+        if (stmt instanceof BinaryStatement) return costOf(((BinaryStatement) stmt).operator);
+        if (stmt instanceof UnaryStatement)  return costOf(((UnaryStatement) stmt).operator);
+        return 0;
+    }
+
+    private static int costOf(Enum<?> op) {
+        // roughly in cycles, moves and constants are free
+        if (op == null) {
+            return 0;
+        }
+        if (op instanceof BinaryOperator) {
+            switch ((BinaryOperator) op) {
+            case MUL_II:
+            case ADD_DD:
+            case SUB_DD:
+                return 3;
+            case MUL_DD:
+                return 4;
+            case DIV_II:
+            case MOD_II:
+            case DIV_DD:
+            case MOD_DD:
+                return 20;
+            case CMP_SS:
+                return 10;
+            default:
+                return 1;
+            }
+        }
+        return 1;
+    }
+
+    private static ImmInteger integer(long k) {
+        return IntegerType.INT32.createImmediate(k);
+    }
+}
@@ -0,0 +1,265 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.value.*;
+
+// Inlines calls to small subroutines by cloning the callee's blocks into
+// the caller. Bindings and blocks get fresh names, the arguments are moved
+// into the (renamed) parameters and, unless the call was a tail call, the
+// returns become moves into the call's result followed by a jump to the
+// rest of the caller's block.
+//
+// Whether a call is worth it is decided by a cost model counted in
+// statements: the size of the callee minus what inlining saves (the call
+// itself and, for every constant argument, whatever will fold away). A
+// caller also has a budget of how much it may grow each time it is
+// optimized, and callees that could end up calling the caller again are
+// never inlined, which is what keeps recursion from unrolling forever.
+// Neither are callees that take references to their locals, since those
+// could outlive the call.
+/* package */ final class Inliner {
+
+    private static final int CALL_BENEFIT = 4;
+    private static final int CONSTANT_ARGUMENT_BENEFIT = 4;
+    private static final int MAX_NET_COST = 8;
+
+    // growth allowed per optimize: half of the caller, at least this much
+    private static final int MIN_GROWTH = 32;
+
+    private final Subroutine caller;
+    private final HashMap<Subroutine, Boolean> recursive = new HashMap<>();
+    private final HashSet<String> generated = new HashSet<>();
+
+    private int budget = -1;
+    private int counter;
+
+    public Inliner(Subroutine caller) {
+        this.caller = caller;
+    }
+
+    public Set<Block> inlineCalls() {
+        // returns the blocks that were changed (or added)
+        final DataFlowAnalysis flow = this.caller.getDataFlowAnalysis();
+        final ControlFlowGraph cfg = flow.getControlFlowGraph();
+        if (this.budget < 0) {
+            this.budget = Math.max(MIN_GROWTH, sizeOf(cfg) / 2);
+        }
+
+        // names that are taken, fresh names must avoid them
+        final HashSet<String> taken = new HashSet<>();
+        for (int id = 0; id < flow.numberOfBindings(); ++id) {
+            taken.add(flow.getBinding(id).name);
+        }
+        for (final Block block : cfg.getBlocks()) {
+            taken.add(block.name);
+        }
+
+        // at most one call per block, the rest of the block
+        // is looked at again the next time around
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (final Block block : cfg.getBlocks()) {
+            final List<Statement> stmts = block.getStatements();
+            for (int i = 0; i < stmts.size(); ++i) {
+                final Statement stmt = stmts.get(i);
+                if (stmt instanceof AbstractCallStatement && this.tryInline(block, i, (AbstractCallStatement<?>) stmt, taken, mod)) {
+                    break;
+                }
+            }
+        }
+        return mod;
+    }
+
+    private boolean tryInline(Block block, int offset, AbstractCallStatement<?> call, Set<String> taken, Set<Block> mod) {
+        if (!(call.sub instanceof FuncRef.Local)) {
+            return false;
+        }
+
+        final Subroutine callee = ((FuncRef.Local) call.sub).sub;
+        final List<Binding.Parameter> params = callee.getParameters();
+        final List<Value> args = Subroutine.splatterArguments(call.arg);
+        if (params.size() != args.size()) {
+            // a tuple passed as a whole, the parameters would need to unpack it
+            return false;
+        }
+
+        final ControlFlowGraph body = callee.getControlFlowGraph();
+        final int size = sizeOf(body);
+        int netCost = size - CALL_BENEFIT;
+        for (final Value arg : args) {
+            if (arg.isCompileTimeConstant()) {
+                netCost -= CONSTANT_ARGUMENT_BENEFIT;
+            }
+        }
+        if (netCost > MAX_NET_COST || size > this.budget || takesReferences(body) || this.isRecursive(callee)) {
+            return false;
+        }
+        this.budget -= size;
+
+        final HashMap<Binding, Binding> bindings = new HashMap<>();
+        final IdentityHashMap<Block, Block> blocks = new IdentityHashMap<>();
+        for (final Block original : body.getBlocks()) {
+            blocks.put(original, new Block(this.fresh(original.name, taken)));
+        }
+
+        // the caller's block ends by passing the arguments
+        final List<Statement> stmts = block.getStatements();
+        final ArrayList<Statement> head = new ArrayList<>(stmts.subList(0, offset));
+        for (int i = 0; i < params.size(); ++i) {
+            head.add(new MoveStatement(this.rename(params.get(i), bindings, taken), args.get(i)));
+        }
+        head.add(new GotoStatement(blocks.get(body.getEntry())));
+
+        // and the rest of it continues after the callee returns (tail
+        // calls do not come back, so the callee's returns are kept)
+        Block rest = null;
+        Binding dst = null;
+        if (call instanceof CallStatement) {
+            rest = new Block(this.fresh(block.name, taken));
+            rest.setStatements(stmts.subList(offset + 1, stmts.size()));
+            dst = ((CallStatement) call).dst;
+            mod.add(rest);
+        }
+
+        for (final Block original : body.getBlocks()) {
+            final ArrayList<Statement> list = new ArrayList<>();
+            for (final Statement stmt : original.getStatements()) {
+                final Statement copy = this.copy(stmt, bindings, blocks, taken);
+                if (rest != null && copy instanceof YieldStatement) {
+                    list.add(((YieldStatement<?>) copy).toNonYieldingVariant(dst));
+                    list.add(new GotoStatement(rest));
+                } else {
+                    list.add(copy);
+                }
+            }
+
+            final Block clone = blocks.get(original);
+            clone.setStatements(list);
+            mod.add(clone);
+        }
+
+        block.setStatements(head);
+        mod.add(block);
+        return true;
+    }
+
+    private Statement copy(Statement stmt, HashMap<Binding, Binding> bindings, IdentityHashMap<Block, Block> blocks, Set<String> taken) {
+        // these refuse to replace the binding they refer to
+        if (stmt instanceof LoadRefStatement) {
+            final LoadRefStatement load = (LoadRefStatement) stmt;
+            return new LoadRefStatement(this.rename(load.dst, bindings, taken), this.rename(load.ref, bindings, taken));
+        }
+        if (stmt instanceof MakeRefStatement) {
+            final MakeRefStatement make = (MakeRefStatement) stmt;
+            return new MakeRefStatement(this.rename(make.dst, bindings, taken), this.rename(make.src, bindings, taken));
+        }
+        if (stmt instanceof StoreRefStatement) {
+            final StoreRefStatement store = (StoreRefStatement) this.renameReads(stmt, bindings, taken);
+            return new StoreRefStatement(this.rename(store.ref, bindings, taken), store.src);
+        }
+
+        Statement result = this.renameReads(stmt, bindings, taken);
+        if (stmt.getResultRegister().isPresent()) {
+            final Binding dst = stmt.getResultRegister().get();
+            result = result.replaceWrite(dst, this.rename(dst, bindings, taken));
+        }
+
+        // jumps go to the cloned blocks
+        if (result instanceof GotoStatement) {
+            return new GotoStatement(blocks.get(((GotoStatement) result).next));
+        }
+        if (result instanceof ConditionalJumpStatement) {
+            final ConditionalJumpStatement jump = (ConditionalJumpStatement) result;
+            return new ConditionalJumpStatement(jump.operator, blocks.get(jump.ifTrue), blocks.get(jump.ifFalse), jump.lhs, jump.rhs);
+        }
+        return result;
+    }
+
+    private Statement renameReads(Statement stmt, HashMap<Binding, Binding> bindings, Set<String> taken) {
+        final ArrayList<Binding> reads = new ArrayList<>();
+        for (final Value input : stmt.getInputs()) {
+            Statement.forEachBinding(input, reads::add);
+        }
+
+        Statement result = stmt;
+        for (final Binding read : reads) {
+            result = result.replaceRead(read, this.rename(read, bindings, taken));
+        }
+        return result;
+    }
+
+    private Binding rename(Binding binding, HashMap<Binding, Binding> bindings, Set<String> taken) {
+        // parameters become ordinary (immutable) bindings of the caller
+        return bindings.computeIfAbsent(binding, k -> {
+            final String name = this.fresh(k.name, taken);
+            return k instanceof Binding.Mutable
+                    ? new Binding.Mutable(name, k.scopeDepth, k.type)
+                    : new Binding.Immutable(name, k.scopeDepth, k.type);
+        });
+    }
+
+    private String fresh(String name, Set<String> taken) {
+        // % cannot appear in source names, the rest is for previous inlines
+        while (true) {
+            final String candidate = name + "%i" + ++this.counter;
+            if (!taken.contains(candidate) && this.generated.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private boolean isRecursive(Subroutine callee) {
+        // if the callee can reach the caller or itself, inlining it
+        // could go on forever (and would only unroll the recursion)
+        return this.recursive.computeIfAbsent(callee, k -> {
+            if (k == this.caller) {
+                return true;
+            }
+
+            final HashSet<Subroutine> seen = new HashSet<>();
+            final ArrayDeque<Subroutine> pending = new ArrayDeque<>(k.getDirectCallees());
+            while (!pending.isEmpty()) {
+                final Subroutine sub = pending.poll();
+                if (sub == this.caller || sub == k) {
+                    return true;
+                }
+                if (seen.add(sub)) {
+                    pending.addAll(sub.getDirectCallees());
+                }
+            }
+            return false;
+        });
+    }
+
+    private static boolean takesReferences(ControlFlowGraph cfg) {
+        // each call needs its own copy of those locals, but an inlined
+        // body reuses the same bindings every time the call site runs
+        for (final Block block : cfg.getBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (stmt instanceof MakeRefStatement) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int sizeOf(ControlFlowGraph cfg) {
+        int size = 0;
+        for (final Block block : cfg.getBlocks()) {
+            size += block.numberOfStatements();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,226 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.value.*;
+
+// Moves computations that give the same result on every iteration of a
+// loop out of it. Loops are found through the back edges of the control
+// flow graph (a self-looping block is just a loop with one block). Loops
+// sharing a header are treated as one.
+//
+// The hoisted statements go into a preheader, a block that jumps to the
+// header and is the only way into the loop from outside. One is made if
+// the header does not have one already.
+//
+// Only pure binary and unary statements that assign an immutable binding
+// exactly once are hoisted, and only if their operands are invariant too:
+// constants, bindings only assigned outside the loop (and not through a
+// reference) and results of statements that were already hoisted. Those
+// are also computed when the loop would not have reached them, so integer
+// division is only hoisted if it cannot fail.
+/* package */ final class LoopInvariantCodeMotion {
+
+    private final Subroutine sub;
+    private final DataFlowAnalysis flow;
+    private final ControlFlowGraph cfg;
+    private final HashSet<String> taken = new HashSet<>();
+    private int counter;
+
+    private LoopInvariantCodeMotion(Subroutine sub) {
+        this.sub = sub;
+        this.flow = sub.getDataFlowAnalysis();
+        this.cfg = this.flow.getControlFlowGraph();
+        for (final Block block : this.cfg.getBlocks()) {
+            this.taken.add(block.name);
+        }
+    }
+
+    public static Set<Block> hoist(Subroutine sub) {
+        // returns the blocks that were changed (or added)
+        return new LoopInvariantCodeMotion(sub).hoistAll();
+    }
+
+    private Set<Block> hoistAll() {
+        // header -> blocks of the loop
+        final LinkedHashMap<Block, Set<Block>> loops = new LinkedHashMap<>();
+        for (final Block from : this.cfg.getBlocks()) {
+            for (final Block to : this.cfg.getSuccessors(from)) {
+                if (this.cfg.isBackEdge(from, to)) {
+                    this.collectLoop(to, from, loops.computeIfAbsent(to, k -> new LinkedHashSet<>()));
+                }
+            }
+        }
+
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (final Map.Entry<Block, Set<Block>> loop : loops.entrySet()) {
+            this.hoistLoop(loop.getKey(), loop.getValue(), mod);
+        }
+        return mod;
+    }
+
+    private void collectLoop(Block header, Block latch, Set<Block> body) {
+        // everything that reaches the latch without going through the header
+        body.add(header);
+        final ArrayDeque<Block> pending = new ArrayDeque<>();
+        pending.add(latch);
+        while (!pending.isEmpty()) {
+            final Block block = pending.poll();
+            if (body.add(block)) {
+                pending.addAll(this.cfg.getPredecessors(block));
+            }
+        }
+    }
+
+    private void hoistLoop(Block header, Set<Block> body, Set<Block> mod) {
+        // in reverse post-order, so definitions are seen before their uses
+        final HashSet<Binding> invariant = new HashSet<>();
+        final ArrayList<Statement> hoisted = new ArrayList<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Block block : this.cfg.getBlocks()) {
+                if (!body.contains(block)) {
+                    continue;
+                }
+
+                final List<Statement> stmts = block.getStatements();
+                final ArrayList<Statement> kept = new ArrayList<>(stmts.size());
+                for (final Statement stmt : stmts) {
+                    if (this.isHoistable(stmt, body, invariant)) {
+                        invariant.add(stmt.getResultRegister().get());
+                        hoisted.add(stmt);
+                    } else {
+                        kept.add(stmt);
+                    }
+                }
+                if (kept.size() != stmts.size()) {
+                    block.setStatements(kept);
+                    mod.add(block);
+                    changed = true;
+                }
+            }
+        }
+
+        if (!hoisted.isEmpty()) {
+            final Block preheader = this.getPreheader(header, body, mod);
+            final List<Statement> stmts = preheader.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts.subList(0, stmts.size() - 1));
+            repl.addAll(hoisted);
+            repl.add(stmts.get(stmts.size() - 1));
+            preheader.setStatements(repl);
+            mod.add(preheader);
+        }
+    }
+
+    private boolean isHoistable(Statement stmt, Set<Block> body, Set<Binding> invariant) {
+        if (!stmt.isPure() || !(stmt instanceof BinaryStatement || stmt instanceof UnaryStatement)) {
+            return false;
+        }
+
+        final Binding dst = stmt.getResultRegister().get();
+        if (!(dst instanceof Binding.Immutable) || this.flow.getDefinitions(dst).size() != 1 || this.flow.isAddressTaken(dst)) {
+            return false;
+        }
+
+        if (stmt instanceof BinaryStatement) {
+            final BinaryStatement bin = (BinaryStatement) stmt;
+            if ((bin.operator == BinaryStatement.BinaryOperator.DIV_II || bin.operator == BinaryStatement.BinaryOperator.MOD_II)
+                    && !(bin.rhs instanceof ImmInteger && ((ImmInteger) bin.rhs).content != 0)) {
+                // might fail on a path that never got there
+                return false;
+            }
+        }
+
+        for (final Value input : stmt.getInputs()) {
+            final boolean[] variant = new boolean[1];
+            Statement.forEachBinding(input, binding -> variant[0] |= !this.isInvariant(binding, body, invariant));
+            if (variant[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInvariant(Binding binding, Set<Block> body, Set<Binding> invariant) {
+        if (invariant.contains(binding)) {
+            return true;
+        }
+        if (this.flow.isAddressTaken(binding)) {
+            return false;
+        }
+        for (final DataFlowAnalysis.Definition def : this.flow.getDefinitions(binding)) {
+            if (!def.isParameter() && body.contains(def.block)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Block getPreheader(Block header, Set<Block> body, Set<Block> mod) {
+        // reuse a block that only jumps to the header if that
+        // is the only way into the loop
+        final ArrayList<Block> outside = new ArrayList<>();
+        for (final Block pred : this.cfg.getPredecessors(header)) {
+            if (!body.contains(pred) && !outside.contains(pred)) {
+                outside.add(pred);
+            }
+        }
+        if (outside.size() == 1 && header != this.sub.getInitialBlock()) {
+            final Block pred = outside.get(0);
+            if (pred.getJumpTarget() == header) {
+                return pred;
+            }
+        }
+
+        final Block preheader = new Block(this.fresh(header.name));
+        preheader.setStatements(Collections.singletonList(new GotoStatement(header)));
+        for (final Block pred : outside) {
+            final List<Statement> stmts = pred.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts);
+            repl.set(repl.size() - 1, retarget(repl.get(repl.size() - 1), header, preheader));
+            pred.setStatements(repl);
+            mod.add(pred);
+        }
+        if (header == this.sub.getInitialBlock()) {
+            this.sub.setInitialBlock(preheader);
+        }
+        return preheader;
+    }
+
+    private static Statement retarget(Statement branch, Block from, Block to) {
+        if (branch instanceof GotoStatement) {
+            return ((GotoStatement) branch).next == from ? new GotoStatement(to) : branch;
+        }
+        if (branch instanceof ConditionalJumpStatement) {
+            final ConditionalJumpStatement jump = (ConditionalJumpStatement) branch;
+            return new ConditionalJumpStatement(jump.operator,
+                    jump.ifTrue == from ? to : jump.ifTrue,
+                    jump.ifFalse == from ? to : jump.ifFalse,
+                    jump.lhs, jump.rhs);
+        }
+        return branch;
+    }
+
+    private String fresh(String name) {
+        // % cannot appear in source names, the rest is for previous runs
+        while (true) {
+            final String candidate = name + "%h" + ++this.counter;
+            if (this.taken.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import static com.ymcmp.midform.tac.Registers.boxLong;
+import static com.ymcmp.midform.tac.Registers.isDouble;
+import static com.ymcmp.midform.tac.Registers.isPrimitive;
+import static com.ymcmp.midform.tac.Registers.unboxLong;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// Second execution tier of the Emulator: compiles a subroutine into a
+// tree of method handles where every binding lives in either a long or
+// a double register. Only subroutines that are made of primitives, with
+// no calls other than tail calls to itself, are accepted.
+/* package */ final class MethodHandleCompiler {
+
+    /* package */ static final class Compiled {
+
+        private final Subroutine sub;
+        private final MethodHandle[] blocks;
+        private final Binding[] params;
+        private final int[] paramSlots;
+        private final int returnSlot;
+        private final int longs;
+        private final int doubles;
+
+        private Compiled(MethodHandleCompiler compiler, MethodHandle[] blocks) {
+            this.sub = compiler.sub;
+            this.blocks = blocks;
+            this.params = compiler.sub.getParameters().toArray(new Binding[0]);
+            this.paramSlots = new int[this.params.length];
+            for (int i = 0; i < this.params.length; ++i) {
+                this.paramSlots[i] = compiler.slotOf(this.params[i]);
+            }
+            this.returnSlot = compiler.returnSlot;
+            this.longs = compiler.longs;
+            this.doubles = compiler.doubles;
+        }
+
+        public Value invoke(Emulator.Context ctx, Value arg) {
+            final Registers regs = new Registers(0, this.longs, this.doubles);
+
+            final List<Value> splatted = Subroutine.splatterArguments(arg);
+            if (splatted.size() != this.params.length) {
+                throw new EmulatorException("Argument size mismatch: expected: " + this.params.length + " got: " + splatted.size());
+            }
+
+            int i = 0;
+            for (final Value value : splatted) {
+                if (isDouble(this.params[i].getType())) {
+                    regs.doubles[this.paramSlots[i]] = ((ImmDouble) value).content;
+                } else {
+                    regs.longs[this.paramSlots[i]] = unboxLong(value);
+                }
+                ++i;
+            }
+
+            try {
+                int next = 0;
+                while (next >= 0) {
+                    ctx.tick(this.sub);
+                    next = (int) this.blocks[next].invokeExact(regs);
+                }
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new EmulatorException("Compiled code of " + this.sub.getName() + " failed", ex);
+            }
+
+            final Type output = this.sub.type.getOutput();
+            if (isDouble(output)) {
+                return new ImmDouble(regs.doubles[this.returnSlot]);
+            }
+            return boxLong(output, regs.longs[this.returnSlot]);
+        }
+    }
+
+    private static final class UnsupportedCodeException extends RuntimeException {
+
+        public UnsupportedCodeException(String message) {
+            // control flow only, no need for the stack trace
+            super(message, null, false, false);
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle GET_LONG = findStatic("getLong", long.class, Registers.class, int.class);
+    private static final MethodHandle GET_DOUBLE = findStatic("getDouble", double.class, Registers.class, int.class);
+    private static final MethodHandle PUT_LONG = findStatic("putLong", void.class, long.class, Registers.class, int.class);
+    private static final MethodHandle PUT_DOUBLE = findStatic("putDouble", void.class, double.class, Registers.class, int.class);
+
+    private final Subroutine sub;
+    private final HashMap<Binding, Integer> slots = new HashMap<>();
+    private final IdentityHashMap<Block, Integer> blockIds = new IdentityHashMap<>();
+    private final ArrayList<Block> blocks = new ArrayList<>();
+
+    private int longs;
+    private int doubles;
+    private int returnSlot;
+
+    private MethodHandleCompiler(Subroutine sub) {
+        this.sub = sub;
+    }
+
+    public static Compiled compile(Subroutine sub) {
+        try {
+            return new MethodHandleCompiler(sub).compile();
+        } catch (UnsupportedCodeException ex) {
+            // this tier cannot handle it, keep interpreting
+            return null;
+        }
+    }
+
+    private Compiled compile() {
+        final Type output = this.sub.type.getOutput();
+        if (!isPrimitive(output)) {
+            throw new UnsupportedCodeException("Unsupported return type: " + output);
+        }
+        this.returnSlot = isDouble(output) ? this.doubles++ : this.longs++;
+
+        // parameters go first, entry block is always block 0
+        for (final Binding param : this.sub.getParameters()) {
+            this.slotOf(param);
+        }
+        this.blockIdOf(this.sub.getInitialBlock());
+
+        final ArrayList<MethodHandle> handles = new ArrayList<>();
+        for (int i = 0; i < this.blocks.size(); ++i) {
+            // compiling a block may discover new blocks
+            handles.add(this.compileBlock(this.blocks.get(i)));
+        }
+        return new Compiled(this, handles.toArray(new MethodHandle[0]));
+    }
+
+    private int slotOf(Binding binding) {
+        Integer slot = this.slots.get(binding);
+        if (slot == null) {
+            final Type type = binding.getType();
+            if (!isPrimitive(type)) {
+                throw new UnsupportedCodeException("Unsupported binding type: " + binding + " of " + type);
+            }
+            slot = isDouble(type) ? this.doubles++ : this.longs++;
+            this.slots.put(binding, slot);
+        }
+        return slot;
+    }
+
+    private int blockIdOf(Block block) {
+        Integer id = this.blockIds.get(block);
+        if (id == null) {
+            id = this.blocks.size();
+            this.blockIds.put(block, id);
+            this.blocks.add(block);
+        }
+        return id;
+    }
+
+    private MethodHandle compileBlock(Block block) {
+        final List<Statement> stmts = block.getStatements();
+        final ListIterator<Statement> it = stmts.listIterator(stmts.size());
+
+        // handles are chained backwards: (Registers)void
+        // statements are folded into the terminator (Registers)int
+        MethodHandle handle = this.compileTerminator((BranchStatement) it.previous());
+        while (it.hasPrevious()) {
+            handle = MethodHandles.foldArguments(handle, this.compileStatement(it.previous()));
+        }
+        return handle;
+    }
+
+    private MethodHandle compileTerminator(BranchStatement stmt) {
+        if (stmt instanceof GotoStatement) {
+            return this.jumpTo(((GotoStatement) stmt).next);
+        }
+        if (stmt instanceof ConditionalJumpStatement) {
+            final ConditionalJumpStatement jmp = (ConditionalJumpStatement) stmt;
+            final MethodHandle test = this.combine(jmp.operator.name(), boolean.class, jmp.lhs, jmp.rhs);
+            return MethodHandles.guardWithTest(test, this.jumpTo(jmp.ifTrue), this.jumpTo(jmp.ifFalse));
+        }
+        if (stmt instanceof ReturnStatement) {
+            final ReturnStatement ret = (ReturnStatement) stmt;
+            final Type output = this.sub.type.getOutput();
+            final MethodHandle store = this.store(isDouble(output), this.returnSlot, this.operand(ret.value));
+            return MethodHandles.foldArguments(exitWith(-1), store);
+        }
+        if (stmt instanceof TailCallStatement) {
+            return this.compileSelfTailCall((TailCallStatement) stmt);
+        }
+        throw new UnsupportedCodeException("Unsupported statement: " + stmt);
+    }
+
+    private MethodHandle compileSelfTailCall(TailCallStatement stmt) {
+        if (!(stmt.sub instanceof FuncRef.Local) || ((FuncRef.Local) stmt.sub).sub != this.sub) {
+            throw new UnsupportedCodeException("Unsupported call: " + stmt);
+        }
+
+        final List<Binding.Parameter> params = this.sub.getParameters();
+        final List<Value> args = Subroutine.splatterArguments(stmt.arg);
+
+        // arguments may read the parameters being reassigned,
+        // so evaluate all of them into scratch registers first
+        final ArrayList<MethodHandle> steps = new ArrayList<>();
+        final int[] scratch = new int[params.size()];
+        for (int i = 0; i < scratch.length; ++i) {
+            final boolean dbl = isDouble(params.get(i).getType());
+            scratch[i] = dbl ? this.doubles++ : this.longs++;
+            steps.add(this.store(dbl, scratch[i], this.operand(args.get(i))));
+        }
+        for (int i = 0; i < scratch.length; ++i) {
+            final boolean dbl = isDouble(params.get(i).getType());
+            steps.add(this.store(dbl, this.slotOf(params.get(i)), this.read(dbl, scratch[i])));
+        }
+
+        MethodHandle handle = exitWith(this.blockIdOf(this.sub.getInitialBlock()));
+        for (int i = steps.size() - 1; i >= 0; --i) {
+            handle = MethodHandles.foldArguments(handle, steps.get(i));
+        }
+        return handle;
+    }
+
+    private MethodHandle compileStatement(Statement stmt) {
+        if (stmt instanceof MoveStatement) {
+            final MoveStatement move = (MoveStatement) stmt;
+            return this.store(move.dst, this.operand(move.src));
+        }
+        if (stmt instanceof UnaryStatement) {
+            final UnaryStatement unary = (UnaryStatement) stmt;
+            return this.store(unary.dst, this.combine(unary.operator.name(), kindOf(unary.dst.getType()), unary.src));
+        }
+        if (stmt instanceof BinaryStatement) {
+            final BinaryStatement binary = (BinaryStatement) stmt;
+            return this.store(binary.dst, this.combine(binary.operator.name(), kindOf(binary.dst.getType()), binary.lhs, binary.rhs));
+        }
+        throw new UnsupportedCodeException("Unsupported statement: " + stmt);
+    }
+
+    private MethodHandle jumpTo(Block block) {
+        return exitWith(this.blockIdOf(block));
+    }
+
+    private MethodHandle combine(String operator, Class<?> result, Value... operands) {
+        // operator implementations are named after the enum constant,
+        // in which ADD_II becomes addII and I2D becomes i2d
+        final String[] parts = operator.split("_");
+        final StringBuilder name = new StringBuilder(parts[0].toLowerCase());
+        for (int i = 1; i < parts.length; ++i) {
+            name.append(parts[i]);
+        }
+
+        final MethodHandle[] filters = new MethodHandle[operands.length];
+        final Class<?>[] params = new Class<?>[operands.length];
+        for (int i = 0; i < operands.length; ++i) {
+            filters[i] = this.operand(operands[i]);
+            params[i] = filters[i].type().returnType();
+        }
+
+        final MethodHandle op;
+        try {
+            op = LOOKUP.findStatic(MethodHandleCompiler.class, name.toString(), MethodType.methodType(result, params));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new UnsupportedCodeException("Unsupported operator: " + operator);
+        }
+
+        // (Registers, Registers...)T, then merge all registers into one
+        final MethodHandle filtered = MethodHandles.filterArguments(op, 0, filters);
+        return MethodHandles.permuteArguments(filtered,
+                MethodType.methodType(result, Registers.class), new int[operands.length]);
+    }
+
+    private MethodHandle operand(Value value) {
+        if (value instanceof Binding) {
+            final Binding binding = (Binding) value;
+            return this.read(isDouble(binding.getType()), this.slotOf(binding));
+        }
+        if (value instanceof ImmDouble) {
+            final MethodHandle k = MethodHandles.constant(double.class, ((ImmDouble) value).content);
+            return MethodHandles.dropArguments(k, 0, Registers.class);
+        }
+        if (value instanceof ImmInteger || value instanceof ImmBoolean || value instanceof ImmCharacter) {
+            final MethodHandle k = MethodHandles.constant(long.class, unboxLong(value));
+            return MethodHandles.dropArguments(k, 0, Registers.class);
+        }
+        throw new UnsupportedCodeException("Unsupported operand: " + value);
+    }
+
+    private MethodHandle read(boolean dbl, int slot) {
+        return MethodHandles.insertArguments(dbl ? GET_DOUBLE : GET_LONG, 1, slot);
+    }
+
+    private MethodHandle store(Binding dst, MethodHandle value) {
+        return this.store(isDouble(dst.getType()), this.slotOf(dst), value);
+    }
+
+    private MethodHandle store(boolean dbl, int slot, MethodHandle value) {
+        final MethodHandle put = MethodHandles.insertArguments(dbl ? PUT_DOUBLE : PUT_LONG, 2, slot);
+        return MethodHandles.foldArguments(put, value);
+    }
+
+    private static MethodHandle exitWith(int block) {
+        return MethodHandles.dropArguments(MethodHandles.constant(int.class, block), 0, Registers.class);
+    }
+
+    private static MethodHandle findStatic(String name, Class<?> ret, Class<?>... params) {
+        try {
+            return LOOKUP.findStatic(MethodHandleCompiler.class, name, MethodType.methodType(ret, params));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError("Missing register accessor " + name, ex);
+        }
+    }
+
+    private static Class<?> kindOf(Type type) {
+        return isDouble(type) ? double.class : long.class;
+    }
+
+    // ***** Register accessors *****
+
+    private static long getLong(Registers regs, int slot) {
+        return regs.longs[slot];
+    }
+
+    private static double getDouble(Registers regs, int slot) {
+        return regs.doubles[slot];
+    }
+
+    private static void putLong(long value, Registers regs, int slot) {
+        regs.longs[slot] = value;
+    }
+
+    private static void putDouble(double value, Registers regs, int slot) {
+        regs.doubles[slot] = value;
+    }
+
+    // ***** Operators (see ImmInteger for the integer semantics) *****
+
+    private static long notI(long a)    { return ~a; }
+    private static long negI(long a)    { return -(int) a; }
+    private static long posI(long a)    { return a; }
+    private static long notZ(long a)    { return a == 0 ? 1 : 0; }
+    private static double negD(double a){ return -a; }
+    private static double posD(double a){ return a; }
+    private static double i2d(long a)   { return a; }
+    private static long d2i(double a)   { return (int) a; }
+    private static long i2z(long a)     { return a != 0 ? 1 : 0; }
+    private static long z2i(long a)     { return a; }
+    private static long i2b(long a)     { return (byte) a; }
+    private static long b2i(long a)     { return (int) a; }
+
+    private static long andII(long a, long b)   { return (int) a & (int) b; }
+    private static long orII(long a, long b)    { return (int) a | (int) b; }
+    private static long xorII(long a, long b)   { return (int) a ^ (int) b; }
+    private static long addII(long a, long b)   { return (int) a + (int) b; }
+    private static long subII(long a, long b)   { return (int) a - (int) b; }
+    private static long mulII(long a, long b)   { return (int) a * (int) b; }
+    private static long divII(long a, long b)   { return (int) a / (int) b; }
+    private static long modII(long a, long b)   { return (int) a % (int) b; }
+    private static long cmpII(long a, long b)   { return Long.compare(a, b); }
+    private static long cmpCC(long a, long b)   { return Character.compare((char) a, (char) b); }
+
+    private static double addDD(double a, double b)    { return a + b; }
+    private static double subDD(double a, double b)    { return a - b; }
+    private static double mulDD(double a, double b)    { return a * b; }
+    private static double divDD(double a, double b)    { return a / b; }
+    private static double modDD(double a, double b)    { return a % b; }
+    private static long cmpDD(double a, double b)      { return Double.compare(a, b); }
+
+    private static boolean eqII(long a, long b) { return a == b; }
+    private static boolean neII(long a, long b) { return a != b; }
+    private static boolean ltII(long a, long b) { return a < b; }
+    private static boolean leII(long a, long b) { return a <= b; }
+    private static boolean geII(long a, long b) { return a >= b; }
+    private static boolean gtII(long a, long b) { return a > b; }
+
+    private static boolean eqCC(long a, long b) { return a == b; }
+    private static boolean neCC(long a, long b) { return a != b; }
+    private static boolean ltCC(long a, long b) { return a < b; }
+    private static boolean leCC(long a, long b) { return a <= b; }
+    private static boolean geCC(long a, long b) { return a >= b; }
+    private static boolean gtCC(long a, long b) { return a > b; }
+
+    private static boolean eqZZ(long a, long b) { return a == b; }
+    private static boolean neZZ(long a, long b) { return a != b; }
+
+    private static boolean eqDD(double a, double b) { return a == b; }
+    private static boolean neDD(double a, double b) { return a != b; }
+    private static boolean ltDD(double a, double b) { return a < b; }
+    private static boolean leDD(double a, double b) { return a <= b; }
+    private static boolean geDD(double a, double b) { return a >= b; }
+    private static boolean gtDD(double a, double b) { return a > b; }
+}
@@ -0,0 +1,312 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+import com.ymcmp.midform.tac.type.FunctionType;
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// Implementation of a native function (see Emulator::addExternalCallHandler).
+// Besides the generic Value[] -> Value form, there are primitive forms
+// which the interpreter calls straight from the registers, so neither
+// the arguments nor the result are boxed.
+public abstract class NativeHandler {
+
+    /* package */ NativeHandler() {
+        // only through the factories
+    }
+
+    // result is the declared return type (null if it is not known),
+    // which is used for boxing primitive results
+    /* package */ abstract Value invoke(Type result, Value arg);
+
+    /* package */ void invoke(Type result, Operand arg, Operand.Slot dst, Registers regs) {
+        dst.write(regs, this.invoke(result, arg.read(regs)));
+    }
+
+    // throws if the handler cannot be called with that signature
+    /* package */ void checkType(FuncRef.Native ref) {
+        // generic handlers accept anything
+    }
+
+    // ***** Factories *****
+
+    public static NativeHandler of(Function<Value[], ? extends Value> f) {
+        Objects.requireNonNull(f);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                return f.apply(Subroutine.splatterArguments(arg).toArray(new Value[0]));
+            }
+        };
+    }
+
+    public static NativeHandler ofLongUnary(LongUnaryOperator f) {
+        Objects.requireNonNull(f);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                return boxLong(result, f.applyAsLong(Registers.unboxLong(arg)));
+            }
+
+            @Override
+            /* package */ void invoke(Type result, Operand arg, Operand.Slot dst, Registers regs) {
+                dst.writeLong(regs, f.applyAsLong(arg.readLong(regs)));
+            }
+
+            @Override
+            /* package */ void checkType(FuncRef.Native ref) {
+                checkSignature(ref, false, 1);
+            }
+        };
+    }
+
+    public static NativeHandler ofLongBinary(LongBinaryOperator f) {
+        Objects.requireNonNull(f);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                final List<Value> args = Subroutine.splatterArguments(arg);
+                return boxLong(result, f.applyAsLong(Registers.unboxLong(args.get(0)), Registers.unboxLong(args.get(1))));
+            }
+
+            @Override
+            /* package */ void invoke(Type result, Operand arg, Operand.Slot dst, Registers regs) {
+                if (!(arg instanceof Operand.Aggregate)) {
+                    // a tuple passed as a whole, which is boxed anyway
+                    super.invoke(result, arg, dst, regs);
+                    return;
+                }
+                final Operand[] args = ((Operand.Aggregate) arg).elements;
+                dst.writeLong(regs, f.applyAsLong(args[0].readLong(regs), args[1].readLong(regs)));
+            }
+
+            @Override
+            /* package */ void checkType(FuncRef.Native ref) {
+                checkSignature(ref, false, 2);
+            }
+        };
+    }
+
+    public static NativeHandler ofDoubleUnary(DoubleUnaryOperator f) {
+        Objects.requireNonNull(f);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                return new ImmDouble(f.applyAsDouble(((ImmDouble) arg).content));
+            }
+
+            @Override
+            /* package */ void invoke(Type result, Operand arg, Operand.Slot dst, Registers regs) {
+                dst.writeDouble(regs, f.applyAsDouble(arg.readDouble(regs)));
+            }
+
+            @Override
+            /* package */ void checkType(FuncRef.Native ref) {
+                checkSignature(ref, true, 1);
+            }
+        };
+    }
+
+    public static NativeHandler ofDoubleBinary(DoubleBinaryOperator f) {
+        Objects.requireNonNull(f);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                final List<Value> args = Subroutine.splatterArguments(arg);
+                return new ImmDouble(f.applyAsDouble(((ImmDouble) args.get(0)).content, ((ImmDouble) args.get(1)).content));
+            }
+
+            @Override
+            /* package */ void invoke(Type result, Operand arg, Operand.Slot dst, Registers regs) {
+                if (!(arg instanceof Operand.Aggregate)) {
+                    super.invoke(result, arg, dst, regs);
+                    return;
+                }
+                final Operand[] args = ((Operand.Aggregate) arg).elements;
+                dst.writeDouble(regs, f.applyAsDouble(args[0].readDouble(regs), args[1].readDouble(regs)));
+            }
+
+            @Override
+            /* package */ void checkType(FuncRef.Native ref) {
+                checkSignature(ref, true, 2);
+            }
+        };
+    }
+
+    public static NativeHandler of(MethodHandle handle) {
+        // (long)long, (long,long)long and the double equivalents take
+        // the primitive paths, everything else is converted per call
+        final MethodType type = handle.type();
+        final int arity = type.parameterCount();
+        if (arity == 1 || arity == 2) {
+            if (allParameters(type, long.class) && isIntegral(type.returnType())) {
+                final MethodHandle exact = handle.asType(type.changeReturnType(long.class));
+                if (arity == 1) {
+                    return ofLongUnary(a -> {
+                        try {
+                            return (long) exact.invokeExact(a);
+                        } catch (Throwable ex) {
+                            throw rethrow(ex);
+                        }
+                    });
+                }
+                return ofLongBinary((a, b) -> {
+                    try {
+                        return (long) exact.invokeExact(a, b);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                });
+            }
+            if (allParameters(type, double.class) && (type.returnType() == double.class || type.returnType() == float.class)) {
+                final MethodHandle exact = handle.asType(type.changeReturnType(double.class));
+                if (arity == 1) {
+                    return ofDoubleUnary(a -> {
+                        try {
+                            return (double) exact.invokeExact(a);
+                        } catch (Throwable ex) {
+                            throw rethrow(ex);
+                        }
+                    });
+                }
+                return ofDoubleBinary((a, b) -> {
+                    try {
+                        return (double) exact.invokeExact(a, b);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                });
+            }
+        }
+
+        final Class<?>[] params = type.parameterArray();
+        final MethodHandle spread = handle.asSpreader(Object[].class, arity);
+        return new NativeHandler() {
+            @Override
+            /* package */ Value invoke(Type result, Value arg) {
+                final List<Value> args = Subroutine.splatterArguments(arg);
+                if (args.size() != params.length) {
+                    throw new EmulatorException("Argument size mismatch: expected: " + params.length + " got: " + args.size());
+                }
+
+                final Object[] objs = new Object[params.length];
+                for (int i = 0; i < objs.length; ++i) {
+                    objs[i] = toJava(params[i], args.get(i));
+                }
+
+                try {
+                    return fromJava(result, spread.invoke(objs));
+                } catch (Throwable ex) {
+                    throw rethrow(ex);
+                }
+            }
+        };
+    }
+
+    public static NativeHandler ofStatic(Class<?> owner, String name) {
+        // the method has to be public, static and not overloaded
+        Method found = null;
+        for (final Method method : owner.getMethods()) {
+            if (method.getName().equals(name) && Modifier.isStatic(method.getModifiers())) {
+                if (found != null) {
+                    throw new IllegalArgumentException("Ambiguous static method " + owner.getName() + "::" + name);
+                }
+                found = method;
+            }
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("No public static method " + owner.getName() + "::" + name);
+        }
+
+        try {
+            return of(MethodHandles.publicLookup().unreflect(found));
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("Cannot access " + owner.getName() + "::" + name, ex);
+        }
+    }
+
+    // ***** Helpers *****
+
+    private static boolean allParameters(MethodType type, Class<?> cls) {
+        for (final Class<?> param : type.parameterArray()) {
+            if (param != cls) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIntegral(Class<?> cls) {
+        return cls == long.class || cls == int.class || cls == short.class || cls == byte.class || cls == char.class;
+    }
+
+    private static void checkSignature(FuncRef.Native ref, boolean dbl, int arity) {
+        final FunctionType type = ref.type;
+        boolean valid = type.numberOfSplattedInputs() == arity
+                && Registers.isPrimitive(type.getOutput())
+                && Registers.isDouble(type.getOutput()) == dbl;
+        for (int i = 0; valid && i < arity; ++i) {
+            final Type input = type.getSplattedInput(i);
+            valid = Registers.isPrimitive(input) && Registers.isDouble(input) == dbl;
+        }
+        if (!valid) {
+            throw new EmulatorException("Native handler for " + ref.name + " cannot be called as " + type);
+        }
+    }
+
+    private static Value boxLong(Type result, long value) {
+        return Registers.boxLong(result == null ? IntegerType.INT64 : result, value);
+    }
+
+    private static Object toJava(Class<?> cls, Value value) {
+        if (cls.isInstance(value))                      return value;
+        if (cls == long.class)                          return Registers.unboxLong(value);
+        if (cls == int.class)                           return (int) Registers.unboxLong(value);
+        if (cls == short.class)                         return (short) Registers.unboxLong(value);
+        if (cls == byte.class)                          return (byte) Registers.unboxLong(value);
+        if (cls == char.class)                          return (char) Registers.unboxLong(value);
+        if (cls == boolean.class)                       return Registers.unboxLong(value) != 0;
+        if (cls == double.class)                        return ((ImmDouble) value).content;
+        if (cls == float.class)                         return (float) ((ImmDouble) value).content;
+        if (cls == String.class && value instanceof ImmString) return ((ImmString) value).content;
+        throw new EmulatorException("Cannot pass " + value + " as " + cls.getName());
+    }
+
+    private static Value fromJava(Type result, Object obj) {
+        if (obj == null)                return ImmUnit.INSTANCE;
+        if (obj instanceof Value)       return (Value) obj;
+        if (obj instanceof Boolean)     return new ImmBoolean((Boolean) obj);
+        if (obj instanceof Character)   return new ImmCharacter((Character) obj);
+        if (obj instanceof Double)      return new ImmDouble((Double) obj);
+        if (obj instanceof Float)       return new ImmDouble((Float) obj);
+        if (obj instanceof Number)      return boxLong(result, ((Number) obj).longValue());
+        if (obj instanceof String)      return new ImmString((String) obj);
+        throw new EmulatorException("Cannot convert " + obj.getClass().getName() + " to a value");
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new EmulatorException("Native handler failed", ex);
+    }
+}
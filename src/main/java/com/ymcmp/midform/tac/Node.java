@@ -0,0 +1,658 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import com.ymcmp.midform.tac.PreparedSubroutine.PreparedBlock;
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// Executable (pre-decoded) form of a statement. Each statement kind
+// and operator gets its own node class, so the emulator never has to
+// dispatch on the raw statements or switch on operators at runtime.
+//
+// Operators on primitives go through Operand::readLong/readDouble and
+// Slot::writeLong/writeDouble, so nothing is boxed unless the binding
+// itself is not kept unboxed (see PreparedSubroutine::slotOf).
+/* package */ abstract class Node {
+
+    public static final int SIMPLE = 0;
+    public static final int JUMP = 1;
+    public static final int BRANCH = 2;
+    public static final int RETURN = 3;
+    public static final int CALL = 4;
+    public static final int TAIL_CALL = 5;
+
+    public final int kind;
+    public final Statement source;
+
+    protected Node(int kind, Statement source) {
+        this.kind = kind;
+        this.source = source;
+    }
+
+    // ***** Nodes that always fall through to the next node *****
+
+    public static abstract class Simple extends Node {
+
+        protected Simple(Statement source) {
+            super(SIMPLE, source);
+        }
+
+        public abstract void execute(Registers regs);
+    }
+
+    public static final class Move extends Simple {
+
+        private final Operand.Slot dst;
+        private final Operand src;
+
+        public Move(Statement source, Operand.Slot dst, Operand src) {
+            super(source);
+            this.dst = dst;
+            this.src = src;
+        }
+
+        @Override
+        public void execute(Registers regs) {
+            this.dst.write(regs, this.src.read(regs));
+        }
+    }
+
+    public static final class MoveLong extends Simple {
+
+        private final int dst;
+        private final Operand src;
+
+        public MoveLong(Statement source, int dst, Operand src) {
+            super(source);
+            this.dst = dst;
+            this.src = src;
+        }
+
+        @Override
+        public void execute(Registers regs) {
+            regs.longs[this.dst] = this.src.readLong(regs);
+        }
+    }
+
+    public static final class MoveDouble extends Simple {
+
+        private final int dst;
+        private final Operand src;
+
+        public MoveDouble(Statement source, int dst, Operand src) {
+            super(source);
+            this.dst = dst;
+            this.src = src;
+        }
+
+        @Override
+        public void execute(Registers regs) {
+            regs.doubles[this.dst] = this.src.readDouble(regs);
+        }
+    }
+
+    public static abstract class Unary extends Simple {
+
+        protected final Operand.Slot dst;
+        protected final Operand src;
+
+        protected Unary(Statement source, Operand.Slot dst, Operand src) {
+            super(source);
+            this.dst = dst;
+            this.src = src;
+        }
+    }
+
+    public static abstract class Binary extends Simple {
+
+        protected final Operand.Slot dst;
+        protected final Operand lhs;
+        protected final Operand rhs;
+
+        protected Binary(Statement source, Operand.Slot dst, Operand lhs, Operand rhs) {
+            super(source);
+            this.dst = dst;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+    }
+
+    public static final class MakeRef extends Simple {
+
+        private final Operand.Slot dst;
+        private final Operand.Slot referent;
+        private final Binding binding;
+
+        public MakeRef(Statement source, Operand.Slot dst, Operand.Slot referent, Binding binding) {
+            super(source);
+            this.dst = dst;
+            this.referent = referent;
+            this.binding = binding;
+        }
+
+        @Override
+        public void execute(final Registers regs) {
+            // values are boxed (and unboxed) when going through the reference
+            final Operand.Slot slot = this.referent;
+            this.dst.write(regs, new BindingRef(this.binding) {
+                @Override
+                public void storeValue(Value value) {
+                    slot.write(regs, value);
+                }
+
+                @Override
+                public Value loadValue() {
+                    return slot.read(regs);
+                }
+            });
+        }
+    }
+
+    public static final class LoadRef extends Simple {
+
+        private final Operand.Slot dst;
+        private final Operand ref;
+
+        public LoadRef(Statement source, Operand.Slot dst, Operand ref) {
+            super(source);
+            this.dst = dst;
+            this.ref = ref;
+        }
+
+        @Override
+        public void execute(Registers regs) {
+            this.dst.write(regs, ((BindingRef) this.ref.read(regs)).loadValue());
+        }
+    }
+
+    public static final class StoreRef extends Simple {
+
+        private final Operand ref;
+        private final Operand src;
+
+        public StoreRef(Statement source, Operand ref, Operand src) {
+            super(source);
+            this.ref = ref;
+            this.src = src;
+        }
+
+        @Override
+        public void execute(Registers regs) {
+            ((BindingRef) this.ref.read(regs)).storeValue(this.src.read(regs));
+        }
+    }
+
+    // ***** Nodes that transfer control *****
+
+    public static final class Jump extends Node {
+
+        public final PreparedBlock target;
+
+        public Jump(Statement source, PreparedBlock target) {
+            super(JUMP, source);
+            this.target = target;
+        }
+    }
+
+    public static abstract class Branch extends Node {
+
+        public final PreparedBlock ifTrue;
+        public final PreparedBlock ifFalse;
+
+        protected final Operand lhs;
+        protected final Operand rhs;
+
+        protected Branch(Statement source, Operand lhs, Operand rhs, PreparedBlock ifTrue, PreparedBlock ifFalse) {
+            super(BRANCH, source);
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+        }
+
+        public abstract boolean test(Registers regs);
+    }
+
+    public static final class Return extends Node {
+
+        public final Operand value;
+
+        public Return(Statement source, Operand value) {
+            super(RETURN, source);
+            this.value = value;
+        }
+    }
+
+    public static final class Call extends Node {
+
+        public final Operand.Slot dst;
+        public final Operand sub;
+        public final Operand arg;
+
+        // native handler this site was last bound to, see Emulator::bind
+        public Emulator.NativeBinding binding;
+
+        public Call(Statement source, Operand.Slot dst, Operand sub, Operand arg) {
+            super(CALL, source);
+            this.dst = dst;
+            this.sub = sub;
+            this.arg = arg;
+        }
+    }
+
+    public static final class TailCall extends Node {
+
+        public final Operand sub;
+        public final Operand arg;
+
+        public Emulator.NativeBinding binding;
+
+        public TailCall(Statement source, Operand sub, Operand arg) {
+            super(TAIL_CALL, source);
+            this.sub = sub;
+            this.arg = arg;
+        }
+    }
+
+    // ***** Operator specialization *****
+
+    public static Simple move(MoveStatement stmt, Operand.Slot dst, Operand src) {
+        if (dst instanceof Operand.LongSlot) {
+            return new MoveLong(stmt, dst.slot, src);
+        }
+        if (dst instanceof Operand.DoubleSlot) {
+            return new MoveDouble(stmt, dst.slot, src);
+        }
+        return new Move(stmt, dst, src);
+    }
+
+    public static Unary unary(UnaryStatement stmt, Operand.Slot dst, Operand src) {
+        switch (stmt.operator) {
+        case NOT_I:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, ~this.src.readLong(regs));
+                }
+            };
+        case NEG_I:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, -(int) this.src.readLong(regs));
+                }
+            };
+        case POS_I:
+            // +k yields k
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, this.src.readLong(regs));
+                }
+            };
+        case POS_D:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.src.readDouble(regs));
+                }
+            };
+        case NOT_Z:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, this.src.readLong(regs) == 0 ? 1 : 0);
+                }
+            };
+        case NEG_D:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, -this.src.readDouble(regs));
+                }
+            };
+        case I2D:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.src.readLong(regs));
+                }
+            };
+        case D2I:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, (int) this.src.readDouble(regs));
+                }
+            };
+        case I2Z:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, this.src.readLong(regs) != 0 ? 1 : 0);
+                }
+            };
+        case Z2I:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, this.src.readLong(regs));
+                }
+            };
+        case I2B:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, (byte) this.src.readLong(regs));
+                }
+            };
+        case B2I:
+            return new Unary(stmt, dst, src) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, (int) this.src.readLong(regs));
+                }
+            };
+        default:
+            throw new AssertionError("Unhandled unary operator " + stmt.operator);
+        }
+    }
+
+    public static Binary binary(BinaryStatement stmt, Operand.Slot dst, Operand lhs, Operand rhs) {
+        // integer operators promote to 32 bits unless one side is wider
+        // (same as ImmInteger), decided here using the static types
+        final boolean wide = isWide(stmt.lhs.getType()) || isWide(stmt.rhs.getType());
+
+        switch (stmt.operator) {
+        case AND_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a & b : (int) a & (int) b);
+                }
+            };
+        case OR_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a | b : (int) a | (int) b);
+                }
+            };
+        case XOR_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a ^ b : (int) a ^ (int) b);
+                }
+            };
+        case ADD_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a + b : (int) a + (int) b);
+                }
+            };
+        case SUB_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a - b : (int) a - (int) b);
+                }
+            };
+        case MUL_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a * b : (int) a * (int) b);
+                }
+            };
+        case DIV_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a / b : (int) a / (int) b);
+                }
+            };
+        case MOD_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final long a = this.lhs.readLong(regs);
+                    final long b = this.rhs.readLong(regs);
+                    this.dst.writeLong(regs, wide ? a % b : (int) a % (int) b);
+                }
+            };
+        case CMP_II:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, Long.compare(this.lhs.readLong(regs), this.rhs.readLong(regs)));
+                }
+            };
+        case ADD_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.lhs.readDouble(regs) + this.rhs.readDouble(regs));
+                }
+            };
+        case SUB_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.lhs.readDouble(regs) - this.rhs.readDouble(regs));
+                }
+            };
+        case MUL_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.lhs.readDouble(regs) * this.rhs.readDouble(regs));
+                }
+            };
+        case DIV_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.lhs.readDouble(regs) / this.rhs.readDouble(regs));
+                }
+            };
+        case MOD_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeDouble(regs, this.lhs.readDouble(regs) % this.rhs.readDouble(regs));
+                }
+            };
+        case CMP_DD:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, Double.compare(this.lhs.readDouble(regs), this.rhs.readDouble(regs)));
+                }
+            };
+        case CMP_CC:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    this.dst.writeLong(regs, Character.compare((char) this.lhs.readLong(regs), (char) this.rhs.readLong(regs)));
+                }
+            };
+        case CMP_SS:
+            return new Binary(stmt, dst, lhs, rhs) {
+                @Override
+                public void execute(Registers regs) {
+                    final String a = ((ImmString) this.lhs.read(regs)).content;
+                    final String b = ((ImmString) this.rhs.read(regs)).content;
+                    this.dst.writeLong(regs, a.compareTo(b));
+                }
+            };
+        default:
+            throw new AssertionError("Unhandled binary operator " + stmt.operator);
+        }
+    }
+
+    public static Branch branch(ConditionalJumpStatement stmt, Operand lhs, Operand rhs, PreparedBlock ifTrue, PreparedBlock ifFalse) {
+        switch (stmt.operator) {
+        case EQ_II:
+        case EQ_CC:
+        case EQ_ZZ:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) == this.rhs.readLong(regs);
+                }
+            };
+        case NE_II:
+        case NE_CC:
+        case NE_ZZ:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) != this.rhs.readLong(regs);
+                }
+            };
+        case LT_II:
+        case LT_CC:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) < this.rhs.readLong(regs);
+                }
+            };
+        case LE_II:
+        case LE_CC:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) <= this.rhs.readLong(regs);
+                }
+            };
+        case GE_II:
+        case GE_CC:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) >= this.rhs.readLong(regs);
+                }
+            };
+        case GT_II:
+        case GT_CC:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readLong(regs) > this.rhs.readLong(regs);
+                }
+            };
+        case EQ_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) == this.rhs.readDouble(regs);
+                }
+            };
+        case NE_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) != this.rhs.readDouble(regs);
+                }
+            };
+        case LT_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) < this.rhs.readDouble(regs);
+                }
+            };
+        case LE_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) <= this.rhs.readDouble(regs);
+                }
+            };
+        case GE_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) >= this.rhs.readDouble(regs);
+                }
+            };
+        case GT_DD:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return this.lhs.readDouble(regs) > this.rhs.readDouble(regs);
+                }
+            };
+        case EQ_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return ((ImmString) this.lhs.read(regs)).content.equals(((ImmString) this.rhs.read(regs)).content);
+                }
+            };
+        case NE_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return !((ImmString) this.lhs.read(regs)).content.equals(((ImmString) this.rhs.read(regs)).content);
+                }
+            };
+        case LT_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return ((ImmString) this.lhs.read(regs)).content.compareTo(((ImmString) this.rhs.read(regs)).content) < 0;
+                }
+            };
+        case LE_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return ((ImmString) this.lhs.read(regs)).content.compareTo(((ImmString) this.rhs.read(regs)).content) <= 0;
+                }
+            };
+        case GE_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return ((ImmString) this.lhs.read(regs)).content.compareTo(((ImmString) this.rhs.read(regs)).content) >= 0;
+                }
+            };
+        case GT_SS:
+            return new Branch(stmt, lhs, rhs, ifTrue, ifFalse) {
+                @Override
+                public boolean test(Registers regs) {
+                    return ((ImmString) this.lhs.read(regs)).content.compareTo(((ImmString) this.rhs.read(regs)).content) > 0;
+                }
+            };
+        default:
+            throw new AssertionError("Unhandled conditional jump operator " + stmt.operator);
+        }
+    }
+
+    private static boolean isWide(Type type) {
+        final Type t = type.expandBound();
+        return t instanceof IntegerType && ((IntegerType) t).getBitWidth() > 32;
+    }
+}
@@ -0,0 +1,198 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.Arrays;
+
+import com.ymcmp.midform.tac.type.TupleType;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// Operands are resolved once so that reading them during execution
+// is either a constant, a register access or a tuple built from those.
+// Reading a primitive through read boxes it, which is what readLong and
+// readDouble avoid.
+/* package */ abstract class Operand {
+
+    public abstract Value read(Registers regs);
+
+    public long readLong(Registers regs) {
+        return Registers.unboxLong(this.read(regs));
+    }
+
+    public double readDouble(Registers regs) {
+        return ((ImmDouble) this.read(regs)).content;
+    }
+
+    public static final class Constant extends Operand {
+
+        public final Value value;
+
+        // unboxed once, if the value is a primitive
+        private final long longValue;
+        private final double doubleValue;
+
+        public Constant(Value value) {
+            this.value = value;
+
+            if (value instanceof ImmDouble) {
+                this.longValue = 0;
+                this.doubleValue = ((ImmDouble) value).content;
+            } else if (value instanceof ImmInteger || value instanceof ImmBoolean || value instanceof ImmCharacter) {
+                this.longValue = Registers.unboxLong(value);
+                this.doubleValue = 0;
+            } else {
+                this.longValue = 0;
+                this.doubleValue = 0;
+            }
+        }
+
+        @Override
+        public Value read(Registers regs) {
+            return this.value;
+        }
+
+        @Override
+        public long readLong(Registers regs) {
+            return this.longValue;
+        }
+
+        @Override
+        public double readDouble(Registers regs) {
+            return this.doubleValue;
+        }
+    }
+
+    public static abstract class Slot extends Operand {
+
+        public final int slot;
+
+        protected Slot(int slot) {
+            this.slot = slot;
+        }
+
+        public abstract void write(Registers regs, Value value);
+
+        public abstract void writeLong(Registers regs, long value);
+
+        public abstract void writeDouble(Registers regs, double value);
+    }
+
+    public static final class ValueSlot extends Slot {
+
+        private final Type type;
+
+        public ValueSlot(int slot, Type type) {
+            super(slot);
+            this.type = type;
+        }
+
+        @Override
+        public Value read(Registers regs) {
+            return regs.values[this.slot];
+        }
+
+        @Override
+        public void write(Registers regs, Value value) {
+            regs.values[this.slot] = value;
+        }
+
+        @Override
+        public void writeLong(Registers regs, long value) {
+            regs.values[this.slot] = Registers.boxLong(this.type, value);
+        }
+
+        @Override
+        public void writeDouble(Registers regs, double value) {
+            regs.values[this.slot] = new ImmDouble(value);
+        }
+    }
+
+    public static final class LongSlot extends Slot {
+
+        private final Type type;
+
+        public LongSlot(int slot, Type type) {
+            super(slot);
+            this.type = type;
+        }
+
+        @Override
+        public Value read(Registers regs) {
+            return Registers.boxLong(this.type, regs.longs[this.slot]);
+        }
+
+        @Override
+        public long readLong(Registers regs) {
+            return regs.longs[this.slot];
+        }
+
+        @Override
+        public void write(Registers regs, Value value) {
+            regs.longs[this.slot] = Registers.unboxLong(value);
+        }
+
+        @Override
+        public void writeLong(Registers regs, long value) {
+            regs.longs[this.slot] = value;
+        }
+
+        @Override
+        public void writeDouble(Registers regs, double value) {
+            throw new EmulatorException("Cannot store double into integral slot " + this.slot);
+        }
+    }
+
+    public static final class DoubleSlot extends Slot {
+
+        public DoubleSlot(int slot) {
+            super(slot);
+        }
+
+        @Override
+        public Value read(Registers regs) {
+            return new ImmDouble(regs.doubles[this.slot]);
+        }
+
+        @Override
+        public double readDouble(Registers regs) {
+            return regs.doubles[this.slot];
+        }
+
+        @Override
+        public void write(Registers regs, Value value) {
+            regs.doubles[this.slot] = ((ImmDouble) value).content;
+        }
+
+        @Override
+        public void writeLong(Registers regs, long value) {
+            throw new EmulatorException("Cannot store integral into double slot " + this.slot);
+        }
+
+        @Override
+        public void writeDouble(Registers regs, double value) {
+            regs.doubles[this.slot] = value;
+        }
+    }
+
+    public static final class Aggregate extends Operand {
+
+        public final Operand[] elements;
+        private final TupleType type;
+
+        public Aggregate(Operand[] elements, TupleType type) {
+            this.elements = elements;
+            this.type = type;
+        }
+
+        @Override
+        public Value read(Registers regs) {
+            final Value[] values = new Value[this.elements.length];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = this.elements[i].read(regs);
+            }
+            return new Tuple(Arrays.asList(values), this.type);
+        }
+    }
+}
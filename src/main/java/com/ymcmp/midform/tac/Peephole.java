@@ -0,0 +1,418 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.statement.BinaryStatement.BinaryOperator;
+import com.ymcmp.midform.tac.statement.ConditionalJumpStatement.ConditionalOperator;
+import com.ymcmp.midform.tac.statement.UnaryStatement.UnaryOperator;
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.value.*;
+
+// Algebraic simplification driven by a table of rewrite rules. Constant
+// folding only kicks in once every operand is known; these handle the
+// cases where only some are (x + 0, x * 0, x - x, jumps comparing x to
+// itself) and combine chains of constants (x + 1 + 2 becomes x + 3).
+//
+// Every rule is registered under the operator of the statement it
+// matches, and rewrites it to something simpler (or null if it does not
+// apply). A statement is rewritten until no rule matches it anymore.
+// Rules that look at how an operand was computed only do so if that
+// operand and everything its computation read are stable, since the
+// computation is effectively moved to where the operand is read.
+//
+// How often each rule fired is counted over all subroutines (see
+// getFireCounts and writeReport).
+public final class Peephole {
+
+    @FunctionalInterface
+    private interface Rewrite<S extends Statement> {
+
+        public Statement apply(S stmt, Peephole ctx);
+    }
+
+    private static final class Rule<S extends Statement> {
+
+        public final String name;
+        public final Rewrite<S> rewrite;
+        public final AtomicLong fired = new AtomicLong();
+
+        public Rule(String name, Rewrite<S> rewrite) {
+            this.name = name;
+            this.rewrite = rewrite;
+        }
+    }
+
+    // in case the rules ever end up going in circles
+    private static final int MAX_REWRITES = 16;
+
+    private static final List<Rule<?>> RULES = new ArrayList<>();
+    private static final EnumMap<BinaryOperator, List<Rule<BinaryStatement>>> BINARY_RULES = new EnumMap<>(BinaryOperator.class);
+    private static final EnumMap<UnaryOperator, List<Rule<UnaryStatement>>> UNARY_RULES = new EnumMap<>(UnaryOperator.class);
+    private static final EnumMap<ConditionalOperator, List<Rule<ConditionalJumpStatement>>> JUMP_RULES = new EnumMap<>(ConditionalOperator.class);
+
+    static {
+        // ***** Identities *****
+        // (commutative operators match the constant on either side)
+
+        binary("add.ii x, 0 -> x", (s, c) -> moveFrom(s.dst, besides(s, 0)), BinaryOperator.ADD_II);
+        binary("sub.ii x, 0 -> x", (s, c) -> isInt(s.rhs, 0) ? move(s.dst, s.lhs) : null, BinaryOperator.SUB_II);
+        binary("sub.ii 0, x -> neg.i x", (s, c) -> isInt(s.lhs, 0) ? unaryOf(UnaryOperator.NEG_I, s.dst, s.rhs) : null, BinaryOperator.SUB_II);
+        binary("sub.ii x, x -> 0", (s, c) -> s.lhs.equals(s.rhs) ? move(s.dst, integer(0)) : null, BinaryOperator.SUB_II);
+        binary("mul.ii x, 1 -> x", (s, c) -> moveFrom(s.dst, besides(s, 1)), BinaryOperator.MUL_II);
+        binary("mul.ii x, 0 -> 0", (s, c) -> besides(s, 0) != null ? move(s.dst, integer(0)) : null, BinaryOperator.MUL_II);
+        binary("mul.ii x, -1 -> neg.i x", (s, c) -> {
+            final Value x = besides(s, -1);
+            return x == null ? null : unaryOf(UnaryOperator.NEG_I, s.dst, x);
+        }, BinaryOperator.MUL_II);
+        binary("div.ii x, 1 -> x", (s, c) -> isInt(s.rhs, 1) ? move(s.dst, s.lhs) : null, BinaryOperator.DIV_II);
+        binary("div.ii x, -1 -> neg.i x", (s, c) -> isInt(s.rhs, -1) ? unaryOf(UnaryOperator.NEG_I, s.dst, s.lhs) : null, BinaryOperator.DIV_II);
+        binary("mod.ii x, 1|-1 -> 0", (s, c) -> isInt(s.rhs, 1) || isInt(s.rhs, -1) ? move(s.dst, integer(0)) : null, BinaryOperator.MOD_II);
+        binary("and.ii x, 0 -> 0", (s, c) -> besides(s, 0) != null ? move(s.dst, integer(0)) : null, BinaryOperator.AND_II);
+        binary("and.ii x, -1 -> x", (s, c) -> moveFrom(s.dst, besides(s, -1)), BinaryOperator.AND_II);
+        binary("or.ii x, 0 -> x", (s, c) -> moveFrom(s.dst, besides(s, 0)), BinaryOperator.OR_II);
+        binary("or.ii x, -1 -> -1", (s, c) -> besides(s, -1) != null ? move(s.dst, integer(-1)) : null, BinaryOperator.OR_II);
+        binary("xor.ii x, 0 -> x", (s, c) -> moveFrom(s.dst, besides(s, 0)), BinaryOperator.XOR_II);
+        binary("xor.ii x, -1 -> not.i x", (s, c) -> {
+            final Value x = besides(s, -1);
+            return x == null ? null : unaryOf(UnaryOperator.NOT_I, s.dst, x);
+        }, BinaryOperator.XOR_II);
+        binary("xor.ii x, x -> 0", (s, c) -> s.lhs.equals(s.rhs) ? move(s.dst, integer(0)) : null, BinaryOperator.XOR_II);
+        binary("op x, x -> x", (s, c) -> s.lhs.equals(s.rhs) ? move(s.dst, s.lhs) : null, BinaryOperator.AND_II, BinaryOperator.OR_II);
+        binary("cmp x, x -> 0", (s, c) -> s.lhs.equals(s.rhs) ? move(s.dst, integer(0)) : null,
+                BinaryOperator.CMP_II, BinaryOperator.CMP_CC, BinaryOperator.CMP_SS);
+
+        // only the ones that hold for every double (-0.0 and NaN included)
+        binary("mul.dd x, 1.0 -> x", (s, c) -> {
+            if (isDouble(s.rhs, 1.0)) return move(s.dst, s.lhs);
+            if (isDouble(s.lhs, 1.0)) return move(s.dst, s.rhs);
+            return null;
+        }, BinaryOperator.MUL_DD);
+        binary("div.dd x, 1.0 -> x", (s, c) -> isDouble(s.rhs, 1.0) ? move(s.dst, s.lhs) : null, BinaryOperator.DIV_DD);
+        binary("sub.dd x, 0.0 -> x", (s, c) -> isDouble(s.rhs, 0.0) ? move(s.dst, s.lhs) : null, BinaryOperator.SUB_DD);
+
+        unary("pos x -> x", (s, c) -> move(s.dst, s.src), UnaryOperator.POS_I, UnaryOperator.POS_D);
+        unary("op (op x) -> x", (s, c) -> {
+            final Statement def = c.definitionOf(s.src);
+            if (def instanceof UnaryStatement && ((UnaryStatement) def).operator == s.operator) {
+                return move(s.dst, ((UnaryStatement) def).src);
+            }
+            return null;
+        }, UnaryOperator.NEG_I, UnaryOperator.NOT_I, UnaryOperator.NEG_D, UnaryOperator.NOT_Z);
+        unary("i2b (b2i x) -> x", (s, c) -> {
+            final Statement def = c.definitionOf(s.src);
+            if (def instanceof UnaryStatement && ((UnaryStatement) def).operator == UnaryOperator.B2I) {
+                return move(s.dst, ((UnaryStatement) def).src);
+            }
+            return null;
+        }, UnaryOperator.I2B);
+
+        // ***** Reassociation *****
+
+        binary("op (op x, k1), k2 -> op x, k1 op k2", (s, c) -> {
+            final Value[] outer = splitConstant(s);
+            final Statement def = outer == null ? null : c.definitionOf(outer[0]);
+            if (!(def instanceof BinaryStatement) || ((BinaryStatement) def).operator != s.operator) {
+                return null;
+            }
+            final Value[] inner = splitConstant((BinaryStatement) def);
+            if (inner == null) {
+                return null;
+            }
+            return new BinaryStatement(s.operator, s.dst, inner[0], s.operator.evaluate(inner[1], outer[1]));
+        }, BinaryOperator.ADD_II, BinaryOperator.MUL_II, BinaryOperator.AND_II, BinaryOperator.OR_II, BinaryOperator.XOR_II);
+        binary("add/sub (add/sub x, k1), k2 -> add x, k", (s, c) -> {
+            // x + k1 - k2, x - k1 + k2 and x - k1 - k2 all add a constant
+            final Value[] outer = offsetOf(s);
+            final Statement def = outer == null ? null : c.definitionOf(outer[0]);
+            if (!(def instanceof BinaryStatement)) {
+                return null;
+            }
+            final BinaryStatement bin = (BinaryStatement) def;
+            final Value[] inner = offsetOf(bin);
+            if (inner == null || bin.operator == BinaryOperator.ADD_II && s.operator == BinaryOperator.ADD_II) {
+                // the rule above handles additions only
+                return null;
+            }
+            return new BinaryStatement(BinaryOperator.ADD_II, s.dst, inner[0], BinaryOperator.ADD_II.evaluate(inner[1], outer[1]));
+        }, BinaryOperator.ADD_II, BinaryOperator.SUB_II);
+
+        // ***** Jumps *****
+
+        jump("cond L, L, x, y -> jmp L", (s, c) -> s.ifTrue == s.ifFalse ? new GotoStatement(s.ifTrue) : null, ConditionalOperator.values());
+        jump("cond x, x -> jmp", (s, c) -> {
+            if (!s.lhs.equals(s.rhs)) {
+                return null;
+            }
+            final String relation = relationOf(s.operator);
+            return new GotoStatement(relation.equals("EQ") || relation.equals("LE") || relation.equals("GE") ? s.ifTrue : s.ifFalse);
+        }, filter(ConditionalOperator.values(), "_DD", false));
+        jump("cond.ii (cmp x, y), 0 -> cond x, y", (s, c) -> {
+            final Value result;
+            final String relation;
+            if (isInt(s.rhs, 0)) {
+                result = s.lhs;
+                relation = relationOf(s.operator);
+            } else if (isInt(s.lhs, 0)) {
+                result = s.rhs;
+                relation = relationOf(mirror(s.operator));
+            } else {
+                return null;
+            }
+
+            final Statement def = c.definitionOf(result);
+            if (!(def instanceof BinaryStatement)) {
+                return null;
+            }
+            final BinaryStatement cmp = (BinaryStatement) def;
+            switch (cmp.operator) {
+            case CMP_II:
+                return new ConditionalJumpStatement(ConditionalOperator.valueOf(relation + "_II"), s.ifTrue, s.ifFalse, cmp.lhs, cmp.rhs);
+            case CMP_CC:
+                return new ConditionalJumpStatement(ConditionalOperator.valueOf(relation + "_CC"), s.ifTrue, s.ifFalse, cmp.lhs, cmp.rhs);
+            case CMP_SS:
+                return new ConditionalJumpStatement(ConditionalOperator.valueOf(relation + "_SS"), s.ifTrue, s.ifFalse, cmp.lhs, cmp.rhs);
+            default:
+                // cmp.dd orders NaN, the jumps do not
+                return null;
+            }
+        }, filter(ConditionalOperator.values(), "_II", true));
+    }
+
+    private final DataFlowAnalysis flow;
+
+    private Peephole(DataFlowAnalysis flow) {
+        this.flow = flow;
+    }
+
+    /* package */ static Set<Block> simplify(Subroutine sub) {
+        // returns the blocks that were changed
+        final Peephole ctx = new Peephole(sub.getDataFlowAnalysis());
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (final Block block : ctx.flow.getControlFlowGraph().getBlocks()) {
+            final List<Statement> stmts = block.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts);
+            boolean changed = false;
+            for (int i = 0; i < repl.size(); ++i) {
+                final Statement stmt = repl.get(i);
+                final Statement next = ctx.rewrite(stmt);
+                if (next != stmt) {
+                    repl.set(i, next);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                block.setStatements(repl);
+                mod.add(block);
+            }
+        }
+        return mod;
+    }
+
+    private Statement rewrite(Statement stmt) {
+        Statement current = stmt;
+        for (int n = 0; n < MAX_REWRITES; ++n) {
+            final Statement next = this.applyFirst(current);
+            if (next == null) {
+                break;
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Statement applyFirst(Statement stmt) {
+        // the result of the first rule that matches (null if none do)
+        final List<? extends Rule<?>> rules;
+        if (stmt instanceof BinaryStatement) {
+            rules = BINARY_RULES.get(((BinaryStatement) stmt).operator);
+        } else if (stmt instanceof UnaryStatement) {
+            rules = UNARY_RULES.get(((UnaryStatement) stmt).operator);
+        } else if (stmt instanceof ConditionalJumpStatement) {
+            rules = JUMP_RULES.get(((ConditionalJumpStatement) stmt).operator);
+        } else {
+            return null;
+        }
+        if (rules == null) {
+            return null;
+        }
+
+        for (final Rule<?> rule : rules) {
+            final Statement result = ((Rule<Statement>) rule).rewrite.apply(stmt, this);
+            if (result != null) {
+                rule.fired.incrementAndGet();
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private Statement definitionOf(Value value) {
+        // the statement that computed the value, if it can be looked at
+        // from wherever the value is read
+        if (!(value instanceof Binding) || !this.flow.isStable(value)) {
+            return null;
+        }
+
+        final DataFlowAnalysis.Definition def = this.flow.getDefinitions((Binding) value).get(0);
+        if (def.isParameter()) {
+            return null;
+        }
+        for (final Value input : def.statement.getInputs()) {
+            if (!this.flow.isStable(input)) {
+                return null;
+            }
+        }
+        return def.statement;
+    }
+
+    // ***** Fire counts *****
+
+    public static Map<String, Long> getFireCounts() {
+        // by rule, in the order the rules are tried
+        final LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+        for (final Rule<?> rule : RULES) {
+            counts.put(rule.name, rule.fired.get());
+        }
+        return counts;
+    }
+
+    public static void resetFireCounts() {
+        for (final Rule<?> rule : RULES) {
+            rule.fired.set(0);
+        }
+    }
+
+    public static void writeReport(PrintStream out) {
+        // most fired first, rules that never fired are left out
+        final ArrayList<Map.Entry<String, Long>> entries = new ArrayList<>(getFireCounts().entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (final Map.Entry<String, Long> entry : entries) {
+            if (entry.getValue() > 0) {
+                out.printf("%12d  %s%n", entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    // ***** Building the table *****
+
+    private static void binary(String name, Rewrite<BinaryStatement> rewrite, BinaryOperator... operators) {
+        register(BINARY_RULES, new Rule<>(name, rewrite), operators);
+    }
+
+    private static void unary(String name, Rewrite<UnaryStatement> rewrite, UnaryOperator... operators) {
+        register(UNARY_RULES, new Rule<>(name, rewrite), operators);
+    }
+
+    private static void jump(String name, Rewrite<ConditionalJumpStatement> rewrite, ConditionalOperator... operators) {
+        register(JUMP_RULES, new Rule<>(name, rewrite), operators);
+    }
+
+    private static <K extends Enum<K>, S extends Statement> void register(EnumMap<K, List<Rule<S>>> table, Rule<S> rule, K[] operators) {
+        RULES.add(rule);
+        for (final K operator : operators) {
+            table.computeIfAbsent(operator, k -> new ArrayList<>()).add(rule);
+        }
+    }
+
+    private static ConditionalOperator[] filter(ConditionalOperator[] operators, String suffix, boolean keep) {
+        final ArrayList<ConditionalOperator> list = new ArrayList<>();
+        for (final ConditionalOperator operator : operators) {
+            if (operator.name().endsWith(suffix) == keep) {
+                list.add(operator);
+            }
+        }
+        return list.toArray(new ConditionalOperator[list.size()]);
+    }
+
+    private static String relationOf(ConditionalOperator operator) {
+        // EQ, NE, LT, LE, GE or GT
+        return operator.name().substring(0, 2);
+    }
+
+    private static ConditionalOperator mirror(ConditionalOperator operator) {
+        // the operator that gives the same result with the operands swapped
+        final String suffix = operator.name().substring(2);
+        switch (relationOf(operator)) {
+        case "LT":  return ConditionalOperator.valueOf("GT" + suffix);
+        case "LE":  return ConditionalOperator.valueOf("GE" + suffix);
+        case "GE":  return ConditionalOperator.valueOf("LE" + suffix);
+        case "GT":  return ConditionalOperator.valueOf("LT" + suffix);
+        default:    return operator;
+        }
+    }
+
+    // ***** Helpers for the rules *****
+
+    private static boolean isConstant(Value value) {
+        return value.isCompileTimeConstant();
+    }
+
+    private static boolean isInt(Value value, long k) {
+        return value instanceof ImmInteger && ((ImmInteger) value).content == k;
+    }
+
+    private static boolean isDouble(Value value, double k) {
+        return value instanceof ImmDouble && Double.compare(((ImmDouble) value).content, k) == 0;
+    }
+
+    private static Value besides(BinaryStatement stmt, long k) {
+        // x for both op x, k and op k, x
+        if (isInt(stmt.rhs, k)) return stmt.lhs;
+        if (isInt(stmt.lhs, k)) return stmt.rhs;
+        return null;
+    }
+
+    private static Value[] splitConstant(BinaryStatement stmt) {
+        // { x, k } for both op x, k and op k, x
+        final boolean lhs = isConstant(stmt.lhs);
+        final boolean rhs = isConstant(stmt.rhs);
+        if (rhs && !lhs) return new Value[] { stmt.lhs, stmt.rhs };
+        if (lhs && !rhs) return new Value[] { stmt.rhs, stmt.lhs };
+        return null;
+    }
+
+    private static Value[] offsetOf(BinaryStatement stmt) {
+        // { x, k } if the statement computes x + k
+        switch (stmt.operator) {
+        case ADD_II:
+            return splitConstant(stmt);
+        case SUB_II:
+            if (isConstant(stmt.rhs) && !isConstant(stmt.lhs)) {
+                return new Value[] { stmt.lhs, BinaryOperator.SUB_II.evaluate(integer(0), stmt.rhs) };
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    private static ImmInteger integer(long k) {
+        return IntegerType.INT32.createImmediate(k);
+    }
+
+    private static Statement move(Binding dst, Value src) {
+        return new MoveStatement(dst, src);
+    }
+
+    private static Statement moveFrom(Binding dst, Value src) {
+        // null if there is nothing to move
+        return src == null ? null : new MoveStatement(dst, src);
+    }
+
+    private static Statement unaryOf(UnaryOperator operator, Binding dst, Value src) {
+        return new UnaryStatement(operator, dst, src);
+    }
+}
@@ -0,0 +1,200 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// The executable form of a subroutine: bindings are numbered densely
+// (per register kind, see Registers) and each block is decoded into an
+// array of nodes. Subroutine caches this until the IR is changed (see
+// Subroutine::invalidatePreparedForm)
+/* package */ final class PreparedSubroutine {
+
+    /* package */ static final class PreparedBlock {
+
+        public final Block block;
+        public Node[] nodes;
+
+        public PreparedBlock(Block block) {
+            this.block = block;
+        }
+    }
+
+    public final Subroutine sub;
+    public final Operand.Slot[] params;
+    public final PreparedBlock entry;
+
+    // profile for tiering up: calls plus block entries. Shared by
+    // all threads, the counter is racy but only needs to be roughly right
+    public int hotness;
+    public volatile boolean jitRejected;
+    public volatile MethodHandleCompiler.Compiled compiled;
+
+    // set if references to slots can be made, which
+    // means the frame might outlive the call
+    public boolean capturesFrame;
+
+    private final HashMap<Binding, Operand.Slot> slots = new HashMap<>();
+    private final IdentityHashMap<Block, PreparedBlock> blocks = new IdentityHashMap<>();
+    private final LinkedList<PreparedBlock> pending = new LinkedList<>();
+
+    private int values;
+    private int longs;
+    private int doubles;
+
+    public PreparedSubroutine(Subroutine sub) {
+        this.sub = sub;
+
+        // Parameters always occupy the first few slots
+        final List<Binding.Parameter> params = sub.getParameters();
+        this.params = new Operand.Slot[params.size()];
+        for (int i = 0; i < this.params.length; ++i) {
+            this.params[i] = this.slotOf(params.get(i));
+        }
+
+        this.entry = this.blockOf(sub.getInitialBlock());
+
+        PreparedBlock block;
+        while ((block = this.pending.pollFirst()) != null) {
+            this.prepareBlock(block);
+        }
+    }
+
+    public Iterable<PreparedBlock> blocks() {
+        return this.blocks.values();
+    }
+
+    public Registers createRegisters() {
+        return new Registers(this.values, this.longs, this.doubles);
+    }
+
+    public boolean fits(Registers regs) {
+        return regs.canHold(this.values, this.longs, this.doubles);
+    }
+
+    private Operand.Slot slotOf(Binding binding) {
+        Operand.Slot slot = this.slots.get(binding);
+        if (slot == null) {
+            // primitives are kept unboxed, everything else is boxed
+            final Type type = binding.getType();
+            if (!Registers.isPrimitive(type)) {
+                slot = new Operand.ValueSlot(this.values++, type);
+            } else if (Registers.isDouble(type)) {
+                slot = new Operand.DoubleSlot(this.doubles++);
+            } else {
+                slot = new Operand.LongSlot(this.longs++, type);
+            }
+            this.slots.put(binding, slot);
+        }
+        return slot;
+    }
+
+    private PreparedBlock blockOf(Block block) {
+        PreparedBlock prepared = this.blocks.get(block);
+        if (prepared == null) {
+            prepared = new PreparedBlock(block);
+            this.blocks.put(block, prepared);
+            this.pending.addLast(prepared);
+        }
+        return prepared;
+    }
+
+    private void prepareBlock(PreparedBlock prepared) {
+        final List<Statement> stmts = prepared.block.getStatements();
+        final Node[] nodes = new Node[stmts.size()];
+
+        int i = 0;
+        for (final Statement stmt : stmts) {
+            nodes[i++] = this.prepareStatement(stmt);
+        }
+        prepared.nodes = nodes;
+    }
+
+    private Node prepareStatement(Statement stmt) {
+        if (stmt instanceof MoveStatement) {
+            final MoveStatement move = (MoveStatement) stmt;
+            return Node.move(move, this.slotOf(move.dst), this.resolve(move.src));
+        }
+        if (stmt instanceof UnaryStatement) {
+            final UnaryStatement unary = (UnaryStatement) stmt;
+            return Node.unary(unary, this.slotOf(unary.dst), this.resolve(unary.src));
+        }
+        if (stmt instanceof BinaryStatement) {
+            final BinaryStatement binary = (BinaryStatement) stmt;
+            return Node.binary(binary, this.slotOf(binary.dst), this.resolve(binary.lhs), this.resolve(binary.rhs));
+        }
+        if (stmt instanceof CallStatement) {
+            final CallStatement call = (CallStatement) stmt;
+            return new Node.Call(stmt, this.slotOf(call.dst), this.resolve(call.sub), this.resolve(call.arg));
+        }
+        if (stmt instanceof TailCallStatement) {
+            final TailCallStatement call = (TailCallStatement) stmt;
+            return new Node.TailCall(stmt, this.resolve(call.sub), this.resolve(call.arg));
+        }
+        if (stmt instanceof ReturnStatement) {
+            final ReturnStatement ret = (ReturnStatement) stmt;
+            return new Node.Return(stmt, this.resolve(ret.value));
+        }
+        if (stmt instanceof GotoStatement) {
+            final GotoStatement jmp = (GotoStatement) stmt;
+            return new Node.Jump(stmt, this.blockOf(jmp.next));
+        }
+        if (stmt instanceof ConditionalJumpStatement) {
+            final ConditionalJumpStatement jmp = (ConditionalJumpStatement) stmt;
+            return Node.branch(jmp, this.resolve(jmp.lhs), this.resolve(jmp.rhs),
+                    this.blockOf(jmp.ifTrue), this.blockOf(jmp.ifFalse));
+        }
+        if (stmt instanceof MakeRefStatement) {
+            // the referent is addressed by slot, not by value
+            final MakeRefStatement mkref = (MakeRefStatement) stmt;
+            this.capturesFrame = true;
+            return new Node.MakeRef(stmt, this.slotOf(mkref.dst), this.slotOf(mkref.src), mkref.src);
+        }
+        if (stmt instanceof LoadRefStatement) {
+            final LoadRefStatement ldref = (LoadRefStatement) stmt;
+            return new Node.LoadRef(stmt, this.slotOf(ldref.dst), this.resolve(ldref.ref));
+        }
+        if (stmt instanceof StoreRefStatement) {
+            final StoreRefStatement stref = (StoreRefStatement) stmt;
+            return new Node.StoreRef(stmt, this.resolve(stref.ref), this.resolve(stref.src));
+        }
+
+        throw new RuntimeException("Unrecognized statement pattern: " + stmt);
+    }
+
+    private Operand resolve(Value value) {
+        if (value instanceof Binding) {
+            return this.slotOf((Binding) value);
+        }
+        if (value instanceof Tuple && containsBinding(value)) {
+            final Tuple tuple = (Tuple) value;
+            final Operand[] elements = new Operand[tuple.values.size()];
+            int i = 0;
+            for (final Value element : tuple.values) {
+                elements[i++] = this.resolve(element);
+            }
+            return new Operand.Aggregate(elements, tuple.type);
+        }
+        return new Operand.Constant(value);
+    }
+
+    private static boolean containsBinding(Value value) {
+        // Value::containsLocalBinding excludes parameters,
+        // but parameters are still read from the frame
+        if (value instanceof Binding) {
+            return true;
+        }
+        if (value instanceof Tuple) {
+            return ((Tuple) value).values.stream().anyMatch(PreparedSubroutine::containsBinding);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,217 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.ymcmp.midform.tac.statement.Statement;
+import com.ymcmp.midform.tac.value.FuncRef;
+
+// Collects execution counts from an Emulator (see Emulator::setProfiler).
+// While attached, the emulator stays in the interpreter tier so that
+// every block, statement and call is observed.
+public final class Profiler {
+
+    private static final class StackNode {
+
+        public final String name;
+        public final StackNode parent;
+        public final HashMap<String, StackNode> children = new HashMap<>();
+
+        // statements executed while this is the top of the stack
+        public long self;
+
+        public StackNode(String name, StackNode parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public StackNode child(String name) {
+            StackNode node = this.children.get(name);
+            if (node == null) {
+                node = new StackNode(name, this);
+                this.children.put(name, node);
+            }
+            return node;
+        }
+    }
+
+    private final IdentityHashMap<Block, long[]> blockEntries = new IdentityHashMap<>();
+    private final IdentityHashMap<Block, Subroutine> blockOwners = new IdentityHashMap<>();
+    private final IdentityHashMap<Statement, long[]> statements = new IdentityHashMap<>();
+    private final HashMap<FuncRef, long[]> calls = new HashMap<>();
+    private final HashMap<FuncRef, long[]> tailCalls = new HashMap<>();
+
+    // count and total time (in nanoseconds) per native handler
+    private final HashMap<String, long[]> nativeCalls = new HashMap<>();
+
+    private final StackNode root = new StackNode("", null);
+    private StackNode current = this.root;
+
+    public void clear() {
+        this.blockEntries.clear();
+        this.blockOwners.clear();
+        this.statements.clear();
+        this.calls.clear();
+        this.tailCalls.clear();
+        this.nativeCalls.clear();
+        this.root.children.clear();
+        this.root.self = 0;
+        this.current = this.root;
+    }
+
+    public long getBlockEntries(Block block) {
+        return count(this.blockEntries.get(block));
+    }
+
+    public long getCalls(FuncRef ref) {
+        return count(this.calls.get(ref));
+    }
+
+    public long getTailCalls(FuncRef ref) {
+        return count(this.tailCalls.get(ref));
+    }
+
+    public long getNativeCalls(String name) {
+        return count(this.nativeCalls.get(name));
+    }
+
+    public Map<String, Long> getStatementCounts() {
+        // grouped by the mnemonic (mov, add.ii, call, ...)
+        final HashMap<String, Long> counts = new HashMap<>();
+        for (final Map.Entry<Statement, long[]> entry : this.statements.entrySet()) {
+            counts.merge(mnemonicOf(entry.getKey()), entry.getValue()[0], Long::sum);
+        }
+        return counts;
+    }
+
+    // ***** Events from the Emulator *****
+
+    /* package */ Object mark() {
+        return this.current;
+    }
+
+    /* package */ void restore(Object mark) {
+        // used when a call is aborted with an exception
+        this.current = (StackNode) mark;
+    }
+
+    /* package */ void enterSubroutine(Subroutine sub) {
+        this.current = this.current.child(sub.getName());
+    }
+
+    /* package */ void exitSubroutine() {
+        this.current = this.current.parent;
+    }
+
+    /* package */ void replaceSubroutine(Subroutine sub) {
+        // tail calls take over the caller's spot on the stack
+        this.current = this.current.parent.child(sub.getName());
+    }
+
+    /* package */ void enterBlock(Subroutine sub, Block block) {
+        bump(this.blockEntries, block);
+        this.blockOwners.put(block, sub);
+    }
+
+    /* package */ void executeStatement(Statement stmt) {
+        bump(this.statements, stmt);
+        ++this.current.self;
+    }
+
+    /* package */ void call(FuncRef ref) {
+        bump(this.calls, ref);
+    }
+
+    /* package */ void tailCall(FuncRef ref) {
+        bump(this.tailCalls, ref);
+    }
+
+    /* package */ void nativeCall(String name, long nanos) {
+        final long[] data = this.nativeCalls.computeIfAbsent(name, k -> new long[2]);
+        ++data[0];
+        data[1] += nanos;
+    }
+
+    // ***** Output *****
+
+    public void writeReport(PrintStream out) {
+        out.println("# block entries");
+        writeSorted(out, this.blockEntries, block -> this.blockOwners.get(block).getName() + ":" + block.name);
+
+        out.println();
+        out.println("# statements");
+        final HashMap<String, long[]> stmts = new HashMap<>();
+        for (final Map.Entry<String, Long> entry : this.getStatementCounts().entrySet()) {
+            stmts.put(entry.getKey(), new long[] { entry.getValue() });
+        }
+        writeSorted(out, stmts, Function.identity());
+
+        out.println();
+        out.println("# calls");
+        writeSorted(out, this.calls, FuncRef::toString);
+
+        out.println();
+        out.println("# tail calls");
+        writeSorted(out, this.tailCalls, FuncRef::toString);
+
+        out.println();
+        out.println("# native handlers (calls, total ms)");
+        final ArrayList<Map.Entry<String, long[]>> natives = new ArrayList<>(this.nativeCalls.entrySet());
+        natives.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+        for (final Map.Entry<String, long[]> entry : natives) {
+            final long[] data = entry.getValue();
+            out.printf("%12d %12.3f  %s%n", data[0], data[1] / 1e6, entry.getKey());
+        }
+    }
+
+    public void writeCollapsedStacks(PrintStream out) {
+        // one line per stack: main;foo;bar <statements executed>
+        // which is what flamegraph.pl and friends expect
+        for (final StackNode node : this.root.children.values()) {
+            writeCollapsed(out, node, node.name);
+        }
+    }
+
+    private static void writeCollapsed(PrintStream out, StackNode node, String path) {
+        if (node.self > 0) {
+            out.println(path + " " + node.self);
+        }
+        for (final StackNode child : node.children.values()) {
+            writeCollapsed(out, child, path + ";" + child.name);
+        }
+    }
+
+    private static <K> void writeSorted(PrintStream out, Map<K, long[]> data, Function<? super K, String> naming) {
+        final ArrayList<Map.Entry<K, long[]>> entries = new ArrayList<>(data.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for (final Map.Entry<K, long[]> entry : entries) {
+            out.printf("%12d  %s%n", entry.getValue()[0], naming.apply(entry.getKey()));
+        }
+    }
+
+    private static <K> void bump(Map<K, long[]> map, K key) {
+        long[] counter = map.get(key);
+        if (counter == null) {
+            counter = new long[1];
+            map.put(key, counter);
+        }
+        ++counter[0];
+    }
+
+    private static long count(long[] counter) {
+        return counter == null ? 0 : counter[0];
+    }
+
+    private static String mnemonicOf(Statement stmt) {
+        final String str = stmt.toString();
+        final int split = str.indexOf(' ');
+        return split < 0 ? str : str.substring(0, split);
+    }
+}
@@ -0,0 +1,264 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Optimizes a whole program. Optimizing a subroutine can help its callers
+// (it might become small enough to inline or cheap enough to evaluate), so
+// subroutines are grouped into the strongly connected components of the
+// call graph and the components are optimized callees first. Within a
+// component, only the callers of subroutines that changed are optimized
+// again.
+public final class ProgramOptimizer {
+
+    // A component and the components waiting for it to finish
+    private static final class Component extends RecursiveAction {
+
+        public final List<Subroutine> members;
+        public final List<Component> dependents = new ArrayList<>();
+        public final AtomicInteger waiting = new AtomicInteger();
+
+        // shared by all components of one run
+        private final CountDownLatch done;
+        private final AtomicBoolean modified;
+        private final AtomicReference<Throwable> failure;
+
+        public Component(List<Subroutine> members, CountDownLatch done, AtomicBoolean modified, AtomicReference<Throwable> failure) {
+            this.members = members;
+            this.done = done;
+            this.modified = modified;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                // no point in continuing if something already went wrong
+                if (this.failure.get() == null && optimizeComponent(this.members)) {
+                    this.modified.set(true);
+                }
+            } catch (Throwable ex) {
+                this.failure.compareAndSet(null, ex);
+            } finally {
+                for (final Component dependent : this.dependents) {
+                    if (dependent.waiting.decrementAndGet() == 0) {
+                        dependent.fork();
+                    }
+                }
+                this.done.countDown();
+            }
+        }
+    }
+
+    private ProgramOptimizer() {
+    }
+
+    public static boolean optimizeAll(Collection<Subroutine> subs) {
+        // one component after another on the calling thread
+        boolean modified = false;
+        for (final List<Subroutine> members : components(subs, callGraph(subs))) {
+            modified |= optimizeComponent(members);
+        }
+        return modified;
+    }
+
+    public static boolean optimizeAll(Collection<Subroutine> subs, ForkJoinPool pool) {
+        // a component is started once all of its callees are done, so
+        // components that do not depend on each other run in parallel
+        final Map<Subroutine, Set<Subroutine>> graph = callGraph(subs);
+        final List<List<Subroutine>> sccs = components(subs, graph);
+
+        final CountDownLatch done = new CountDownLatch(sccs.size());
+        final AtomicBoolean modified = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final HashMap<Subroutine, Component> owners = new HashMap<>();
+        final ArrayList<Component> components = new ArrayList<>(sccs.size());
+        for (final List<Subroutine> members : sccs) {
+            final Component component = new Component(members, done, modified, failure);
+            components.add(component);
+            for (final Subroutine member : members) {
+                owners.put(member, component);
+            }
+        }
+
+        for (final Component component : components) {
+            final HashSet<Component> callees = new HashSet<>();
+            for (final Subroutine member : component.members) {
+                for (final Subroutine callee : graph.get(member)) {
+                    callees.add(owners.get(callee));
+                }
+            }
+            callees.remove(component);
+
+            component.waiting.set(callees.size());
+            for (final Component callee : callees) {
+                callee.dependents.add(component);
+            }
+        }
+
+        // the counters are all set before anything starts
+        for (final Component component : components) {
+            if (component.waiting.get() == 0) {
+                pool.execute(component);
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while optimizing", ex);
+        }
+
+        final Throwable ex = failure.get();
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        if (ex != null) {
+            throw new RuntimeException(ex);
+        }
+        return modified.get();
+    }
+
+    private static boolean optimizeComponent(List<Subroutine> members) {
+        if (members.size() == 1) {
+            // optimize already reaches a fixpoint for a single subroutine
+            return members.get(0).optimize();
+        }
+
+        final HashSet<Subroutine> inside = new HashSet<>(members);
+        final HashMap<Subroutine, Set<Subroutine>> callers = new HashMap<>();
+        for (final Subroutine member : members) {
+            linkCallers(member, inside, callers);
+        }
+
+        boolean modified = false;
+        final LinkedHashSet<Subroutine> pending = new LinkedHashSet<>(members);
+        while (!pending.isEmpty()) {
+            final Iterator<Subroutine> it = pending.iterator();
+            final Subroutine sub = it.next();
+            it.remove();
+
+            if (sub.optimize()) {
+                modified = true;
+                pending.addAll(callers.getOrDefault(sub, Collections.emptySet()));
+
+                // the calls might have changed too, but only ever to
+                // something that was already reachable
+                for (final Set<Subroutine> set : callers.values()) {
+                    set.remove(sub);
+                }
+                linkCallers(sub, inside, callers);
+            }
+        }
+        return modified;
+    }
+
+    private static void linkCallers(Subroutine sub, Set<Subroutine> inside, Map<Subroutine, Set<Subroutine>> callers) {
+        for (final Subroutine callee : sub.getDirectCallees()) {
+            if (inside.contains(callee)) {
+                callers.computeIfAbsent(callee, k -> new HashSet<>()).add(sub);
+            }
+        }
+    }
+
+    private static Map<Subroutine, Set<Subroutine>> callGraph(Collection<Subroutine> subs) {
+        // calls to subroutines outside of subs are not scheduled
+        final HashSet<Subroutine> known = new HashSet<>(subs);
+        final HashMap<Subroutine, Set<Subroutine>> graph = new HashMap<>();
+        for (final Subroutine sub : subs) {
+            final Set<Subroutine> callees = sub.getDirectCallees();
+            callees.retainAll(known);
+            graph.put(sub, callees);
+        }
+        return graph;
+    }
+
+    private static List<List<Subroutine>> components(Collection<Subroutine> subs, Map<Subroutine, Set<Subroutine>> graph) {
+        // Tarjan's algorithm, which happens to produce the components
+        // callees first. It is iterative since call chains can be long
+        final HashMap<Subroutine, Integer> index = new HashMap<>();
+        final HashMap<Subroutine, Integer> lowlink = new HashMap<>();
+        final HashSet<Subroutine> onStack = new HashSet<>();
+        final ArrayDeque<Subroutine> stack = new ArrayDeque<>();
+        final ArrayList<List<Subroutine>> result = new ArrayList<>();
+
+        // the subroutine being visited and where it is in its callees
+        final ArrayDeque<Subroutine> visiting = new ArrayDeque<>();
+        final ArrayDeque<Iterator<Subroutine>> edges = new ArrayDeque<>();
+
+        for (final Subroutine root : subs) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+
+            index.put(root, index.size());
+            lowlink.put(root, index.get(root));
+            stack.push(root);
+            onStack.add(root);
+            visiting.push(root);
+            edges.push(graph.get(root).iterator());
+
+            while (!visiting.isEmpty()) {
+                final Subroutine sub = visiting.peek();
+                final Iterator<Subroutine> it = edges.peek();
+
+                if (it.hasNext()) {
+                    final Subroutine callee = it.next();
+                    if (!index.containsKey(callee)) {
+                        index.put(callee, index.size());
+                        lowlink.put(callee, index.get(callee));
+                        stack.push(callee);
+                        onStack.add(callee);
+                        visiting.push(callee);
+                        edges.push(graph.get(callee).iterator());
+                    } else if (onStack.contains(callee)) {
+                        lowlink.put(sub, Math.min(lowlink.get(sub), index.get(callee)));
+                    }
+                    continue;
+                }
+
+                visiting.pop();
+                edges.pop();
+                if (!visiting.isEmpty()) {
+                    final Subroutine caller = visiting.peek();
+                    lowlink.put(caller, Math.min(lowlink.get(caller), lowlink.get(sub)));
+                }
+
+                if (lowlink.get(sub).equals(index.get(sub))) {
+                    final ArrayList<Subroutine> members = new ArrayList<>();
+                    Subroutine member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        members.add(member);
+                    } while (member != sub);
+                    result.add(members);
+                }
+            }
+        }
+        return result;
+    }
+}
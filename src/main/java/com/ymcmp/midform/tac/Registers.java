@@ -0,0 +1,58 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import static com.ymcmp.midform.tac.type.Types.equivalent;
+
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.type.Type;
+import com.ymcmp.midform.tac.value.*;
+
+// Storage for the bindings of a running subroutine. Integers, chars and
+// bools live unboxed in longs, doubles live in doubles, everything else
+// (tuples, strings, references, ...) is kept as is in values.
+/* package */ final class Registers {
+
+    public final Value[] values;
+    public final long[] longs;
+    public final double[] doubles;
+
+    public Registers(int values, int longs, int doubles) {
+        this.values = new Value[values];
+        this.longs = new long[longs];
+        this.doubles = new double[doubles];
+    }
+
+    public boolean canHold(int values, int longs, int doubles) {
+        return this.values.length >= values
+            && this.longs.length >= longs
+            && this.doubles.length >= doubles;
+    }
+
+    // ***** Boxing rules *****
+
+    public static boolean isDouble(Type type) {
+        return equivalent(ImmDouble.TYPE, type);
+    }
+
+    public static boolean isPrimitive(Type type) {
+        return type.expandBound() instanceof IntegerType
+            || equivalent(ImmBoolean.TYPE, type)
+            || equivalent(ImmCharacter.TYPE, type)
+            || equivalent(ImmDouble.TYPE, type);
+    }
+
+    public static long unboxLong(Value value) {
+        if (value instanceof ImmInteger)    return ((ImmInteger) value).content;
+        if (value instanceof ImmBoolean)    return ((ImmBoolean) value).content ? 1 : 0;
+        if (value instanceof ImmCharacter)  return ((ImmCharacter) value).content;
+        throw new RuntimeException("Unrecognized primitive: " + value);
+    }
+
+    public static Value boxLong(Type type, long value) {
+        if (equivalent(ImmBoolean.TYPE, type))      return new ImmBoolean(value != 0);
+        if (equivalent(ImmCharacter.TYPE, type))    return new ImmCharacter((char) value);
+        return ((IntegerType) type.expandBound()).createImmediate(value);
+    }
+}
@@ -0,0 +1,254 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.value.*;
+
+// Renames mutable bindings into static single assignment form: every store
+// gets a fresh immutable binding and reads are replaced by the binding that
+// reaches them. Once renamed, the passes that only deal with immutable
+// bindings (constant folding, copy propagation, dead store removal) work on
+// them too.
+//
+// Where different values meet (the phi nodes), the conversion goes straight
+// to the form out of SSA would produce: each predecessor stores its value
+// into a fresh mutable binding and the join point copies it into a fresh
+// immutable binding. Everything that consumes the IR (the emulator, the JIT
+// and the code generators) therefore keeps working on plain TAC and there is
+// nothing to undo before generating code.
+//
+// Since those merge bindings are mutable themselves, a binding is only
+// renamed if one of its reads is reached by a single store. Otherwise
+// renaming gains nothing, and converting the merge bindings again would
+// never stop.
+/* package */ final class SSAConverter {
+
+    private final DataFlowAnalysis flow;
+    private final ControlFlowGraph cfg;
+
+    private final HashSet<Binding> generated = new HashSet<>();
+    private int counter;
+
+    private SSAConverter(Subroutine sub) {
+        this.flow = sub.getDataFlowAnalysis();
+        this.cfg = this.flow.getControlFlowGraph();
+    }
+
+    public static Set<Block> convert(Subroutine sub) {
+        // returns the blocks that were changed
+        return new SSAConverter(sub).convertAll();
+    }
+
+    private Set<Block> convertAll() {
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (int id = 0; id < this.flow.numberOfBindings(); ++id) {
+            final Binding binding = this.flow.getBinding(id);
+            if (binding instanceof Binding.Mutable && this.isWorthRenaming(binding) && this.canRename(binding)) {
+                final HashMap<Block, Binding.Mutable> merges = this.placeMerges(binding);
+                if (this.isDefinedAtMerges(binding, merges)) {
+                    this.rename(binding, merges, mod);
+                }
+            }
+        }
+        return mod;
+    }
+
+    private boolean isWorthRenaming(Binding binding) {
+        // a reference could be used to change it behind our backs
+        if (this.flow.isAddressTaken(binding)) {
+            return false;
+        }
+
+        for (final Block block : this.cfg.getBlocks()) {
+            // either the store is earlier in the same block or
+            // only one store reaches the start of the block
+            boolean stored = false;
+            for (final Statement stmt : block.getStatements()) {
+                if (reads(stmt, binding) && (stored || this.flow.getReachingDefinitions(block, binding).size() == 1)) {
+                    return true;
+                }
+                if (writes(stmt, binding)) {
+                    stored = true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean canRename(Binding binding) {
+        // some statements refuse to have their operands replaced (ldref
+        // and mkref need the binding itself), those stay as they are
+        final Binding probe = new Binding.Immutable(binding.name, binding.scopeDepth, binding.type);
+        for (final Block block : this.cfg.getBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (reads(stmt, binding) && reads(stmt.replaceRead(binding, probe), binding)) {
+                    return false;
+                }
+                if (writes(stmt, binding) && writes(stmt.replaceWrite(binding, probe), binding)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private HashMap<Block, Binding.Mutable> placeMerges(Binding binding) {
+        // at the iterated dominance frontier of the stores,
+        // but only where the binding is still live
+        final int id = this.flow.indexOf(binding);
+        final HashMap<Block, Binding.Mutable> merges = new HashMap<>();
+        final ArrayDeque<Block> pending = new ArrayDeque<>();
+        final HashSet<Block> queued = new HashSet<>();
+        for (final DataFlowAnalysis.Definition def : this.flow.getDefinitions(binding)) {
+            if (queued.add(def.block)) {
+                pending.add(def.block);
+            }
+        }
+        while (!pending.isEmpty()) {
+            for (final Block join : this.cfg.getDominanceFrontier(pending.poll())) {
+                if (!merges.containsKey(join) && this.flow.getLiveIn(join).get(id)) {
+                    merges.put(join, (Binding.Mutable) this.fresh(binding, "%p", true));
+                    if (queued.add(join)) {
+                        pending.add(join);
+                    }
+                }
+            }
+        }
+        return merges;
+    }
+
+    private boolean isDefinedAtMerges(Binding binding, HashMap<Block, Binding.Mutable> merges) {
+        // every predecessor of a merge must have a value to hand over,
+        // which valid code should always have (but better safe than sorry)
+        final int size = this.cfg.size();
+        final boolean[] definedOut = new boolean[size];
+        for (int i = 0; i < size; ++i) {
+            final Block block = this.cfg.getBlock(i);
+            final Block idom = this.cfg.getImmediateDominator(block);
+            boolean defined = merges.containsKey(block) || (idom != null && definedOut[this.cfg.indexOf(idom)]);
+            for (final Statement stmt : block.getStatements()) {
+                defined |= writes(stmt, binding);
+            }
+            definedOut[i] = defined;
+        }
+
+        for (final Block join : merges.keySet()) {
+            for (final Block pred : this.cfg.getPredecessors(join)) {
+                if (!definedOut[this.cfg.indexOf(pred)]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void rename(Binding binding, HashMap<Block, Binding.Mutable> merges, Set<Block> mod) {
+        // dominators come first in reverse post-order, so the value
+        // leaving the immediate dominator is known by the time a block
+        // is visited
+        final int size = this.cfg.size();
+        final Value[] valueOut = new Value[size];
+        for (int i = 0; i < size; ++i) {
+            final Block block = this.cfg.getBlock(i);
+            final Block idom = this.cfg.getImmediateDominator(block);
+            Value current = idom == null ? null : valueOut[this.cfg.indexOf(idom)];
+
+            final List<Statement> stmts = block.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts.size() + 2);
+            boolean changed = false;
+
+            final Binding.Mutable merge = merges.get(block);
+            if (merge != null) {
+                final Binding.Immutable value = (Binding.Immutable) this.fresh(binding, "%", false);
+                repl.add(new MoveStatement(value, merge));
+                current = value;
+                changed = true;
+            }
+
+            final int last = stmts.size() - 1;
+            for (int j = 0; j <= last; ++j) {
+                Statement stmt = stmts.get(j);
+                if (j == last) {
+                    // hand the value over to the merges before leaving
+                    final HashSet<Block> seen = new HashSet<>();
+                    for (final Block next : block.getSuccessors()) {
+                        final Binding.Mutable target = merges.get(next);
+                        if (target != null && current != null && seen.add(next)) {
+                            repl.add(new MoveStatement(target, current));
+                            changed = true;
+                        }
+                    }
+                }
+
+                if (current != null && reads(stmt, binding)) {
+                    stmt = stmt.replaceRead(binding, current);
+                    changed = true;
+                }
+                if (writes(stmt, binding)) {
+                    final Binding value = this.fresh(binding, "%", false);
+                    stmt = stmt.replaceWrite(binding, value);
+                    current = value;
+                    changed = true;
+                }
+                repl.add(stmt);
+            }
+
+            valueOut[i] = current;
+            if (changed) {
+                block.setStatements(repl);
+                mod.add(block);
+            }
+        }
+    }
+
+    private Binding fresh(Binding binding, String marker, boolean mutable) {
+        // % cannot appear in source names, so only clashes
+        // with bindings made by earlier conversions matter
+        while (true) {
+            final String name = binding.name + marker + ++this.counter;
+            final Binding candidate = mutable
+                    ? new Binding.Mutable(name, binding.scopeDepth, binding.type)
+                    : new Binding.Immutable(name, binding.scopeDepth, binding.type);
+            if (this.flow.indexOf(candidate) < 0 && this.generated.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static boolean reads(Statement stmt, Binding binding) {
+        for (final Value input : stmt.getInputs()) {
+            if (contains(input, binding)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean writes(Statement stmt, Binding binding) {
+        final Optional<Binding> dst = stmt.getResultRegister();
+        return dst.isPresent() && dst.get().equals(binding);
+    }
+
+    private static boolean contains(Value value, Binding binding) {
+        if (value instanceof Tuple) {
+            for (final Value v : ((Tuple) value).values) {
+                if (contains(v, binding)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return binding.equals(value);
+    }
+}
@@ -3,9 +3,8 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac;
 
-import static com.ymcmp.midform.tac.statement.Statement.bumpAssignmentCounter;
-
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -13,9 +12,12 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import com.ymcmp.midform.tac.statement.AbstractCallStatement;
+import com.ymcmp.midform.tac.statement.MoveStatement;
+import com.ymcmp.midform.tac.statement.Statement;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.type.Types;
 import com.ymcmp.midform.tac.type.FunctionType;
@@ -23,6 +25,9 @@ import com.ymcmp.midform.tac.value.*;
 
 public class Subroutine implements Serializable {
 
+    // the optional (and slower) tier, shared by all subroutines
+    private static final EqualitySaturation EQUALITY_SATURATION = new EqualitySaturation();
+
     private final String ns;
     private final String name;
 
@@ -34,6 +39,15 @@ public class Subroutine implements Serializable {
     private List<Type> generics;
     private Block initialBlock;
 
+    // executable form used by the Emulator, dropped whenever the IR changes
+    // (volatile since it is built lazily by whichever thread needs it)
+    private transient volatile PreparedSubroutine prepared;
+    private transient int revision;
+
+    // rebuilt when they no longer match the blocks (same reason as above)
+    private transient volatile ControlFlowGraph cfg;
+    private transient volatile DataFlowAnalysis flow;
+
     public Subroutine(String ns, String name, FunctionType type) {
         this(ns, name, type, false, false);
     }
@@ -88,6 +102,7 @@ public class Subroutine implements Serializable {
             throw new IllegalArgumentException("Subroutines cannot be empty");
         }
         this.initialBlock = block;
+        this.invalidatePreparedForm();
     }
 
     public List<Binding.Parameter> getParameters() {
@@ -97,6 +112,7 @@ public class Subroutine implements Serializable {
     public void setParameters(List<Binding.Parameter> params) {
         this.validateParameters(params);
         this.params = new LinkedList<>(params);
+        this.invalidatePreparedForm();
     }
 
     public void validateParameters(List<Binding.Parameter> params) {
@@ -115,112 +131,132 @@ public class Subroutine implements Serializable {
         }
     }
 
-    private void validateType() {
-        for (final Block block : this.traceAllBlocks()) {
-            block.validateType(this);
-        }
-    }
-
-    private HashMap<Binding, BindingCounter> createBindingMap() {
-        final HashMap<Binding, BindingCounter> bindings = new HashMap<>();
-        for (final Binding param : this.params) {
-            final BindingCounter counter = bumpAssignmentCounter(bindings, param);
-            // Read it twice (since parameters are never temporary)
-            counter.newRead();
-            counter.newRead();
-        }
-        return bindings;
-    }
-
-    private boolean inlineSimpleBlocks() {
-        // block reachability analysis
-        final HashMap<Block, Integer> marked = new HashMap<>();
-        final HashMap<Binding, BindingCounter> bindings = this.createBindingMap();
+    private Set<Block> inlineSimpleBlocks() {
+        // also checks the bindings
+        final DataFlowAnalysis flow = this.getDataFlowAnalysis();
+        flow.validate();
 
-        final List<Block> blocks = this.traceAllBlocks(marked, bindings);
+        final ControlFlowGraph cfg = flow.getControlFlowGraph();
+        final List<Block> blocks = cfg.getBlocks();
 
-        boolean mod = false;
+        // blocks that were changed
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
 
-        // squash blocks that are only referenced once
-        for (final HashMap.Entry<Block, Integer> entry : marked.entrySet()) {
-            final Block key = entry.getKey();
-
-            if (entry.getValue().intValue() == 1) {
-                for (final Block block : blocks) {
-                    if (block.squashJump(key)) {
-                        mod = true;
-                    }
-                }
+        // drop stores that are never read. This goes first since
+        // the liveness is only valid for the blocks as they are now
+        // (dropping statements does not change the edges though)
+        for (final Block block : blocks) {
+            if (block.dropDeadStores(flow)) {
+                mod.add(block);
             }
         }
 
-        // drop all bindings that are not being read
-        for (final HashMap.Entry<Binding, BindingCounter> entry : bindings.entrySet()) {
-            final BindingCounter counter = entry.getValue();
-            if (counter.getReads() == 0) {
-                final Binding binding = entry.getKey();
-                for (final Block block : blocks) {
-                    if (block.dropBindingStores(binding)) {
-                        mod = true;
-                    }
-                }
+        // squash blocks that are only referenced once. Following the jumps
+        // from each block collapses a whole chain of them in one go
+        final HashSet<Block> squashed = new HashSet<>();
+        for (final Block block : blocks) {
+            if (squashed.contains(block)) {
+                continue;
+            }
+
+            Block next;
+            while ((next = block.getJumpTarget()) != null
+                    && cfg.numberOfReferences(next) == 1
+                    && block.squashJump(next)) {
+                squashed.add(next);
+                mod.add(block);
             }
         }
 
         return mod;
     }
 
-    public List<Block> traceAllBlocks() {
-        // block reachability analysis
-        final HashMap<Block, Integer> marked = new HashMap<>();
-        final HashMap<Binding, BindingCounter> bindings = this.createBindingMap();
-
-        return this.traceAllBlocks(marked, bindings);
-    }
+    private Set<Block> propagateCopies() {
+        // An immutable binding that is only ever assigned a constant (or a
+        // binding that never changes) holds that value wherever it is read,
+        // even in other blocks
+        final DataFlowAnalysis flow = this.getDataFlowAnalysis();
+        final HashMap<Binding, Value> copies = new HashMap<>();
+        for (final DataFlowAnalysis.Definition def : flow.getDefinitions()) {
+            if (def.binding instanceof Binding.Immutable
+                    && def.statement instanceof MoveStatement
+                    && flow.isStable(def.binding)) {
+                final Value src = ((MoveStatement) def.statement).src;
+                if (flow.isStable(src)) {
+                    copies.put(def.binding, src);
+                }
+            }
+        }
 
-    private List<Block> traceAllBlocks(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        // start tracing from the first block
-        this.initialBlock.trace(marked, bindings);
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        if (copies.isEmpty()) {
+            return mod;
+        }
 
-        final LinkedList<Block> list = new LinkedList<>();
+        for (final Block block : flow.getControlFlowGraph().getBlocks()) {
+            boolean changed = false;
+            final ArrayList<Statement> stmts = new ArrayList<>(block.getStatements());
+            for (int i = 0; i < stmts.size(); ++i) {
+                final Statement stmt = stmts.get(i);
+                final ArrayList<Binding> inputs = new ArrayList<>();
+                for (final Value input : stmt.getInputs()) {
+                    Statement.forEachBinding(input, inputs::add);
+                }
 
-        // Initial block is the first element
-        list.add(this.initialBlock);
-        for (final Block traced : marked.keySet()) {
-            if (traced != this.initialBlock) {
-                list.add(traced);
+                Statement repl = stmt;
+                for (final Binding input : inputs) {
+                    // follow chains of copies
+                    Value value = copies.get(input);
+                    while (value != null && copies.containsKey(value)) {
+                        value = copies.get(value);
+                    }
+                    if (value != null) {
+                        repl = repl.replaceRead(input, value);
+                    }
+                }
+                if (repl != stmt) {
+                    stmts.set(i, repl);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                block.setStatements(stmts);
+                mod.add(block);
             }
         }
-        return list;
+        return mod;
     }
 
-    private boolean unfoldConstantExprs() {
-        boolean mod = false;
-        for (final Block block : this.traceAllBlocks()) {
-            if (block.unfoldConstantExprs())    mod = true;
-            if (block.expandTemporaries())      mod = true;
-        }
-        return mod;
+    public List<Block> traceAllBlocks() {
+        // the reachable blocks, after checking the bindings in them
+        final DataFlowAnalysis flow = this.getDataFlowAnalysis();
+        flow.validate();
+        return flow.getControlFlowGraph().getBlocks();
     }
 
-    private boolean dropUnreachableStatements() {
-        boolean mod = false;
-        for (final Block block : this.traceAllBlocks()) {
-            if (block.dropUnreachableStatements()) {
-                mod = true;
+    private boolean optimizeBlock(Block block) {
+        // passes that only look at (and change) a single block,
+        // repeated until the block stops changing
+        boolean modified = false;
+        while (true) {
+            boolean mod = false;
+            if (block.unfoldConstantExprs())        mod = true;
+            if (block.expandTemporaries())          mod = true;
+            if (block.compactFunctionCalls())       mod = true;
+            if (block.dropUnreachableStatements())  mod = true;
+
+            if (!mod) {
+                break;
             }
+            modified = true;
         }
-        return mod;
-    }
 
-    private boolean compactFunctionCalls() {
-        boolean mod = false;
-        for (final Block block : this.traceAllBlocks()) {
-            if (block.compactFunctionCalls()) {
-                mod = true;
-            }
+        if (modified) {
+            // Very important: want to make sure things are
+            // still valid after these optimization passes!
+            block.validateType(this);
         }
-        return mod;
+        return modified;
     }
 
     public void validate() {
@@ -229,8 +265,10 @@ public class Subroutine implements Serializable {
     }
 
     public void validateBlocks() {
-        this.validateType();
-        this.traceAllBlocks();
+        // tracing also checks the bindings
+        for (final Block block : this.traceAllBlocks()) {
+            block.validateType(this);
+        }
     }
 
     public boolean optimize() {
@@ -238,25 +276,128 @@ public class Subroutine implements Serializable {
         // optimization pass affects the function parameters
         this.validateParameters(this.params);
 
+        // Instead of restarting every pass after each change, blocks are
+        // queued when they change. The block-local passes drain the queue,
+        // then the passes over the whole function (which need fresh
+        // analyses) queue whatever they changed. Once those find nothing,
+        // every block has been seen since its last change.
+        //
+        // Very important: want to make sure things are still valid after
+        // these optimization passes! Everything is checked up front, then
+        // blocks are type checked as they change and the analysis done by
+        // the last round checks the bindings.
+        final LinkedHashSet<Block> worklist = new LinkedHashSet<>(this.traceAllBlocks());
+        for (final Block block : worklist) {
+            block.validateType(this);
+        }
+
+        // the inliner keeps track of how much the subroutine has grown
+        final Inliner inliner = new Inliner(this);
+
         boolean modified = false;
-        do {
-            // Very important: want to make sure things are
-            // still valid after these optimization passes!
-            this.validateBlocks();
-
-            // As soon as any change happens, restart loop
-            if (this.inlineSimpleBlocks())          continue;
-            if (this.unfoldConstantExprs())         continue;
-            if (this.compactFunctionCalls())        continue;
-            if (this.dropUnreachableStatements())   continue;
-
-            break;
-        } while ((modified = true));
-        // if while loop happens, then that means a transformation
-        // of some sort happened, so we *set modified to true*
+        while (true) {
+            final Iterator<Block> it = worklist.iterator();
+            while (it.hasNext()) {
+                final Block block = it.next();
+                it.remove();
+                if (this.optimizeBlock(block)) {
+                    modified = true;
+                }
+            }
+
+            final Set<Block> changed = this.inlineSimpleBlocks();
+            changed.addAll(TailRecursion.eliminate(this));
+            changed.addAll(SSAConverter.convert(this));
+            changed.addAll(ConstantPropagation.propagate(this));
+            changed.addAll(this.propagateCopies());
+            changed.addAll(Peephole.simplify(this));
+            changed.addAll(ValueNumbering.eliminate(this));
+            changed.addAll(EQUALITY_SATURATION.optimize(this));
+            changed.addAll(LoopInvariantCodeMotion.hoist(this));
+            changed.addAll(inliner.inlineCalls());
+            if (changed.isEmpty()) {
+                break;
+            }
+
+            modified = true;
+            for (final Block block : changed) {
+                block.validateType(this);
+            }
+            worklist.addAll(changed);
+        }
+
+        if (modified) {
+            this.invalidatePreparedForm();
+        }
         return modified;
     }
 
+    public static EqualitySaturation getEqualitySaturation() {
+        return EQUALITY_SATURATION;
+    }
+
+    public Set<Subroutine> getDirectCallees() {
+        // subroutines called (or tail called) by name, and the ones used as
+        // values since those can be called through a binding later
+        final LinkedHashSet<Subroutine> callees = new LinkedHashSet<>();
+        for (final Block block : this.getControlFlowGraph().getBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                for (final Value input : stmt.getInputs()) {
+                    collectLocalFuncRefs(input, callees);
+                }
+            }
+        }
+        return callees;
+    }
+
+    private static void collectLocalFuncRefs(Value value, Set<Subroutine> subs) {
+        if (value instanceof Tuple) {
+            for (final Value v : ((Tuple) value).values) {
+                collectLocalFuncRefs(v, subs);
+            }
+        } else if (value instanceof FuncRef.Local) {
+            subs.add(((FuncRef.Local) value).sub);
+        }
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        ControlFlowGraph graph = this.cfg;
+        if (graph == null || !graph.isCurrent(this.initialBlock)) {
+            graph = new ControlFlowGraph(this.initialBlock);
+            this.cfg = graph;
+        }
+        return graph;
+    }
+
+    public DataFlowAnalysis getDataFlowAnalysis() {
+        final ControlFlowGraph graph = this.getControlFlowGraph();
+        DataFlowAnalysis analysis = this.flow;
+        if (analysis == null || !analysis.isCurrent(graph, this.params)) {
+            analysis = new DataFlowAnalysis(graph, this.params);
+            this.flow = analysis;
+        }
+        return analysis;
+    }
+
+    /* package */ PreparedSubroutine getPreparedForm() {
+        PreparedSubroutine form = this.prepared;
+        if (form == null) {
+            form = new PreparedSubroutine(this);
+            this.prepared = form;
+        }
+        return form;
+    }
+
+    /* package */ void invalidatePreparedForm() {
+        this.prepared = null;
+        ++this.revision;
+    }
+
+    /* package */ int getRevision() {
+        // bumped every time the IR changes
+        return this.revision;
+    }
+
     @Override
     public String toString() {
         final String ln = System.lineSeparator();
@@ -274,7 +415,7 @@ public class Subroutine implements Serializable {
         }
 
         sb.append(") {");
-        for (final Block block : this.traceAllBlocks()) {
+        for (final Block block : this.getControlFlowGraph().getBlocks()) {
             sb.append(ln).append(block);
         }
         sb.append(ln).append('}');
@@ -0,0 +1,334 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.type.Types;
+import com.ymcmp.midform.tac.type.UnitType;
+import com.ymcmp.midform.tac.value.*;
+
+// Turns calls of a subroutine to itself in tail position into loops:
+//
+//   function f(n) {                  function f(n) {
+//   _entry:                          _entry%l1:
+//     ...                              mov n%l2, n
+//     tailcall f %0                    jmp _entry
+//   }                                _entry:
+//                                      ...            <-- reads n%l2
+//                                      mov n%l2, %0
+//                                      jmp _entry
+//                                    }
+//
+// The parameters cannot be assigned, so every read of them is redirected
+// to a mutable binding that is set up by a new initial block (SSA
+// conversion later turns those into merges at the loop header). Doing this
+// again on a subroutine that already went through it still works since
+// the previous initial block reads the parameters like any other block.
+//
+// A call followed by returning its result counts too. Block's
+// compactFunctionCalls refuses those when the argument mentions locals
+// (it cannot tell if references to them are passed along), but if the
+// subroutine never takes a reference, there are none to pass along.
+//
+// Recursion that combines the result of the call with something else
+// before returning it is also handled if the operator is associative and
+// commutative (like sum(n) = n + sum(n - 1)). Those get an accumulator
+// starting out as the operator's identity: instead of waiting for the
+// call, the other operand is combined into the accumulator right away, and
+// every other return combines its value with the accumulator.
+/* package */ final class TailRecursion {
+
+    // A block ending with a call to the subroutine itself
+    private static final class Site {
+
+        public final Block block;
+        public final AbstractCallStatement<?> call;
+        public final int offset;
+
+        // the operator and the other operand if the result is combined
+        public final BinaryStatement.BinaryOperator operator;
+        public final Value operand;
+
+        public Site(Block block, AbstractCallStatement<?> call, int offset, BinaryStatement.BinaryOperator operator, Value operand) {
+            this.block = block;
+            this.call = call;
+            this.offset = offset;
+            this.operator = operator;
+            this.operand = operand;
+        }
+    }
+
+    private final Subroutine sub;
+    private final ControlFlowGraph cfg;
+    private final HashSet<String> taken = new HashSet<>();
+    private int counter;
+
+    private TailRecursion(Subroutine sub, DataFlowAnalysis flow) {
+        this.sub = sub;
+        this.cfg = flow.getControlFlowGraph();
+        for (int id = 0; id < flow.numberOfBindings(); ++id) {
+            this.taken.add(flow.getBinding(id).name);
+        }
+        for (final Block block : this.cfg.getBlocks()) {
+            this.taken.add(block.name);
+        }
+    }
+
+    public static Set<Block> eliminate(Subroutine sub) {
+        // returns the blocks that were changed (or added)
+        final DataFlowAnalysis flow = sub.getDataFlowAnalysis();
+        for (int id = 0; id < flow.numberOfBindings(); ++id) {
+            if (flow.isAddressTaken(flow.getBinding(id))) {
+                // a reference into this frame might be passed along,
+                // which is only safe if the frame really goes away
+                return new LinkedHashSet<>();
+            }
+        }
+        return new TailRecursion(sub, flow).loopSelfCalls();
+    }
+
+    private Set<Block> loopSelfCalls() {
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        final ArrayList<Site> sites = new ArrayList<>();
+        final ArrayList<Site> combining = new ArrayList<>();
+        boolean foreignTailCalls = false;
+        for (final Block block : this.cfg.getBlocks()) {
+            final Site site = this.getSite(block);
+            if (site == null) {
+                foreignTailCalls |= block.getBranchStatement() instanceof TailCallStatement;
+            } else if (site.operator == null) {
+                sites.add(site);
+            } else {
+                combining.add(site);
+            }
+        }
+
+        // only one kind of accumulator, and the results of tail calls to
+        // other subroutines cannot be combined with it
+        BinaryStatement.BinaryOperator operator = null;
+        if (!combining.isEmpty() && !foreignTailCalls) {
+            operator = combining.get(0).operator;
+            for (final Site site : combining) {
+                if (site.operator != operator) {
+                    operator = null;
+                    break;
+                }
+            }
+            if (operator != null) {
+                sites.addAll(combining);
+            }
+        }
+        if (sites.isEmpty()) {
+            return mod;
+        }
+
+        final List<Binding.Parameter> params = this.sub.getParameters();
+        final ArrayList<Binding> vars = new ArrayList<>(params.size());
+        for (final Binding.Parameter param : params) {
+            vars.add(new Binding.Mutable(this.fresh(param.name), param.scopeDepth, param.type));
+        }
+        final Binding acc = operator == null ? null : new Binding.Mutable(this.fresh("acc"), 0, this.sub.type.getOutput());
+
+        // redirect the reads of the parameters
+        // (and have the returns include the accumulator)
+        for (final Block block : this.cfg.getBlocks()) {
+            boolean changed = false;
+            final ArrayList<Statement> stmts = new ArrayList<>(block.getStatements());
+            for (int i = 0; i < stmts.size(); ++i) {
+                final Statement stmt = stmts.get(i);
+                final Statement repl = replaceParameters(stmt, params, vars);
+                if (repl != stmt) {
+                    stmts.set(i, repl);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                block.setStatements(stmts);
+                mod.add(block);
+            }
+        }
+
+        // the loop header is the old initial block
+        final Block header = this.sub.getInitialBlock();
+        final HashSet<Block> rewritten = new HashSet<>();
+        for (final Site old : sites) {
+            // refetch the site since its block might have changed
+            final Site site = this.getSite(old.block);
+            final List<Statement> stmts = site.block.getStatements();
+            final ArrayList<Statement> repl = new ArrayList<>(stmts.subList(0, site.offset));
+            if (site.operator != null) {
+                repl.add(new BinaryStatement(site.operator, acc, acc, site.operand));
+            }
+            this.assignParameters(repl, vars, Subroutine.splatterArguments(site.call.arg));
+            repl.add(new GotoStatement(header));
+            site.block.setStatements(repl);
+            rewritten.add(site.block);
+            mod.add(site.block);
+        }
+
+        if (acc != null) {
+            for (final Block block : this.cfg.getBlocks()) {
+                final BranchStatement branch = block.getBranchStatement();
+                if (rewritten.contains(block) || !(branch instanceof ReturnStatement)) {
+                    continue;
+                }
+
+                final List<Statement> stmts = block.getStatements();
+                final ArrayList<Statement> repl = new ArrayList<>(stmts.subList(0, stmts.size() - 1));
+                final Binding result = new Binding.Immutable(this.fresh(acc.name), 0, acc.type);
+                repl.add(new BinaryStatement(operator, result, acc, ((ReturnStatement) branch).value));
+                repl.add(new ReturnStatement(result));
+                block.setStatements(repl);
+                mod.add(block);
+            }
+        }
+
+        final Block entry = new Block(this.fresh(header.name));
+        final ArrayList<Statement> init = new ArrayList<>(params.size() + 2);
+        for (int i = 0; i < params.size(); ++i) {
+            init.add(new MoveStatement(vars.get(i), params.get(i)));
+        }
+        if (acc != null) {
+            init.add(new MoveStatement(acc, identityOf(operator)));
+        }
+        init.add(new GotoStatement(header));
+        entry.setStatements(init);
+        this.sub.setInitialBlock(entry);
+        mod.add(entry);
+        return mod;
+    }
+
+    private Site getSite(Block block) {
+        // the call if the block ends with one to the subroutine itself
+        final List<Statement> stmts = block.getStatements();
+        final int size = stmts.size();
+        final Statement last = stmts.get(size - 1);
+        if (last instanceof TailCallStatement) {
+            return this.checkCall(new Site(block, (TailCallStatement) last, size - 1, null, null));
+        }
+        if (!(last instanceof ReturnStatement) || size < 2) {
+            return null;
+        }
+
+        final Value value = ((ReturnStatement) last).value;
+        final Statement prev = stmts.get(size - 2);
+        if (prev instanceof CallStatement) {
+            final CallStatement call = (CallStatement) prev;
+            if (value.equals(call.dst) || (value == ImmUnit.INSTANCE && Types.equivalent(call.dst.getType(), UnitType.INSTANCE))) {
+                return this.checkCall(new Site(block, call, size - 2, null, null));
+            }
+            return null;
+        }
+
+        //   call r, f arg
+        //   op t, r, x     <-- or x, r
+        //   ret t
+        if (!(prev instanceof BinaryStatement) || size < 3 || !(stmts.get(size - 3) instanceof CallStatement)) {
+            return null;
+        }
+        final BinaryStatement bin = (BinaryStatement) prev;
+        final CallStatement call = (CallStatement) stmts.get(size - 3);
+        if (!value.equals(bin.dst) || identityOf(bin.operator) == null) {
+            return null;
+        }
+        if (bin.lhs.equals(call.dst) && !bin.rhs.equals(call.dst)) {
+            return this.checkCall(new Site(block, call, size - 3, bin.operator, bin.rhs));
+        }
+        if (bin.rhs.equals(call.dst) && !bin.lhs.equals(call.dst)) {
+            return this.checkCall(new Site(block, call, size - 3, bin.operator, bin.lhs));
+        }
+        return null;
+    }
+
+    private Site checkCall(Site site) {
+        final AbstractCallStatement<?> call = site.call;
+        if (!(call.sub instanceof FuncRef.Local)
+                || ((FuncRef.Local) call.sub).sub != this.sub
+                || Subroutine.splatterArguments(call.arg).size() != this.sub.getParameters().size()) {
+            return null;
+        }
+        return site;
+    }
+
+    private static Value identityOf(BinaryStatement.BinaryOperator operator) {
+        // null unless the operator is associative and commutative
+        switch (operator) {
+        case ADD_II:
+        case OR_II:
+        case XOR_II:
+            return IntegerType.INT32.createImmediate(0);
+        case MUL_II:
+            return IntegerType.INT32.createImmediate(1);
+        case AND_II:
+            return IntegerType.INT32.createImmediate(-1);
+        default:
+            return null;
+        }
+    }
+
+    private void assignParameters(List<Statement> stmts, List<Binding> vars, List<Value> args) {
+        // the moves happen one after the other, so an argument that reads
+        // a variable that was already assigned gets copied beforehand
+        final Value[] sources = args.toArray(new Value[args.size()]);
+        for (int i = 0; i < sources.length; ++i) {
+            if (readsAny(sources[i], vars.subList(0, i))) {
+                final Binding var = vars.get(i);
+                final Binding tmp = new Binding.Immutable(this.fresh(var.name), var.scopeDepth, var.type);
+                stmts.add(new MoveStatement(tmp, sources[i]));
+                sources[i] = tmp;
+            }
+        }
+        for (int i = 0; i < sources.length; ++i) {
+            if (!sources[i].equals(vars.get(i))) {
+                stmts.add(new MoveStatement(vars.get(i), sources[i]));
+            }
+        }
+    }
+
+    private static boolean readsAny(Value value, List<Binding> bindings) {
+        final boolean[] found = new boolean[1];
+        Statement.forEachBinding(value, binding -> found[0] |= bindings.contains(binding));
+        return found[0];
+    }
+
+    private static Statement replaceParameters(Statement stmt, List<Binding.Parameter> params, List<Binding> vars) {
+        // these refuse to replace the reference they go through
+        // (no reference is taken here, so mkref cannot show up)
+        if (stmt instanceof LoadRefStatement) {
+            final LoadRefStatement load = (LoadRefStatement) stmt;
+            final int i = params.indexOf(load.ref);
+            return i < 0 ? stmt : new LoadRefStatement(load.dst, vars.get(i));
+        }
+
+        Statement result = stmt;
+        for (int i = 0; i < params.size(); ++i) {
+            result = result.replaceRead(params.get(i), vars.get(i));
+        }
+        if (result instanceof StoreRefStatement) {
+            final StoreRefStatement store = (StoreRefStatement) result;
+            final int i = params.indexOf(store.ref);
+            if (i >= 0) {
+                result = new StoreRefStatement(vars.get(i), store.src);
+            }
+        }
+        return result;
+    }
+
+    private String fresh(String name) {
+        // % cannot appear in source names, the rest is for previous runs
+        while (true) {
+            final String candidate = name + "%l" + ++this.counter;
+            if (this.taken.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+}
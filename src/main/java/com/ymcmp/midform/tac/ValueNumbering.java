@@ -0,0 +1,197 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ymcmp.midform.tac.statement.*;
+import com.ymcmp.midform.tac.value.*;
+
+// Global value numbering: a pure computation that was already done by a
+// statement dominating it (either earlier in the same block or in a block
+// that always runs first) is replaced by a move from the first result.
+// Copy propagation then takes care of the move.
+//
+// Only stable operands (see DataFlowAnalysis::isStable) are considered,
+// which after the SSA conversion covers most of them. The first result has
+// to be stable as well, otherwise it might have changed in between.
+/* package */ final class ValueNumbering {
+
+    // What a statement computes: the operator and its operands, with
+    // results already found to be redundant replaced by the first one
+    private static final class Expression {
+
+        public final Object operator;
+        public final List<Value> operands;
+
+        public Expression(Object operator, Value... operands) {
+            this.operator = operator;
+            this.operands = Arrays.asList(operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.operator.hashCode() * 17 + this.operands.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Expression) {
+                final Expression expr = (Expression) obj;
+                return this.operator == expr.operator
+                    && this.operands.equals(expr.operands);
+            }
+            return false;
+        }
+    }
+
+    // A result that is available in the blocks its block dominates
+    private static final class Available {
+
+        public final Binding result;
+        public final Block block;
+
+        public Available(Binding result, Block block) {
+            this.result = result;
+            this.block = block;
+        }
+    }
+
+    private final DataFlowAnalysis flow;
+    private final ControlFlowGraph cfg;
+
+    // every expression seen so far, more than one if they were computed
+    // in blocks that do not dominate each other
+    private final HashMap<Expression, List<Available>> table = new HashMap<>();
+    private final HashMap<Binding, Binding> leaders = new HashMap<>();
+
+    private ValueNumbering(Subroutine sub) {
+        this.flow = sub.getDataFlowAnalysis();
+        this.cfg = this.flow.getControlFlowGraph();
+    }
+
+    public static Set<Block> eliminate(Subroutine sub) {
+        // returns the blocks that were changed
+        return new ValueNumbering(sub).eliminateAll();
+    }
+
+    private Set<Block> eliminateAll() {
+        // reverse post-order visits dominators first
+        final LinkedHashSet<Block> mod = new LinkedHashSet<>();
+        for (final Block block : this.cfg.getBlocks()) {
+            final List<Statement> stmts = block.getStatements();
+            ArrayList<Statement> repl = null;
+            for (int i = 0; i < stmts.size(); ++i) {
+                final Statement stmt = stmts.get(i);
+                final Statement result = this.number(block, stmt);
+                if (result != stmt) {
+                    if (repl == null) {
+                        repl = new ArrayList<>(stmts);
+                    }
+                    repl.set(i, result);
+                }
+            }
+            if (repl != null) {
+                block.setStatements(repl);
+                mod.add(block);
+            }
+        }
+        return mod;
+    }
+
+    private Statement number(Block block, Statement stmt) {
+        if (!stmt.isPure()) {
+            return stmt;
+        }
+
+        final Binding dst;
+        final Expression expr;
+        Expression swapped = null;
+        if (stmt instanceof BinaryStatement) {
+            final BinaryStatement bin = (BinaryStatement) stmt;
+            final Value lhs = this.operand(bin.lhs);
+            final Value rhs = this.operand(bin.rhs);
+            if (lhs == null || rhs == null) {
+                return stmt;
+            }
+
+            dst = bin.dst;
+            expr = new Expression(bin.operator, lhs, rhs);
+            if (isCommutative(bin.operator)) {
+                swapped = new Expression(bin.operator, rhs, lhs);
+            }
+        } else if (stmt instanceof UnaryStatement) {
+            final UnaryStatement unary = (UnaryStatement) stmt;
+            final Value src = this.operand(unary.src);
+            if (src == null) {
+                return stmt;
+            }
+
+            dst = unary.dst;
+            expr = new Expression(unary.operator, src);
+        } else {
+            return stmt;
+        }
+
+        Binding first = this.lookup(block, expr);
+        if (first == null && swapped != null) {
+            first = this.lookup(block, swapped);
+        }
+        if (first != null) {
+            if (this.flow.isStable(dst)) {
+                this.leaders.put(dst, first);
+            }
+            return new MoveStatement(dst, first);
+        }
+
+        if (this.flow.isStable(dst)) {
+            this.table.computeIfAbsent(expr, k -> new ArrayList<>()).add(new Available(dst, block));
+        }
+        return stmt;
+    }
+
+    private Binding lookup(Block block, Expression expr) {
+        final List<Available> list = this.table.get(expr);
+        if (list != null) {
+            for (final Available avail : list) {
+                if (this.cfg.dominates(avail.block, block)) {
+                    return avail.result;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Value operand(Value value) {
+        // null if the value could change between two statements
+        if (!this.flow.isStable(value)) {
+            return null;
+        }
+        if (value instanceof Binding) {
+            final Binding leader = this.leaders.get(value);
+            return leader == null ? value : leader;
+        }
+        return value;
+    }
+
+    private static boolean isCommutative(BinaryStatement.BinaryOperator operator) {
+        switch (operator) {
+        case AND_II:
+        case OR_II:
+        case XOR_II:
+        case ADD_II:
+        case MUL_II:
+        case ADD_DD:
+        case MUL_DD:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
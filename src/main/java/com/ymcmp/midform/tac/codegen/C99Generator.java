@@ -7,7 +7,6 @@ import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -24,7 +23,6 @@ public final class C99Generator implements CodeGenerator {
     private final HashMap<FunctionType, String> funcTypes = new HashMap<>();
     private final HashSet<FuncRef.Native> nativeFuncs = new HashSet<>();
 
-    private final LinkedList<Block> pending = new LinkedList<>();
     private final HashSet<Block> visited = new HashSet<>();
     private final HashSet<Binding> locals = new HashSet<>();
 
@@ -49,7 +47,6 @@ public final class C99Generator implements CodeGenerator {
         this.funcTypes.clear();
         this.nativeFuncs.clear();
 
-        this.pending.clear();
         this.visited.clear();
         this.locals.clear();
 
@@ -129,8 +126,6 @@ public final class C99Generator implements CodeGenerator {
 
         this.head.append(mangled).append(';').append(System.lineSeparator());
 
-        this.pending.addLast(sub.getInitialBlock());
-
         this.body.append(System.lineSeparator())
                 .append(System.lineSeparator())
                 .append(mangled)
@@ -139,9 +134,10 @@ public final class C99Generator implements CodeGenerator {
                 .append(System.lineSeparator());
         this.insertionPoint = this.body.length();
 
-        Block b;
-        while ((b = this.pending.pollFirst()) != null) {
-            this.visitBlock(b);
+        // in reverse post-order, so a block usually comes
+        // right after the block that jumps to it
+        for (final Block block : sub.getControlFlowGraph().getBlocks()) {
+            this.visitBlock(block);
         }
 
         this.body.append('}');
@@ -415,9 +411,6 @@ public final class C99Generator implements CodeGenerator {
                 .append(mangleBlockName(stmt.ifFalse))
                 .append(';')
                 .append(System.lineSeparator());
-
-        this.pending.addLast(stmt.ifTrue);
-        this.pending.addLast(stmt.ifFalse);
     }
 
     public void visitGotoStatement(GotoStatement stmt) {
@@ -426,8 +419,6 @@ public final class C99Generator implements CodeGenerator {
                 .append(mangleBlockName(stmt.next))
                 .append(';')
                 .append(System.lineSeparator());
-
-        this.pending.addLast(stmt.next);
     }
 
     public void visitReturnStatement(ReturnStatement stmt) {
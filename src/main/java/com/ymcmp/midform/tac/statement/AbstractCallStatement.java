@@ -3,21 +3,21 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac.statement;
 
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.Emulator;
-import com.ymcmp.midform.tac.BindingCounter;
 import com.ymcmp.midform.tac.Block;
+import com.ymcmp.midform.tac.CompileTimeEvaluator;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.FunctionType;
 import com.ymcmp.midform.tac.value.*;
 
 public abstract class AbstractCallStatement<T extends AbstractCallStatement<T>> implements Statement {
 
-    private static final Emulator DEFAULT_EXECUTOR = new Emulator();
+    private static final CompileTimeEvaluator DEFAULT_EVALUATOR = new CompileTimeEvaluator();
 
     public final Value sub;
     public final Value arg;
@@ -30,6 +30,10 @@ public abstract class AbstractCallStatement<T extends AbstractCallStatement<T>>
     protected abstract T virtualConstructor(Value sub, Value arg);
     protected abstract Statement inlinedStatement(Statement stmt);
 
+    public static CompileTimeEvaluator getEvaluator() {
+        return DEFAULT_EVALUATOR;
+    }
+
     public final FunctionType getFunctionType() {
         return (FunctionType) this.sub.getType().expandBound();
     }
@@ -52,11 +56,8 @@ public abstract class AbstractCallStatement<T extends AbstractCallStatement<T>>
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        // No blocks to trace (we only care about blocks in the same function)
-
-        Statement.checkBindingDeclaration(bindings, this.sub);
-        Statement.checkBindingDeclaration(bindings, this.arg);
+    public List<Value> getInputs() {
+        return Arrays.asList(this.sub, this.arg);
     }
 
     @Override
@@ -100,12 +101,10 @@ public abstract class AbstractCallStatement<T extends AbstractCallStatement<T>>
             // Functions that are marked as expr are also computed!
             // *that is only if the arguments being passed is a compile-time constant
             if (callsite.expr && this.arg.isCompileTimeConstant()) {
-                try {
-                    final Value result = DEFAULT_EXECUTOR.callSubroutine(callsite, this.arg);
-                    return this.inlinedStatement(new ReturnStatement(result));
-                } catch (Throwable ex) {
-                    // if any error happens, it's ok, we'll just defer
-                    // the execution to runtime
+                // if it fails, we just defer the execution to runtime
+                final Optional<Value> result = DEFAULT_EVALUATOR.evaluate(callsite, this.arg);
+                if (result.isPresent()) {
+                    return this.inlinedStatement(new ReturnStatement(result.get()));
                 }
             }
         }
@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.value.Binding;
 import com.ymcmp.midform.tac.type.*;
@@ -64,6 +63,71 @@ public class BinaryStatement implements Statement {
             }
         }
 
+        public Value evaluate(Value lhs, Value rhs) {
+            try {
+                Value result = null;
+                switch (this) {
+                case AND_II:
+                    result = ((ImmInteger) lhs).and((ImmInteger) rhs);
+                    break;
+                case OR_II:
+                    result = ((ImmInteger) lhs).or((ImmInteger) rhs);
+                    break;
+                case XOR_II:
+                    result = ((ImmInteger) lhs).xor((ImmInteger) rhs);
+                    break;
+                case ADD_II:
+                    result = ((ImmInteger) lhs).add((ImmInteger) rhs);
+                    break;
+                case SUB_II:
+                    result = ((ImmInteger) lhs).sub((ImmInteger) rhs);
+                    break;
+                case MUL_II:
+                    result = ((ImmInteger) lhs).mul((ImmInteger) rhs);
+                    break;
+                case DIV_II:
+                    result = ((ImmInteger) lhs).div((ImmInteger) rhs);
+                    break;
+                case MOD_II:
+                    result = ((ImmInteger) lhs).mod((ImmInteger) rhs);
+                    break;
+                case CMP_II:
+                    result = IntegerType.INT32.createImmediate(Long.compare(((ImmInteger) lhs).content, ((ImmInteger) rhs).content));
+                    break;
+                case ADD_DD:
+                    result = new ImmDouble(((ImmDouble) lhs).content + ((ImmDouble) rhs).content);
+                    break;
+                case SUB_DD:
+                    result = new ImmDouble(((ImmDouble) lhs).content - ((ImmDouble) rhs).content);
+                    break;
+                case MUL_DD:
+                    result = new ImmDouble(((ImmDouble) lhs).content * ((ImmDouble) rhs).content);
+                    break;
+                case DIV_DD:
+                    result = new ImmDouble(((ImmDouble) lhs).content / ((ImmDouble) rhs).content);
+                    break;
+                case MOD_DD:
+                    result = new ImmDouble(((ImmDouble) lhs).content % ((ImmDouble) rhs).content);
+                    break;
+                case CMP_DD:
+                    result = IntegerType.INT32.createImmediate(Double.compare(((ImmDouble) lhs).content, ((ImmDouble) rhs).content));
+                    break;
+                case CMP_CC:
+                    result = IntegerType.INT32.createImmediate(Character.compare(((ImmCharacter) lhs).content, ((ImmCharacter) rhs).content));
+                    break;
+                case CMP_SS:
+                    result = IntegerType.INT32.createImmediate(((ImmString) lhs).content.compareTo(((ImmString) rhs).content));
+                    break;
+                default:
+                    break;
+                }
+                return result;
+            } catch (ClassCastException ex) {
+                // Operands are not (all) constants
+                return null;
+            }
+        }
+
         @Override
         public String toString() {
             return this.name().toLowerCase().replace("_", ".");
@@ -94,10 +158,8 @@ public class BinaryStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.lhs);
-        Statement.checkBindingDeclaration(bindings, this.rhs);
-        Statement.bumpAssignmentCounter(bindings, this.dst);
+    public List<Value> getInputs() {
+        return Arrays.asList(this.lhs, this.rhs);
     }
 
     @Override
@@ -118,72 +180,27 @@ public class BinaryStatement implements Statement {
         return this;
     }
 
+    @Override
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new BinaryStatement(this.operator, repl, this.lhs, this.rhs);
+        }
+        return this;
+    }
+
     @Override
     public Statement unfoldConstants() {
+        final Value result;
         try {
-            Value result = null;
-            switch (this.operator) {
-            case AND_II:
-                result = ((ImmInteger) this.lhs).and((ImmInteger) this.rhs);
-                break;
-            case OR_II:
-                result = ((ImmInteger) this.lhs).or((ImmInteger) this.rhs);
-                break;
-            case XOR_II:
-                result = ((ImmInteger) this.lhs).xor((ImmInteger) this.rhs);
-                break;
-            case ADD_II:
-                result = ((ImmInteger) this.lhs).add((ImmInteger) this.rhs);
-                break;
-            case SUB_II:
-                result = ((ImmInteger) this.lhs).sub((ImmInteger) this.rhs);
-                break;
-            case MUL_II:
-                result = ((ImmInteger) this.lhs).mul((ImmInteger) this.rhs);
-                break;
-            case DIV_II:
-                result = ((ImmInteger) this.lhs).div((ImmInteger) this.rhs);
-                break;
-            case MOD_II:
-                result = ((ImmInteger) this.lhs).mod((ImmInteger) this.rhs);
-                break;
-            case CMP_II:
-                result = IntegerType.INT32.createImmediate(Long.compare(((ImmInteger) this.lhs).content, ((ImmInteger) this.rhs).content));
-                break;
-            case ADD_DD:
-                result = new ImmDouble(((ImmDouble) this.lhs).content + ((ImmDouble) this.rhs).content);
-                break;
-            case SUB_DD:
-                result = new ImmDouble(((ImmDouble) this.lhs).content - ((ImmDouble) this.rhs).content);
-                break;
-            case MUL_DD:
-                result = new ImmDouble(((ImmDouble) this.lhs).content * ((ImmDouble) this.rhs).content);
-                break;
-            case DIV_DD:
-                result = new ImmDouble(((ImmDouble) this.lhs).content / ((ImmDouble) this.rhs).content);
-                break;
-            case MOD_DD:
-                result = new ImmDouble(((ImmDouble) this.lhs).content % ((ImmDouble) this.rhs).content);
-                break;
-            case CMP_DD:
-                result = IntegerType.INT32.createImmediate(Double.compare(((ImmDouble) this.lhs).content, ((ImmDouble) this.rhs).content));
-                break;
-            case CMP_CC:
-                result = IntegerType.INT32.createImmediate(Character.compare(((ImmCharacter) this.lhs).content, ((ImmCharacter) this.rhs).content));
-                break;
-            case CMP_SS:
-                result = IntegerType.INT32.createImmediate(((ImmString) this.lhs).content.compareTo(((ImmString) this.rhs).content));
-                break;
-            default:
-                break;
-            }
-
-            if (result != null) {
-                // This becomes a move statement
-                return new MoveStatement(this.dst, result);
-            }
-        } catch (ClassCastException ex) {
-            // Swallow it
+            result = this.operator.evaluate(this.lhs, this.rhs);
+        } catch (ArithmeticException ex) {
+            // might be on a path that is never taken,
+            // so leave it for the program to fail at runtime
+            return this;
+        }
+        if (result != null) {
+            // This becomes a move statement
+            return new MoveStatement(this.dst, result);
         }
 
         // It might be something we don't know how to unfold
@@ -3,5 +3,16 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac.statement;
 
+import java.util.Collections;
+import java.util.List;
+
+import com.ymcmp.midform.tac.Block;
+
 public interface BranchStatement extends Statement {
-}
\ No newline at end of file
+
+    public default List<Block> getSuccessors() {
+        // Blocks that control may be transferred to,
+        // none by default (returns and tail calls)
+        return Collections.emptyList();
+    }
+}
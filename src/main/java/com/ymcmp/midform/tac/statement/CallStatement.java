@@ -7,12 +7,9 @@ import static com.ymcmp.midform.tac.type.Types.assignableFrom;
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.FunctionType;
 import com.ymcmp.midform.tac.type.Type;
@@ -43,6 +40,14 @@ public final class CallStatement extends AbstractCallStatement<CallStatement> {
         return Optional.of(this.dst);
     }
 
+    @Override
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new CallStatement(repl, this.sub, this.arg);
+        }
+        return this;
+    }
+
     @Override
     public void validateType(Subroutine s) {
         super.validateType(s);
@@ -53,13 +58,6 @@ public final class CallStatement extends AbstractCallStatement<CallStatement> {
         }
     }
 
-    @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        super.reachBlock(marked, bindings);
-
-        Statement.bumpAssignmentCounter(bindings, this.dst);
-    }
-
     @Override
     public String toString() {
         return "call " + dst + ", " + sub + ' ' + arg;
@@ -5,13 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.function.Supplier;
 
-import com.ymcmp.midform.tac.BindingCounter;
 import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.*;
@@ -72,6 +69,98 @@ public final class ConditionalJumpStatement implements BranchStatement {
             }
         }
     
+        public Boolean evaluate(Value lhs, Value rhs) {
+            try {
+                Boolean boxed = null;
+                switch (this) {
+                case EQ_II:
+                    boxed = ((ImmInteger) lhs).content == ((ImmInteger) rhs).content;
+                    break;
+                case NE_II:
+                    boxed = ((ImmInteger) lhs).content != ((ImmInteger) rhs).content;
+                    break;
+                case LT_II:
+                    boxed = ((ImmInteger) lhs).content < ((ImmInteger) rhs).content;
+                    break;
+                case LE_II:
+                    boxed = ((ImmInteger) lhs).content <= ((ImmInteger) rhs).content;
+                    break;
+                case GE_II:
+                    boxed = ((ImmInteger) lhs).content >= ((ImmInteger) rhs).content;
+                    break;
+                case GT_II:
+                    boxed = ((ImmInteger) lhs).content > ((ImmInteger) rhs).content;
+                    break;
+                case EQ_DD:
+                    boxed = ((ImmDouble) lhs).content == ((ImmDouble) rhs).content;
+                    break;
+                case NE_DD:
+                    boxed = ((ImmDouble) lhs).content != ((ImmDouble) rhs).content;
+                    break;
+                case LT_DD:
+                    boxed = ((ImmDouble) lhs).content < ((ImmDouble) rhs).content;
+                    break;
+                case LE_DD:
+                    boxed = ((ImmDouble) lhs).content <= ((ImmDouble) rhs).content;
+                    break;
+                case GE_DD:
+                    boxed = ((ImmDouble) lhs).content >= ((ImmDouble) rhs).content;
+                    break;
+                case GT_DD:
+                    boxed = ((ImmDouble) lhs).content > ((ImmDouble) rhs).content;
+                    break;
+                case EQ_CC:
+                    boxed = ((ImmCharacter) lhs).content == ((ImmCharacter) rhs).content;
+                    break;
+                case NE_CC:
+                    boxed = ((ImmCharacter) lhs).content != ((ImmCharacter) rhs).content;
+                    break;
+                case LT_CC:
+                    boxed = ((ImmCharacter) lhs).content < ((ImmCharacter) rhs).content;
+                    break;
+                case LE_CC:
+                    boxed = ((ImmCharacter) lhs).content <= ((ImmCharacter) rhs).content;
+                    break;
+                case GE_CC:
+                    boxed = ((ImmCharacter) lhs).content >= ((ImmCharacter) rhs).content;
+                    break;
+                case GT_CC:
+                    boxed = ((ImmCharacter) lhs).content > ((ImmCharacter) rhs).content;
+                    break;
+                case EQ_SS:
+                    boxed = ((ImmString) lhs).content.equals(((ImmString) rhs).content);
+                    break;
+                case NE_SS:
+                    boxed = !((ImmString) lhs).content.equals(((ImmString) rhs).content);
+                    break;
+                case LT_SS:
+                    boxed = ((ImmString) lhs).content.compareTo(((ImmString) rhs).content) < 0;
+                    break;
+                case LE_SS:
+                    boxed = ((ImmString) lhs).content.compareTo(((ImmString) rhs).content) <= 0;
+                    break;
+                case GE_SS:
+                    boxed = ((ImmString) lhs).content.compareTo(((ImmString) rhs).content) >= 0;
+                    break;
+                case GT_SS:
+                    boxed = ((ImmString) lhs).content.compareTo(((ImmString) rhs).content) > 0;
+                    break;
+                case EQ_ZZ:
+                    boxed = ((ImmBoolean) lhs).content == ((ImmBoolean) rhs).content;
+                    break;
+                case NE_ZZ:
+                    boxed = ((ImmBoolean) lhs).content != ((ImmBoolean) rhs).content;
+                    break;
+                default:
+                    break;
+                }
+                return boxed;
+            } catch (ClassCastException ex) {
+                // Operands are not (all) constants
+                return null;
+            }
+        }
+
         @Override
         public String toString() {
             return this.name().toLowerCase().replace("_", ".");
@@ -103,6 +192,12 @@ public final class ConditionalJumpStatement implements BranchStatement {
         return true;
     }
 
+    @Override
+    public List<Block> getSuccessors() {
+        // Both targets, even if they are the same block
+        return Arrays.asList(this.ifTrue, this.ifFalse);
+    }
+
     @Override
     public void validateType(Subroutine s) {
         if (!this.operator.isTypeValid(this.lhs.getType(), this.rhs.getType())) {
@@ -111,49 +206,8 @@ public final class ConditionalJumpStatement implements BranchStatement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, final Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.lhs);
-        Statement.checkBindingDeclaration(bindings, this.rhs);
-
-        // since the control flow diverges at this point,
-        // duplicate the maps and perform trace on it
-
-        // Note: the binding counter needs to be deep copied
-        final Supplier<Map<Binding, BindingCounter>> dupMap = () ->
-                bindings.entrySet().stream().collect(Collectors
-                        .toMap(Map.Entry::getKey, e -> new BindingCounter(e.getValue())));
-
-        final Map<Binding, BindingCounter> bmap1 = dupMap.get();
-        final Map<Binding, BindingCounter> bmap2 = dupMap.get();
-
-        final Map<Block, Integer> mmap1 = new HashMap<>(marked);
-        final Map<Block, Integer> mmap2 = new HashMap<>(marked);
-
-        this.ifTrue.trace(mmap1, bmap1);
-        this.ifFalse.trace(mmap2, bmap2);
-
-        // Take the union of the two maps
-        // if duplicate, then we take the upper bound
-
-        for (final Map.Entry<Binding, BindingCounter> entry : bmap2.entrySet()) {
-            final Binding key = entry.getKey();
-            final BindingCounter merged = bmap1.getOrDefault(key, new BindingCounter());
-            merged.takeMaximum(entry.getValue());
-            bmap1.put(key, merged);
-        }
-
-        for (final Map.Entry<Block, Integer> entry : mmap2.entrySet()) {
-            final Block key = entry.getKey();
-            mmap1.put(key, Math.max(mmap1.getOrDefault(key, 0), entry.getValue()));
-        }
-
-        // replace marked with the union
-
-        bindings.clear();
-        bindings.putAll(bmap1);
-
-        marked.clear();
-        marked.putAll(mmap1);
+    public List<Value> getInputs() {
+        return Arrays.asList(this.lhs, this.rhs);
     }
 
     @Override
@@ -169,97 +223,10 @@ public final class ConditionalJumpStatement implements BranchStatement {
 
     @Override
     public Statement unfoldConstants() {
-        try {
-            Boolean boxed = null;
-            switch (this.operator) {
-            case EQ_II:
-                boxed = ((ImmInteger) this.lhs).content == ((ImmInteger) this.rhs).content;
-                break;
-            case NE_II:
-                boxed = ((ImmInteger) this.lhs).content != ((ImmInteger) this.rhs).content;
-                break;
-            case LT_II:
-                boxed = ((ImmInteger) this.lhs).content < ((ImmInteger) this.rhs).content;
-                break;
-            case LE_II:
-                boxed = ((ImmInteger) this.lhs).content <= ((ImmInteger) this.rhs).content;
-                break;
-            case GE_II:
-                boxed = ((ImmInteger) this.lhs).content >= ((ImmInteger) this.rhs).content;
-                break;
-            case GT_II:
-                boxed = ((ImmInteger) this.lhs).content > ((ImmInteger) this.rhs).content;
-                break;
-            case EQ_DD:
-                boxed = ((ImmDouble) this.lhs).content == ((ImmDouble) this.rhs).content;
-                break;
-            case NE_DD:
-                boxed = ((ImmDouble) this.lhs).content != ((ImmDouble) this.rhs).content;
-                break;
-            case LT_DD:
-                boxed = ((ImmDouble) this.lhs).content < ((ImmDouble) this.rhs).content;
-                break;
-            case LE_DD:
-                boxed = ((ImmDouble) this.lhs).content <= ((ImmDouble) this.rhs).content;
-                break;
-            case GE_DD:
-                boxed = ((ImmDouble) this.lhs).content >= ((ImmDouble) this.rhs).content;
-                break;
-            case GT_DD:
-                boxed = ((ImmDouble) this.lhs).content > ((ImmDouble) this.rhs).content;
-                break;
-            case EQ_CC:
-                boxed = ((ImmCharacter) this.lhs).content == ((ImmCharacter) this.rhs).content;
-                break;
-            case NE_CC:
-                boxed = ((ImmCharacter) this.lhs).content != ((ImmCharacter) this.rhs).content;
-                break;
-            case LT_CC:
-                boxed = ((ImmCharacter) this.lhs).content < ((ImmCharacter) this.rhs).content;
-                break;
-            case LE_CC:
-                boxed = ((ImmCharacter) this.lhs).content <= ((ImmCharacter) this.rhs).content;
-                break;
-            case GE_CC:
-                boxed = ((ImmCharacter) this.lhs).content >= ((ImmCharacter) this.rhs).content;
-                break;
-            case GT_CC:
-                boxed = ((ImmCharacter) this.lhs).content > ((ImmCharacter) this.rhs).content;
-                break;
-            case EQ_SS:
-                boxed = ((ImmString) this.lhs).content.equals(((ImmString) this.rhs).content);
-                break;
-            case NE_SS:
-                boxed = !((ImmString) this.lhs).content.equals(((ImmString) this.rhs).content);
-                break;
-            case LT_SS:
-                boxed = ((ImmString) this.lhs).content.compareTo(((ImmString) this.rhs).content) < 0;
-                break;
-            case LE_SS:
-                boxed = ((ImmString) this.lhs).content.compareTo(((ImmString) this.rhs).content) <= 0;
-                break;
-            case GE_SS:
-                boxed = ((ImmString) this.lhs).content.compareTo(((ImmString) this.rhs).content) >= 0;
-                break;
-            case GT_SS:
-                boxed = ((ImmString) this.lhs).content.compareTo(((ImmString) this.rhs).content) > 0;
-                break;
-            case EQ_ZZ:
-                boxed = ((ImmBoolean) this.lhs).content == ((ImmBoolean) this.rhs).content;
-                break;
-            case NE_ZZ:
-                boxed = ((ImmBoolean) this.lhs).content != ((ImmBoolean) this.rhs).content;
-                break;
-            default:
-                break;
-            }
-
-            if (boxed != null) {
-                // then we change to direct jump (goto) depending on result
-                return new GotoStatement(boxed.booleanValue() ? ifTrue : ifFalse);
-            }
-        } catch (ClassCastException ex) {
-            // Swallow it
+        final Boolean boxed = this.operator.evaluate(this.lhs, this.rhs);
+        if (boxed != null) {
+            // then we change to direct jump (goto) depending on result
+            return new GotoStatement(boxed.booleanValue() ? ifTrue : ifFalse);
         }
 
         // It might be something we don't know how to unfold
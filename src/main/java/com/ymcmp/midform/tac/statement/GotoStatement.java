@@ -3,11 +3,11 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac.statement;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
 import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.value.Binding;
@@ -21,6 +21,11 @@ public final class GotoStatement implements BranchStatement {
         this.next = Objects.requireNonNull(next);
     }
 
+    @Override
+    public List<Block> getSuccessors() {
+        return Collections.singletonList(this.next);
+    }
+
     @Override
     public Optional<Binding> getResultRegister() {
         return Optional.empty();
@@ -32,8 +37,8 @@ public final class GotoStatement implements BranchStatement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        this.next.trace(marked, bindings);
+    public List<Value> getInputs() {
+        return Collections.emptyList();
     }
 
     @Override
@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.type.ReferenceType;
@@ -53,9 +52,8 @@ public final class LoadRefStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.ref);
-        Statement.bumpAssignmentCounter(bindings, this.dst);
+    public List<Value> getInputs() {
+        return Collections.singletonList(this.ref);
     }
 
     @Override
@@ -65,6 +63,14 @@ public final class LoadRefStatement implements Statement {
         return this;
     }
 
+    @Override
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new LoadRefStatement(repl, this.ref);
+        }
+        return this;
+    }
+
     @Override
     public Statement unfoldConstants() {
         // Nothing to unfold
@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.type.ReferenceType;
@@ -52,9 +51,8 @@ public final class MakeRefStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.src);
-        Statement.bumpAssignmentCounter(bindings, this.dst);
+    public List<Value> getInputs() {
+        return Collections.singletonList(this.src);
     }
 
     @Override
@@ -64,6 +62,14 @@ public final class MakeRefStatement implements Statement {
         return this;
     }
 
+    @Override
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new MakeRefStatement(repl, this.src);
+        }
+        return this;
+    }
+
     @Override
     public Statement unfoldConstants() {
         // Nothing to unfold
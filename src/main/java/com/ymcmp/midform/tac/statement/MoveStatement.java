@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.value.Binding;
@@ -47,9 +46,8 @@ public class MoveStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.src);
-        Statement.bumpAssignmentCounter(bindings, this.dst);
+    public List<Value> getInputs() {
+        return Collections.singletonList(this.src);
     }
 
     @Override
@@ -61,6 +59,14 @@ public class MoveStatement implements Statement {
         return this;
     }
 
+    @Override
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new MoveStatement(repl, this.src);
+        }
+        return this;
+    }
+
     @Override
     public Statement unfoldConstants() {
         // Nothing to unfold
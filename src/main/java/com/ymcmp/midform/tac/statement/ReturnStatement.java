@@ -5,12 +5,11 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.value.Binding;
@@ -46,8 +45,8 @@ public final class ReturnStatement implements YieldStatement<MoveStatement> {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.value);
+    public List<Value> getInputs() {
+        return Collections.singletonList(this.value);
     }
 
     @Override
@@ -4,11 +4,10 @@
 package com.ymcmp.midform.tac.statement;
 
 import java.io.Serializable;
-import java.util.Map;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.value.*;
 
@@ -23,38 +22,27 @@ public interface Statement extends Serializable {
     }
 
     public void validateType(Subroutine enclosingSubroutine);
-    public void reachBlock(Map<Block, Integer> markedBlocks, Map<Binding, BindingCounter> markedBindings);
-    public Statement replaceRead(Binding binding, Value value);
-    public Statement unfoldConstants();
 
-    public static void checkBindingDeclaration(Map<Binding, BindingCounter> bindingMap, Value src) {
-        if (src instanceof Tuple) {
-            // Only tuples can potentially contain other bindings
-            final Tuple tuple = (Tuple) src;
-            for (final Value v : tuple.values) {
-                checkBindingDeclaration(bindingMap, v);
-            }
-        } else if (src instanceof Binding) {
-            final BindingCounter counter = bindingMap.computeIfAbsent((Binding) src, k -> new BindingCounter());
-            if (counter.getWrites() == 0) {
-                throw new RuntimeException("Using an unassigned binding: " + src);
-            }
+    // Values being read (bindings can be nested inside of tuples)
+    public List<Value> getInputs();
 
-            // Issue a read command
-            counter.newRead();
-        }
+    public Statement replaceRead(Binding binding, Value value);
+
+    public default Statement replaceWrite(Binding binding, Binding repl) {
+        // Only statements with a result register have anything to replace
+        return this;
     }
 
-    public static BindingCounter bumpAssignmentCounter(Map<Binding, BindingCounter> bindingMap, Binding dst) {
-        final BindingCounter counter = bindingMap.computeIfAbsent(dst, k -> new BindingCounter());
-        if (dst instanceof Binding.Immutable) {
-            if (counter.getWrites() != 0) {
-                throw new RuntimeException("Immutable binding: " + dst + " is assigned more than once!");
+    public Statement unfoldConstants();
+
+    public static void forEachBinding(Value value, Consumer<? super Binding> action) {
+        if (value instanceof Tuple) {
+            // Only tuples can potentially contain other bindings
+            for (final Value v : ((Tuple) value).values) {
+                forEachBinding(v, action);
             }
+        } else if (value instanceof Binding) {
+            action.accept((Binding) value);
         }
-
-        // Issue a write command
-        counter.newWrite();
-        return counter;
     }
 }
\ No newline at end of file
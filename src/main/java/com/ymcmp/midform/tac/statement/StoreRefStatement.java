@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.Type;
 import com.ymcmp.midform.tac.type.ReferenceType;
@@ -61,10 +60,9 @@ public final class StoreRefStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        // XXX: Do not bumpAssignmentCounter on ref (we are actually reading from ref!)
-        Statement.checkBindingDeclaration(bindings, this.src);
-        Statement.checkBindingDeclaration(bindings, this.ref);
+    public List<Value> getInputs() {
+        // this.ref is read too (it's the referent that is written)
+        return Arrays.asList(this.src, this.ref);
     }
 
     @Override
@@ -5,11 +5,10 @@ package com.ymcmp.midform.tac.statement;
 
 import static com.ymcmp.midform.tac.type.Types.equivalent;
 
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
-import com.ymcmp.midform.tac.BindingCounter;
-import com.ymcmp.midform.tac.Block;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.type.*;
 import com.ymcmp.midform.tac.value.*;
@@ -61,6 +60,56 @@ public class UnaryStatement implements Statement {
             }
         }
 
+        public Value evaluate(Value src) {
+            try {
+                Value result = null;
+                switch (this) {
+                case NOT_I:
+                    result = ((ImmInteger) src).not();
+                    break;
+                case NEG_I:
+                    result = ((ImmInteger) src).negate();
+                    break;
+                case POS_I: // +k yields k
+                    result = (ImmInteger) src;
+                    break;
+                case NOT_Z:
+                    result = new ImmBoolean(!((ImmBoolean) src).content);
+                    break;
+                case NEG_D:
+                    result = new ImmDouble(-((ImmDouble) src).content);
+                    break;
+                case POS_D: // +k yields k
+                    result = (ImmDouble) src;
+                    break;
+                case I2D:
+                    result = new ImmDouble(((ImmInteger) src).content);
+                    break;
+                case D2I:
+                    result = IntegerType.INT32.createImmediate((int) ((ImmDouble) src).content);
+                    break;
+                case I2Z:
+                    result = new ImmBoolean(((ImmInteger) src).content != 0);
+                    break;
+                case Z2I:
+                    result = IntegerType.INT32.createImmediate(((ImmBoolean) src).content ? 1 : 0);
+                    break;
+                case I2B:
+                    result = IntegerType.INT8.createImmediate((byte) ((ImmInteger) src).content);
+                    break;
+                case B2I:
+                    result = IntegerType.INT32.createImmediate((int) ((ImmInteger) src).content);
+                    break;
+                default:
+                    break;
+                }
+                return result;
+            } catch (ClassCastException ex) {
+                // Operands are not (all) constants
+                return null;
+            }
+        }
+
         @Override
         public String toString() {
             return this.name().toLowerCase().replace("_", ".");
@@ -96,9 +145,8 @@ public class UnaryStatement implements Statement {
     }
 
     @Override
-    public void reachBlock(Map<Block, Integer> marked, Map<Binding, BindingCounter> bindings) {
-        Statement.checkBindingDeclaration(bindings, this.src);
-        Statement.bumpAssignmentCounter(bindings, this.dst);
+    public List<Value> getInputs() {
+        return Collections.singletonList(this.src);
     }
 
     @Override
@@ -111,56 +159,19 @@ public class UnaryStatement implements Statement {
     }
 
     @Override
-    public Statement unfoldConstants() {
-        try {
-            Value result = null;
-            switch (this.operator) {
-            case NOT_I:
-                result = ((ImmInteger) this.src).not();
-                break;
-            case NEG_I:
-                result = ((ImmInteger) this.src).negate();
-                break;
-            case POS_I: // +k yields k
-                result = (ImmInteger) this.src;
-                break;
-            case NOT_Z:
-                result = new ImmBoolean(!((ImmBoolean) this.src).content);
-                break;
-            case NEG_D:
-                result = new ImmDouble(-((ImmDouble) this.src).content);
-                break;
-            case POS_D: // +k yields k
-                result = (ImmDouble) this.src;
-                break;
-            case I2D:
-                result = new ImmDouble(((ImmInteger) this.src).content);
-                break;
-            case D2I:
-                result = IntegerType.INT32.createImmediate((int) ((ImmDouble) this.src).content);
-                break;
-            case I2Z:
-                result = new ImmBoolean(((ImmInteger) this.src).content != 0);
-                break;
-            case Z2I:
-                result = IntegerType.INT32.createImmediate(((ImmBoolean) this.src).content ? 1 : 0);
-                break;
-            case I2B:
-                result = IntegerType.INT8.createImmediate((byte) ((ImmInteger) this.src).content);
-                break;
-            case B2I:
-                result = IntegerType.INT32.createImmediate((int) ((ImmInteger) this.src).content);
-                break;
-            default:
-                break;
-            }
+    public Statement replaceWrite(Binding binding, Binding repl) {
+        if (this.dst.equals(binding)) {
+            return new UnaryStatement(this.operator, repl, this.src);
+        }
+        return this;
+    }
 
-            if (result != null) {
-                // This becomes a move statement
-                return new MoveStatement(this.dst, result);
-            }
-        } catch (ClassCastException ex) {
-            // Swallow it
+    @Override
+    public Statement unfoldConstants() {
+        final Value result = this.operator.evaluate(this.src);
+        if (result != null) {
+            // This becomes a move statement
+            return new MoveStatement(this.dst, result);
         }
 
         // It might be something we don't know how to unfold
@@ -45,7 +45,8 @@ public final class ImmDouble extends Value {
     public boolean equals(Object obj) {
         if (obj instanceof ImmDouble) {
             final ImmDouble imm = (ImmDouble) obj;
-            return this.content == imm.content;
+            // same bits, so 0.0 and -0.0 differ (like hashCode)
+            return Double.compare(this.content, imm.content) == 0;
         }
         return false;
     }
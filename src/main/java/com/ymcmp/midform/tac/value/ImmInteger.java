@@ -72,8 +72,11 @@ public final class ImmInteger extends Value {
     }
 
     public ImmInteger negate() {
-        final IntegerType resultType = this.type == IntegerType.INT64 ? IntegerType.INT64 : IntegerType.INT32;
-        return new ImmInteger(resultType, -this.content);
+        if (this.type == IntegerType.INT64) {
+            return new ImmInteger(IntegerType.INT64, -this.content);
+        }
+        // wraps around like the other operations (-MIN_VALUE is MIN_VALUE)
+        return new ImmInteger(IntegerType.INT32, -(int) this.content);
     }
 
     public ImmInteger and(ImmInteger other) {
@@ -41,8 +41,16 @@ public final class Tuple extends Value {
 
     @Override
     public Value replaceBinding(final Binding binding, final Value t) {
-        return new Tuple(values.stream().map(value -> value.replaceBinding(binding, t))
-                .collect(Collectors.toList()), type);
+        final List<Value> repl = values.stream().map(value -> value.replaceBinding(binding, t))
+                .collect(Collectors.toList());
+
+        // same tuple if nothing was replaced (callers use that to detect changes)
+        for (int i = 0; i < repl.size(); ++i) {
+            if (repl.get(i) != values.get(i)) {
+                return new Tuple(repl, type);
+            }
+        }
+        return this;
     }
 
     @Override
@@ -5,16 +5,25 @@ package com.ymcmp.si.lang;
 
 import java.io.PrintStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import com.ymcmp.si.lang.grammar.SiLexer;
 import com.ymcmp.si.lang.grammar.SiParser;
 
 import com.ymcmp.midform.tac.Block;
+import com.ymcmp.midform.tac.CompileTimeEvaluator;
 import com.ymcmp.midform.tac.Emulator;
+import com.ymcmp.midform.tac.EmulatorException;
+import com.ymcmp.midform.tac.NativeHandler;
+import com.ymcmp.midform.tac.Peephole;
+import com.ymcmp.midform.tac.Profiler;
+import com.ymcmp.midform.tac.ProgramOptimizer;
 import com.ymcmp.midform.tac.Subroutine;
 import com.ymcmp.midform.tac.codegen.*;
 import com.ymcmp.midform.tac.statement.*;
@@ -31,15 +40,28 @@ public class App {
     public static void main(String[] args) {
         boolean emitTAC = false;
         boolean emitC99 = false;
-        boolean optimize = false;
+        int optLevel = 0;
         String outName = "out";
         String entryName = null;
         LinkedList<String> inName = new LinkedList<>();
+        long evalSteps = CompileTimeEvaluator.DEFAULT_STEP_LIMIT;
+        long evalTimeout = 0;
+        String profileName = null;
+        boolean ruleStats = false;
+        boolean run = false;
+        int repeat = 1;
+        int warmup = 0;
 
         boolean previewTC = false;
 
         boolean readOutFile = false;
         boolean readEntryPoint = false;
+        boolean readEvalSteps = false;
+        boolean readEvalTimeout = false;
+        boolean readProfile = false;
+        boolean readOptLevel = false;
+        boolean readRepeat = false;
+        boolean readWarmup = false;
         for (int i = 0; i < args.length; ++i) {
             final String arg = args[i];
 
@@ -55,6 +77,76 @@ public class App {
                 continue;
             }
 
+            if (readProfile) {
+                profileName = arg;
+                readProfile = false;
+                continue;
+            }
+
+            if (readOptLevel) {
+                try {
+                    optLevel = Integer.parseInt(arg);
+                } catch (NumberFormatException ex) {
+                    optLevel = -1;
+                }
+                if (optLevel < 0) {
+                    System.err.println("error: illegal optimization level: '" + arg + "'");
+                    return;
+                }
+                readOptLevel = false;
+                continue;
+            }
+
+            if (readEvalSteps) {
+                try {
+                    evalSteps = Long.parseLong(arg);
+                } catch (NumberFormatException ex) {
+                    System.err.println("error: illegal step limit: '" + arg + "'");
+                    return;
+                }
+                readEvalSteps = false;
+                continue;
+            }
+
+            if (readEvalTimeout) {
+                try {
+                    evalTimeout = Long.parseLong(arg);
+                } catch (NumberFormatException ex) {
+                    System.err.println("error: illegal time limit: '" + arg + "'");
+                    return;
+                }
+                readEvalTimeout = false;
+                continue;
+            }
+
+            if (readRepeat) {
+                try {
+                    repeat = Integer.parseInt(arg);
+                } catch (NumberFormatException ex) {
+                    repeat = -1;
+                }
+                if (repeat < 1) {
+                    System.err.println("error: illegal repeat count: '" + arg + "'");
+                    return;
+                }
+                readRepeat = false;
+                continue;
+            }
+
+            if (readWarmup) {
+                try {
+                    warmup = Integer.parseInt(arg);
+                } catch (NumberFormatException ex) {
+                    warmup = -1;
+                }
+                if (warmup < 0) {
+                    System.err.println("error: illegal warm-up count: '" + arg + "'");
+                    return;
+                }
+                readWarmup = false;
+                continue;
+            }
+
             if (arg.charAt(0) == '-') {
                 switch (arg) {
                     case "-h":
@@ -77,7 +169,31 @@ public class App {
                         emitC99 = true;
                         break;
                     case "-t":
-                        optimize = true;
+                        optLevel = Math.max(optLevel, 1);
+                        break;
+                    case "-O":
+                        readOptLevel = true;
+                        break;
+                    case "--profile":
+                        readProfile = true;
+                        break;
+                    case "--rule-stats":
+                        ruleStats = true;
+                        break;
+                    case "--eval-steps":
+                        readEvalSteps = true;
+                        break;
+                    case "--eval-timeout":
+                        readEvalTimeout = true;
+                        break;
+                    case "--run":
+                        run = true;
+                        break;
+                    case "--repeat":
+                        readRepeat = true;
+                        break;
+                    case "--warmup":
+                        readWarmup = true;
                         break;
                     case "--only-tc":
                         previewTC = true;
@@ -97,6 +213,12 @@ public class App {
             return;
         }
 
+        // nothing is executed unless something is evaluated or run
+        if (profileName != null && (previewTC || optLevel == 0 && !run)) {
+            System.err.println("error: --profile needs -t, -O or --run");
+            return;
+        }
+
         if (previewTC) {
             final TypeChecker compiler = new TypeChecker();
             String name;
@@ -117,16 +239,57 @@ public class App {
         compiler.processLoadedModules();
 
         final Map<String, Subroutine> ifuncs = compiler.getAllInstantiatedFunctions();
-        if (optimize) {
-            boolean restart = true;
-            while (restart) {
-                restart = false;
-                for (final Subroutine sub : ifuncs.values()) {
-                    restart |= sub.optimize();
-                }
+        final Profiler profiler = profileName == null ? null : new Profiler();
+        if (optLevel > 0) {
+            // level 2 and up also saturate the pure computations of each block
+            Subroutine.getEqualitySaturation().setEnabled(optLevel >= 2);
+
+            // expr functions that run out of budget are called at runtime instead
+            final CompileTimeEvaluator evaluator = AbstractCallStatement.getEvaluator();
+            evaluator.setStepLimit(evalSteps);
+            evaluator.setTimeLimit(evalTimeout);
+            evaluator.setDiagnosticHandler(msg -> System.err.println("warning: " + msg));
+
+            evaluator.getEmulator().setProfiler(profiler);
+
+            // the profiler only supports one thread
+            if (profiler == null) {
+                ProgramOptimizer.optimizeAll(ifuncs.values(), ForkJoinPool.commonPool());
+            } else {
+                ProgramOptimizer.optimizeAll(ifuncs.values());
+            }
+
+            if (!run && profiler != null && !writeProfile(profiler, profileName)) {
+                return;
+            }
+            if (ruleStats) {
+                System.err.println("# rewrite rules fired");
+                Peephole.writeReport(System.err);
             }
         }
 
+        if (run) {
+            if (entryName == null) {
+                System.err.println("error: --run needs an entry point (-e)");
+                return;
+            }
+
+            final Subroutine entry = lookupEntry(ifuncs, entryName);
+            if (entry == null) {
+                return;
+            }
+
+            // the profile covers both the compile-time evaluation and the run
+            final Integer status = runEntry(entry, repeat, warmup, profiler);
+            if (profiler != null && !writeProfile(profiler, profileName)) {
+                return;
+            }
+            if (status != null && status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+
         final LinkedList<CodeGenerator> codegens = new LinkedList<>();
 
         if (emitTAC || !emitTAC && !emitC99) {
@@ -138,13 +301,8 @@ public class App {
 
         // then we check our entry point:
         if (entryName != null) {
-            final Subroutine entry = ifuncs.get(entryName);
+            final Subroutine entry = lookupEntry(ifuncs, entryName);
             if (entry == null) {
-                System.err.println("error: unknown entry point: '" + entryName + "'");
-                return;
-            }
-            if (!Types.equivalent(entry.type, ENTRY_SIG)) {
-                System.err.println("error: illegal signature for entry point: '" + entryName + "'");
                 return;
             }
 
@@ -169,6 +327,106 @@ public class App {
         }
     }
 
+    private static boolean writeProfile(Profiler profiler, String fileName) {
+        // the collapsed stacks go into a separate file for flame graph tools
+        try (final PrintStream report = new PrintStream(fileName);
+             final PrintStream stacks = new PrintStream(fileName + ".folded")) {
+            profiler.writeReport(report);
+            profiler.writeCollapsedStacks(stacks);
+            return true;
+        } catch (IOException ex) {
+            System.err.println("error: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private static Subroutine lookupEntry(Map<String, Subroutine> ifuncs, String entryName) {
+        final Subroutine entry = ifuncs.get(entryName);
+        if (entry == null) {
+            System.err.println("error: unknown entry point: '" + entryName + "'");
+            return null;
+        }
+        if (!Types.equivalent(entry.type, ENTRY_SIG)) {
+            System.err.println("error: illegal signature for entry point: '" + entryName + "'");
+            return null;
+        }
+        return entry;
+    }
+
+    private static Integer runEntry(Subroutine entry, int repeat, int warmup, Profiler profiler) {
+        final Emulator emulator = new Emulator();
+        emulator.setProfiler(profiler);
+        addBuiltinHandlers(emulator);
+
+        try {
+            emulator.link(entry);
+
+            for (int i = 0; i < warmup; ++i) {
+                emulator.callSubroutine(entry);
+            }
+
+            // allocation is only measurable on JVMs that track it per thread
+            final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            final com.sun.management.ThreadMXBean allocs = mx instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) mx : null;
+            final long threadId = Thread.currentThread().getId();
+
+            final long[] nanos = new long[repeat];
+            final long allocStart = allocs == null ? -1 : allocs.getThreadAllocatedBytes(threadId);
+            Value result = null;
+            for (int i = 0; i < repeat; ++i) {
+                final long start = System.nanoTime();
+                result = emulator.callSubroutine(entry);
+                nanos[i] = System.nanoTime() - start;
+            }
+            final long allocEnd = allocs == null ? -1 : allocs.getThreadAllocatedBytes(threadId);
+            System.out.flush();
+
+            if (repeat > 1 || warmup > 0) {
+                writeRunReport(nanos, warmup, allocStart < 0 || allocEnd < 0 ? -1 : allocEnd - allocStart);
+            }
+            return (int) ((ImmInteger) result).content;
+        } catch (EmulatorException ex) {
+            System.out.flush();
+            System.err.println("error: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeRunReport(long[] nanos, int warmup, long allocated) {
+        long total = 0;
+        for (final long t : nanos) {
+            total += t;
+        }
+
+        final long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        final int n = sorted.length;
+
+        System.err.println("runs: " + n + " (after " + warmup + " warm-up)");
+        System.err.printf("latency: min %.3f ms, median %.3f ms, p99 %.3f ms%n",
+                sorted[0] / 1e6, sorted[n / 2] / 1e6, sorted[Math.min(n - 1, (int) Math.ceil(n * 0.99) - 1)] / 1e6);
+        if (allocated < 0) {
+            System.err.println("allocation: not supported by this JVM");
+        } else {
+            System.err.printf("allocation: %d bytes/run, %.1f MB/s%n",
+                    allocated / n, allocated / 1e6 / (total / 1e9));
+        }
+    }
+
+    private static void addBuiltinHandlers(Emulator emulator) {
+        // a few functions from the C library, so the same program can be
+        // emitted as C99 or run directly
+        emulator.addExternalCallHandler("putchar", NativeHandler.ofLongUnary(ch -> {
+            System.out.write((int) ch);
+            return ch;
+        }));
+        emulator.addExternalCallHandler("puts", fargs -> {
+            System.out.println(((ImmString) fargs[0]).content);
+            return IntegerType.INT32.createImmediate(0);
+        });
+    }
+
     public static void help() {
         System.out.println("usage: Si [options...] file");
         System.out.println("options:");
@@ -178,7 +436,18 @@ public class App {
         System.out.println(" --emit-ir          Emit internal representation (default)");
         System.out.println(" --emit-c99         Emit C99 code");
         System.out.println(" -e <func>          Specifies the entry point, must have signature " + ENTRY_SIG);
-        System.out.println(" -t                 Premature optimize code");
+        System.out.println(" -t                 Premature optimize code (same as -O 1)");
+        System.out.println(" -O <level>         Optimize at <level>: 0 for none, 1 for the usual passes,");
+        System.out.println("                    2 to also use equality saturation (slower)");
+        System.out.println(" --eval-steps <n>   Limit each compile-time evaluation to <n> steps");
+        System.out.println("                    (default " + CompileTimeEvaluator.DEFAULT_STEP_LIMIT + ", negative for no limit)");
+        System.out.println(" --eval-timeout <t> Limit each compile-time evaluation to <t> ms");
+        System.out.println(" --profile <file>   Write an execution profile of compile-time evaluation and");
+        System.out.println("                    --run to <file> and collapsed stacks to <file>.folded");
+        System.out.println(" --rule-stats       Report how often each rewrite rule fired during optimization");
+        System.out.println(" --run              Run the entry point in the emulator instead of emitting code");
+        System.out.println(" --repeat <n>       Run the entry point <n> times and report latency and allocation");
+        System.out.println(" --warmup <n>       Run the entry point <n> times before measuring");
         System.out.println();
         System.out.println(" --only-tc          Use the experimental type checker");
     }
@@ -0,0 +1,59 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+package com.ymcmp.midform.tac;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.ymcmp.midform.tac.type.IntegerType;
+import com.ymcmp.midform.tac.value.Value;
+
+// Not a unit test: run it by hand to see how evaluation throughput scales
+// when several threads share one Emulator and the same subroutine.
+//
+//   java com.ymcmp.midform.tac.EmulatorScalingBenchmark [max threads] [calls per thread]
+public final class EmulatorScalingBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        final Emulator emulator = new Emulator();
+        final Subroutine subSum = EmulatorTest.synthRecursiveSum();
+        final Value arg = IntegerType.INT32.createImmediate(100);
+
+        // warm up both tiers
+        run(emulator, subSum, arg, 1, calls);
+
+        for (int threads = 1; threads <= maxThreads; ++threads) {
+            final long nanos = run(emulator, subSum, arg, threads, calls);
+            final double callsPerSec = (double) threads * calls / (nanos / 1e9);
+            System.out.printf("%3d threads: %12.0f calls/s%n", threads, callsPerSec);
+        }
+    }
+
+    private static long run(Emulator emulator, Subroutine sub, Value arg, int threads, int calls) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int n = 0; n < calls; ++n) {
+                    emulator.callSubroutine(sub, arg);
+                }
+            });
+            workers[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - begin;
+    }
+}
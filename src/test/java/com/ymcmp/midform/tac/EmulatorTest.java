@@ -3,8 +3,12 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 import com.ymcmp.midform.tac.statement.*;
 import com.ymcmp.midform.tac.value.*;
@@ -207,6 +211,79 @@ public class EmulatorTest {
         Assert.assertEquals(Tuple.from(new ImmCharacter('B'), new ImmCharacter('A')), this.emulator.callSubroutine(subCaller));
     }
 
+    @Test
+    public void testEscapedReferenceOutlivesCall() {
+        // function mk() {
+        // _entry:
+        //   mov x, 7
+        //   mkref %0, x
+        //   ret %0
+        // }
+        //
+        // function clob() {
+        // _entry:
+        //   mov y, 99
+        //   ret y
+        // }
+        //
+        // function main() {
+        // _entry:
+        //   call %0, mk ()
+        //   call %1, clob ()
+        //   ldref %2, %0
+        //   ret %2
+        // }
+
+        final ReferenceType refType = ReferenceType.mutable(IntegerType.INT32);
+        final Subroutine subMk = new Subroutine("", "mk", new FunctionType(UnitType.INSTANCE, refType));
+        final Subroutine subClob = new Subroutine("", "clob", new FunctionType(UnitType.INSTANCE, IntegerType.INT32));
+        final Subroutine subMain = new Subroutine("", "main", new FunctionType(UnitType.INSTANCE, IntegerType.INT32));
+
+        {
+            // mk function
+            final Block entry = new Block("_entry");
+            final Binding.Mutable x = new Binding.Mutable("x", IntegerType.INT32);
+            final Binding.Immutable t0 = new Binding.Immutable("%0", refType);
+            entry.setStatements(Arrays.asList(
+                    new MoveStatement(x, IntegerType.INT32.createImmediate(7)),
+                    new MakeRefStatement(t0, x),
+                    new ReturnStatement(t0)));
+            subMk.setInitialBlock(entry);
+        }
+
+        {
+            // clob function
+            final Block entry = new Block("_entry");
+            final Binding.Mutable y = new Binding.Mutable("y", IntegerType.INT32);
+            entry.setStatements(Arrays.asList(
+                    new MoveStatement(y, IntegerType.INT32.createImmediate(99)),
+                    new ReturnStatement(y)));
+            subClob.setInitialBlock(entry);
+        }
+
+        {
+            // main function
+            final Block entry = new Block("_entry");
+            final Binding.Immutable t0 = new Binding.Immutable("%0", refType);
+            final Binding.Immutable t1 = new Binding.Immutable("%1", IntegerType.INT32);
+            final Binding.Immutable t2 = new Binding.Immutable("%2", IntegerType.INT32);
+            entry.setStatements(Arrays.asList(
+                    new CallStatement(t0, new FuncRef.Local(subMk), ImmUnit.INSTANCE),
+                    new CallStatement(t1, new FuncRef.Local(subClob), ImmUnit.INSTANCE),
+                    new LoadRefStatement(t2, t0),
+                    new ReturnStatement(t2)));
+            subMain.setInitialBlock(entry);
+        }
+
+        subMk.validate();
+        subClob.validate();
+        subMain.validate();
+
+        // clob runs in the frame mk just left
+        this.emulator.setJitThreshold(-1);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(7), this.emulator.callSubroutine(subMain));
+    }
+
     @Test
     public void testSynthEvenOdd() {
         // function is_odd(n) {
@@ -296,4 +373,476 @@ public class EmulatorTest {
         Assert.assertEquals(new ImmBoolean(true), this.emulator.callSubroutine(subIsOdd, IntegerType.INT32.createImmediate(5)));
         Assert.assertEquals(new ImmBoolean(false), this.emulator.callSubroutine(subIsEven, IntegerType.INT32.createImmediate(5)));
     }
+
+    @Test
+    public void testSynthFactorial() {
+        // function fact(n) {
+        // _entry:
+        //   eq.ii %b0, %b1, n, 0
+        // %b0:
+        //   ret 1
+        // %b1:
+        //   sub.ii %t0, n, 1
+        //   call %t1, fact %t0
+        //   mul.ii %t2, n, %t1
+        //   ret %t2
+        // }
+
+        final Subroutine subFact = new Subroutine("", "fact", new FunctionType(IntegerType.INT32, IntegerType.INT32));
+
+        final Binding.Parameter n = new Binding.Parameter("n", IntegerType.INT32);
+        subFact.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Block b0 = new Block("%b0");
+        final Block b1 = new Block("%b1");
+
+        final Binding.Immutable t0 = new Binding.Immutable("%t0", IntegerType.INT32);
+        final Binding.Immutable t1 = new Binding.Immutable("%t1", IntegerType.INT32);
+        final Binding.Immutable t2 = new Binding.Immutable("%t2", IntegerType.INT32);
+
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, b0, b1, n, IntegerType.INT32.createImmediate(0))));
+
+        b0.setStatements(Collections.singletonList(
+                new ReturnStatement(IntegerType.INT32.createImmediate(1))));
+
+        b1.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, n, IntegerType.INT32.createImmediate(1)),
+                new CallStatement(t1, new FuncRef.Local(subFact), t0),
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t2, n, t1),
+                new ReturnStatement(t2)));
+
+        subFact.setInitialBlock(entry);
+
+        subFact.validate();
+        Assert.assertEquals(IntegerType.INT32.createImmediate(1), this.emulator.callSubroutine(subFact, IntegerType.INT32.createImmediate(0)));
+        Assert.assertEquals(IntegerType.INT32.createImmediate(120), this.emulator.callSubroutine(subFact, IntegerType.INT32.createImmediate(5)));
+
+        subFact.optimize();
+        Assert.assertEquals(IntegerType.INT32.createImmediate(1), this.emulator.callSubroutine(subFact, IntegerType.INT32.createImmediate(0)));
+        Assert.assertEquals(IntegerType.INT32.createImmediate(120), this.emulator.callSubroutine(subFact, IntegerType.INT32.createImmediate(5)));
+    }
+
+    @Test
+    public void testChangedInitialBlockIsExecuted() {
+        // function answer() {
+        // _entry:
+        //   ret 1
+        // }
+        //
+        // (then _entry is replaced with a block that does ret 2)
+
+        final Subroutine subAnswer = new Subroutine("", "answer", new FunctionType(UnitType.INSTANCE, IntegerType.INT32));
+
+        final Block first = new Block("_entry");
+        first.setStatements(Collections.singletonList(new ReturnStatement(IntegerType.INT32.createImmediate(1))));
+        subAnswer.setInitialBlock(first);
+
+        subAnswer.validate();
+        Assert.assertEquals(IntegerType.INT32.createImmediate(1), this.emulator.callSubroutine(subAnswer));
+
+        final Block second = new Block("_entry");
+        second.setStatements(Collections.singletonList(new ReturnStatement(IntegerType.INT32.createImmediate(2))));
+        subAnswer.setInitialBlock(second);
+
+        subAnswer.validate();
+        Assert.assertEquals(IntegerType.INT32.createImmediate(2), this.emulator.callSubroutine(subAnswer));
+    }
+
+    @Test
+    public void testSynthSumWithJit() {
+        // function sum(n, acc) {
+        // _entry:
+        //   eq.ii %b0, %b1, n, 0
+        // %b0:
+        //   ret acc
+        // %b1:
+        //   sub.ii %t0, n, 1
+        //   add.ii %t1, acc, n
+        //   tailcall sum (%t0, %t1)
+        // }
+
+        final Subroutine subSum = new Subroutine("", "sum", new FunctionType(TupleType.from(IntegerType.INT32, IntegerType.INT32), IntegerType.INT32));
+
+        final Binding.Parameter n = new Binding.Parameter("n", IntegerType.INT32);
+        final Binding.Parameter acc = new Binding.Parameter("acc", IntegerType.INT32);
+        subSum.setParameters(Arrays.asList(n, acc));
+
+        final Block entry = new Block("_entry");
+        final Block b0 = new Block("%b0");
+        final Block b1 = new Block("%b1");
+
+        final Binding.Immutable t0 = new Binding.Immutable("%t0", IntegerType.INT32);
+        final Binding.Immutable t1 = new Binding.Immutable("%t1", IntegerType.INT32);
+
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, b0, b1, n, IntegerType.INT32.createImmediate(0))));
+
+        b0.setStatements(Collections.singletonList(
+                new ReturnStatement(acc)));
+
+        b1.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, n, IntegerType.INT32.createImmediate(1)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t1, acc, n),
+                new TailCallStatement(new FuncRef.Local(subSum), Tuple.from(t0, t1))));
+
+        subSum.setInitialBlock(entry);
+        subSum.validate();
+
+        final Value arg = Tuple.from(IntegerType.INT32.createImmediate(1000), IntegerType.INT32.createImmediate(0));
+
+        this.emulator.setJitThreshold(-1);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(500500), this.emulator.callSubroutine(subSum, arg));
+        Assert.assertNull(subSum.getPreparedForm().compiled);
+
+        this.emulator.setJitThreshold(0);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(500500), this.emulator.callSubroutine(subSum, arg));
+        Assert.assertNotNull(subSum.getPreparedForm().compiled);
+
+        try {
+            this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(1000));
+            Assert.fail("Compiled code should reject the wrong number of arguments");
+        } catch (EmulatorException ex) {
+            // same as the interpreter
+        }
+    }
+
+    @Test
+    public void testJitFallsBackOnNativeCalls() {
+        // function main() {
+        // _entry:
+        //   call %0, print_int 10
+        //   ret 0
+        // }
+
+        final Subroutine subMain = new Subroutine("", "main", new FunctionType(UnitType.INSTANCE, IntegerType.INT32));
+        final Block entry = new Block("_entry");
+        final Binding.Immutable t0 = new Binding.Immutable("%0", UnitType.INSTANCE);
+        entry.setStatements(Arrays.asList(
+                new CallStatement(t0, new FuncRef.Native("print_int", new FunctionType(IntegerType.INT32, UnitType.INSTANCE)), IntegerType.INT32.createImmediate(10)),
+                new ReturnStatement(IntegerType.INT32.createImmediate(0))));
+        subMain.setInitialBlock(entry);
+
+        subMain.validate();
+        this.emulator.setJitThreshold(0);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(0), this.emulator.callSubroutine(subMain));
+        Assert.assertEquals(1, this.printIntCalls);
+        Assert.assertNull(subMain.getPreparedForm().compiled);
+        Assert.assertTrue(subMain.getPreparedForm().jitRejected);
+    }
+
+    /* package */ static Subroutine synthRecursiveSum() {
+        // function sum(n) {
+        // _entry:
+        //   eq.ii %b0, %b1, n, 0
+        // %b0:
+        //   ret 0
+        // %b1:
+        //   sub.ii %t0, n, 1
+        //   call %t1, sum %t0
+        //   add.ii %t2, n, %t1
+        //   ret %t2
+        // }
+
+        final Subroutine subSum = new Subroutine("", "sum", new FunctionType(IntegerType.INT32, IntegerType.INT32));
+
+        final Binding.Parameter n = new Binding.Parameter("n", IntegerType.INT32);
+        subSum.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Block b0 = new Block("%b0");
+        final Block b1 = new Block("%b1");
+
+        final Binding.Immutable t0 = new Binding.Immutable("%t0", IntegerType.INT32);
+        final Binding.Immutable t1 = new Binding.Immutable("%t1", IntegerType.INT32);
+        final Binding.Immutable t2 = new Binding.Immutable("%t2", IntegerType.INT32);
+
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, b0, b1, n, IntegerType.INT32.createImmediate(0))));
+
+        b0.setStatements(Collections.singletonList(
+                new ReturnStatement(IntegerType.INT32.createImmediate(0))));
+
+        b1.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, n, IntegerType.INT32.createImmediate(1)),
+                new CallStatement(t1, new FuncRef.Local(subSum), t0),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t2, n, t1),
+                new ReturnStatement(t2)));
+
+        subSum.setInitialBlock(entry);
+        subSum.validate();
+        return subSum;
+    }
+
+    @Test
+    public void testDeepRecursionDoesNotOverflowStack() {
+        final Subroutine subSum = synthRecursiveSum();
+
+        // way deeper than what the Java stack would allow
+        this.emulator.setJitThreshold(-1);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(1250025000), this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(50000)));
+
+        // frames are reused, so calling it again should still work
+        Assert.assertEquals(IntegerType.INT32.createImmediate(5050), this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(100)));
+    }
+
+    @Test(expected = CallDepthExceededException.class)
+    public void testCallDepthLimit() {
+        final Subroutine subSum = synthRecursiveSum();
+
+        this.emulator.setJitThreshold(-1);
+        this.emulator.setMaxCallDepth(100);
+        this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(1000));
+    }
+
+    @Test
+    public void testSynthDoubleAccumulator() {
+        // function acc(n) {
+        // _entry:
+        //   mov mut_i, 0
+        //   mov mut_acc, 0.0
+        //   jmp loop
+        // loop:
+        //   lt.ii body, end, mut_i, n
+        // body:
+        //   i2d mut_d, mut_i
+        //   add.dd mut_acc, mut_acc, mut_d
+        //   add.ii mut_i, mut_i, 1
+        //   jmp loop
+        // end:
+        //   ret mut_acc
+        // }
+
+        final Subroutine subAcc = new Subroutine("", "acc", new FunctionType(IntegerType.INT32, ImmDouble.TYPE));
+
+        final Binding.Parameter n = new Binding.Parameter("n", IntegerType.INT32);
+        subAcc.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Block loop = new Block("loop");
+        final Block body = new Block("body");
+        final Block end = new Block("end");
+        final Binding.Mutable i = new Binding.Mutable("mut_i", IntegerType.INT32);
+        final Binding.Mutable d = new Binding.Mutable("mut_d", ImmDouble.TYPE);
+        final Binding.Mutable acc = new Binding.Mutable("mut_acc", ImmDouble.TYPE);
+
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(i, IntegerType.INT32.createImmediate(0)),
+                new MoveStatement(acc, new ImmDouble(0)),
+                new GotoStatement(loop)));
+        loop.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, body, end, i, n)));
+        body.setStatements(Arrays.asList(
+                new UnaryStatement(UnaryStatement.UnaryOperator.I2D, d, i),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_DD, acc, acc, d),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, i, i, IntegerType.INT32.createImmediate(1)),
+                new GotoStatement(loop)));
+        end.setStatements(Collections.singletonList(
+                new ReturnStatement(acc)));
+
+        subAcc.setInitialBlock(entry);
+
+        subAcc.validate();
+        this.emulator.setJitThreshold(-1);
+        Assert.assertEquals(new ImmDouble(4950), this.emulator.callSubroutine(subAcc, IntegerType.INT32.createImmediate(100)));
+        Assert.assertEquals(new ImmDouble(0), this.emulator.callSubroutine(subAcc, IntegerType.INT32.createImmediate(0)));
+    }
+
+    private static Subroutine synthSpin() {
+        // function spin() {
+        // _entry:
+        //   jmp _entry
+        // }
+
+        final Subroutine subSpin = new Subroutine("", "spin", new FunctionType(UnitType.INSTANCE, IntegerType.INT32));
+        final Block entry = new Block("_entry");
+        entry.setStatements(Collections.singletonList(new GotoStatement(entry)));
+        subSpin.setInitialBlock(entry);
+
+        subSpin.validate();
+        return subSpin;
+    }
+
+    @Test
+    public void testStepLimit() {
+        final Subroutine subSpin = synthSpin();
+
+        // both tiers must give up
+        for (final int threshold : new int[] { -1, 0 }) {
+            this.emulator.setJitThreshold(threshold);
+            this.emulator.setStepLimit(100000);
+            try {
+                this.emulator.callSubroutine(subSpin);
+                Assert.fail("Expected step limit to be exceeded");
+            } catch (BudgetExceededException ex) {
+                Assert.assertEquals(subSpin.getName(), ex.getFunctionName());
+            }
+        }
+    }
+
+    @Test(expected = BudgetExceededException.class)
+    public void testTimeLimit() {
+        this.emulator.setStepLimit(-1);
+        this.emulator.setTimeLimit(50);
+        this.emulator.callSubroutine(synthSpin());
+    }
+
+    @Test
+    public void testProfiler() {
+        final Subroutine subSum = synthRecursiveSum();
+        final Profiler profiler = new Profiler();
+
+        this.emulator.setJitThreshold(0);
+        this.emulator.setProfiler(profiler);
+        Assert.assertEquals(IntegerType.INT32.createImmediate(6), this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(3)));
+
+        // sum(3) -> sum(2) -> sum(1) -> sum(0)
+        Assert.assertEquals(3, profiler.getCalls(new FuncRef.Local(subSum)));
+        Assert.assertEquals(4, profiler.getBlockEntries(subSum.getInitialBlock()));
+        Assert.assertEquals(Long.valueOf(3), profiler.getStatementCounts().get("add.ii"));
+        Assert.assertEquals(Long.valueOf(4), profiler.getStatementCounts().get("ret"));
+
+        // profiling keeps everything in the interpreter
+        Assert.assertNull(subSum.getPreparedForm().compiled);
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        profiler.writeCollapsedStacks(new PrintStream(buffer, true));
+        final String stacks = buffer.toString();
+        Assert.assertTrue(stacks.contains("\\sum;\\sum;\\sum;\\sum 2"));
+    }
+
+    @Test
+    public void testConcurrentCallsShareCode() throws InterruptedException {
+        final Subroutine subSum = synthRecursiveSum();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // low threshold so that threads race to tier up the same subroutine
+        this.emulator.setJitThreshold(10);
+
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < 200; ++n) {
+                        final int k = n + offset;
+                        final Value result = this.emulator.callSubroutine(subSum, IntegerType.INT32.createImmediate(k));
+                        Assert.assertEquals(IntegerType.INT32.createImmediate(k * (k + 1) / 2), result);
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError("Concurrent call failed", failure.get());
+        }
+    }
+
+    @Test
+    public void testBatchCallPreservesOrder() {
+        final Subroutine subSum = synthRecursiveSum();
+
+        final Value[] args = new Value[5000];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = IntegerType.INT32.createImmediate(i % 100);
+        }
+
+        final Value[] results = this.emulator.callSubroutineBatch(subSum, args);
+        Assert.assertEquals(args.length, results.length);
+        for (int i = 0; i < args.length; ++i) {
+            final int k = i % 100;
+            Assert.assertEquals(IntegerType.INT32.createImmediate(k * (k + 1) / 2), results[i]);
+        }
+
+        // a batch this size is hot enough to be considered for tier-up
+        // straight away (the JIT rejects the non-tail call though)
+        final PreparedSubroutine code = subSum.getPreparedForm();
+        Assert.assertTrue(code.compiled != null || code.jitRejected);
+
+        final Value[] streamed = this.emulator.callSubroutineBatch(subSum,
+                IntStream.range(0, 4).mapToObj(IntegerType.INT32::createImmediate));
+        Assert.assertArrayEquals(new Value[] {
+            IntegerType.INT32.createImmediate(0),
+            IntegerType.INT32.createImmediate(1),
+            IntegerType.INT32.createImmediate(3),
+            IntegerType.INT32.createImmediate(6),
+        }, streamed);
+
+        Assert.assertEquals(0, this.emulator.callSubroutineBatch(subSum, new Value[0]).length);
+    }
+
+    public static long twice(long x) {
+        return x * 2;
+    }
+
+    @Test
+    public void testTypedNativeHandlers() {
+        // function f(x, y) {
+        // _entry:
+        //   call %t0, hypot (x, y)
+        //   call %t1, twice 21
+        //   call %t2, neg 1
+        //   tailcall fmt (%t0, %t1, %t2)
+        // }
+
+        final FunctionType ddd = new FunctionType(TupleType.from(ImmDouble.TYPE, ImmDouble.TYPE), ImmDouble.TYPE);
+        final FunctionType ii = new FunctionType(IntegerType.INT32, IntegerType.INT32);
+        final FunctionType fmtType = new FunctionType(TupleType.from(ImmDouble.TYPE, IntegerType.INT32, IntegerType.INT32), ImmString.TYPE);
+
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(TupleType.from(ImmDouble.TYPE, ImmDouble.TYPE), ImmString.TYPE));
+        final Binding.Parameter x = new Binding.Parameter("x", ImmDouble.TYPE);
+        final Binding.Parameter y = new Binding.Parameter("y", ImmDouble.TYPE);
+        subF.setParameters(Arrays.asList(x, y));
+
+        final Binding.Immutable t0 = new Binding.Immutable("%t0", ImmDouble.TYPE);
+        final Binding.Immutable t1 = new Binding.Immutable("%t1", IntegerType.INT32);
+        final Binding.Immutable t2 = new Binding.Immutable("%t2", IntegerType.INT32);
+
+        final Block entry = new Block("_entry");
+        entry.setStatements(Arrays.asList(
+                new CallStatement(t0, new FuncRef.Native("hypot", ddd), Tuple.from(x, y)),
+                new CallStatement(t1, new FuncRef.Native("twice", ii), IntegerType.INT32.createImmediate(21)),
+                new CallStatement(t2, new FuncRef.Native("neg", ii), IntegerType.INT32.createImmediate(1)),
+                new TailCallStatement(new FuncRef.Native("fmt", fmtType), Tuple.from(t0, t1, t2))));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        this.emulator.addExternalCallHandler("hypot", NativeHandler.ofDoubleBinary(Math::hypot));
+        this.emulator.addExternalCallHandler("twice", NativeHandler.ofStatic(EmulatorTest.class, "twice"));
+        this.emulator.addExternalCallHandler("neg", NativeHandler.ofLongUnary(v -> -v));
+        this.emulator.addExternalCallHandler("fmt", fargs -> new ImmString(Arrays.toString(fargs)));
+        this.emulator.link(subF);
+
+        final Value arg = Tuple.from(new ImmDouble(3), new ImmDouble(4));
+        final Value expected = new ImmString("[5.0, 42, -1]");
+        Assert.assertEquals(expected, this.emulator.callSubroutine(subF, arg));
+
+        // rebinding takes effect on the next call
+        this.emulator.addExternalCallHandler("neg", NativeHandler.ofLongUnary(v -> v));
+        Assert.assertEquals(new ImmString("[5.0, 42, 1]"), this.emulator.callSubroutine(subF, arg));
+
+        // handlers are checked against the declared signature
+        this.emulator.addExternalCallHandler("neg", NativeHandler.ofDoubleUnary(v -> -v));
+        try {
+            this.emulator.link(subF);
+            Assert.fail("Expected link to fail");
+        } catch (EmulatorException ex) {
+            // expected
+        }
+
+        this.emulator.removeExternalCallHandler("neg");
+        try {
+            this.emulator.callSubroutine(subF, arg);
+            Assert.fail("Expected call to fail");
+        } catch (EmulatorException ex) {
+            // expected
+        }
+    }
 }
@@ -3,9 +3,12 @@
  * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
 package com.ymcmp.midform.tac;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import com.ymcmp.midform.tac.statement.*;
 import com.ymcmp.midform.tac.value.*;
@@ -92,4 +95,1275 @@ public class OptimizationTest {
         final List<Statement> stmts = subCaller.getInitialBlock().getStatements();
         Assert.assertTrue(stmts.get(stmts.size() - 1) instanceof ReturnStatement);
     }
+
+    @Test
+    public void testExprCallsAreMemoized() {
+        // expr double(n) {
+        // _entry:
+        //   add.ii %0, n, n
+        //   ret %0
+        // }
+
+        final Subroutine subDouble = new Subroutine("", "double", new FunctionType(IntegerType.INT32, IntegerType.INT32), true, false);
+
+        final Binding.Parameter n = new Binding.Parameter("n", IntegerType.INT32);
+        subDouble.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Binding.Immutable t0 = new Binding.Immutable("%0", IntegerType.INT32);
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t0, n, n),
+                new ReturnStatement(t0)));
+        subDouble.setInitialBlock(entry);
+
+        final CompileTimeEvaluator evaluator = new CompileTimeEvaluator(new Emulator(), 1);
+        final Value two = IntegerType.INT32.createImmediate(2);
+        final Value three = IntegerType.INT32.createImmediate(3);
+
+        Assert.assertEquals(IntegerType.INT32.createImmediate(4), evaluator.evaluate(subDouble, two).get());
+        Assert.assertEquals(IntegerType.INT32.createImmediate(4), evaluator.evaluate(subDouble, two).get());
+        Assert.assertEquals(1, evaluator.getHits());
+        Assert.assertEquals(1, evaluator.getMisses());
+
+        // only room for one entry, so 2 gets evicted
+        Assert.assertEquals(IntegerType.INT32.createImmediate(6), evaluator.evaluate(subDouble, three).get());
+        Assert.assertEquals(1, evaluator.getEvictions());
+
+        // changing the IR makes the cached result stale
+        final Block changed = new Block("_entry");
+        changed.setStatements(Collections.singletonList(new ReturnStatement(n)));
+        subDouble.setInitialBlock(changed);
+
+        Assert.assertEquals(three, evaluator.evaluate(subDouble, three).get());
+        Assert.assertEquals(1, evaluator.getHits());
+        Assert.assertEquals(3, evaluator.getMisses());
+    }
+
+    @Test
+    public void testOptimizeReachesFixpointInOneCall() {
+        // function f(x) {
+        // _entry:
+        //   add.ii %0, 1, 2
+        //   mov %1, 7          <-- never read
+        //   jmp b1
+        // b1:
+        //   add.ii %2, x, %0
+        //   jmp b2
+        // b2:
+        //   eq.ii b3, b4, %2, 0
+        // b3:
+        //   ret 0
+        // b4:
+        //   ret %2
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        subF.setParameters(Collections.singletonList(x));
+
+        final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+        final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+        final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+
+        final Block entry = new Block("_entry");
+        final Block b1 = new Block("b1");
+        final Block b2 = new Block("b2");
+        final Block b3 = new Block("b3");
+        final Block b4 = new Block("b4");
+
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t0, i32.createImmediate(1), i32.createImmediate(2)),
+                new MoveStatement(t1, i32.createImmediate(7)),
+                new GotoStatement(b1)));
+        b1.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t2, x, t0),
+                new GotoStatement(b2)));
+        b2.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, b3, b4, t2, i32.createImmediate(0))));
+        b3.setStatements(Collections.singletonList(new ReturnStatement(i32.createImmediate(0))));
+        b4.setStatements(Collections.singletonList(new ReturnStatement(t2)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+
+        // the chain is squashed, the constant is folded and the dead store is gone
+        final List<Statement> stmts = subF.getInitialBlock().getStatements();
+        Assert.assertEquals(2, stmts.size());
+        final BinaryStatement add = (BinaryStatement) stmts.get(0);
+        Assert.assertEquals(x, add.lhs);
+        Assert.assertEquals(i32.createImmediate(3), add.rhs);
+        Assert.assertTrue(stmts.get(1) instanceof ConditionalJumpStatement);
+        Assert.assertEquals(3, subF.traceAllBlocks().size());
+    }
+
+    @Test
+    public void testControlFlowGraphFollowsEdits() {
+        // function f(n) {
+        // _entry:
+        //   jmp head
+        // head:
+        //   lt.ii body, exit, n, 0
+        // body:
+        //   jmp head
+        // exit:
+        //   ret n
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter n = new Binding.Parameter("n", i32);
+        subF.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Block head = new Block("head");
+        final Block body = new Block("body");
+        final Block exit = new Block("exit");
+        final Block dead = new Block("dead");
+
+        entry.setStatements(Collections.singletonList(new GotoStatement(head)));
+        head.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, body, exit, n, i32.createImmediate(0))));
+        body.setStatements(Collections.singletonList(new GotoStatement(head)));
+        exit.setStatements(Collections.singletonList(new ReturnStatement(n)));
+        dead.setStatements(Collections.singletonList(new GotoStatement(exit)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final ControlFlowGraph cfg = subF.getControlFlowGraph();
+        Assert.assertSame(cfg, subF.getControlFlowGraph());
+        Assert.assertEquals(4, cfg.size());
+        Assert.assertEquals(entry, cfg.getBlocks().get(0));
+        Assert.assertFalse(cfg.contains(dead));
+        Assert.assertEquals(Arrays.asList(entry, body), cfg.getPredecessors(head));
+        Assert.assertEquals(Arrays.asList(body, exit), cfg.getSuccessors(head));
+
+        Assert.assertNull(cfg.getImmediateDominator(entry));
+        Assert.assertEquals(entry, cfg.getImmediateDominator(head));
+        Assert.assertEquals(head, cfg.getImmediateDominator(body));
+        Assert.assertEquals(head, cfg.getImmediateDominator(exit));
+        Assert.assertTrue(cfg.dominates(head, exit));
+        Assert.assertFalse(cfg.dominates(body, exit));
+        Assert.assertTrue(cfg.isBackEdge(body, head));
+        Assert.assertFalse(cfg.isBackEdge(entry, head));
+
+        // changing a block is enough to rebuild it
+        body.setStatements(Collections.singletonList(new GotoStatement(exit)));
+        final ControlFlowGraph changed = subF.getControlFlowGraph();
+        Assert.assertNotSame(cfg, changed);
+        Assert.assertEquals(Collections.singletonList(entry), changed.getPredecessors(head));
+        Assert.assertEquals(Arrays.asList(head, body), changed.getPredecessors(exit));
+        Assert.assertFalse(changed.isBackEdge(body, head));
+    }
+
+    @Test
+    public void testDataFlowOverSequentialConditionals() {
+        // function f(x) {
+        // _entry:
+        //   mov m, 0           <-- overwritten on every path
+        //   jmp c0
+        // c0:
+        //   eq.ii t0, f0, x, 0
+        // t0:
+        //   mov m, 0
+        //   jmp c1
+        // f0:
+        //   mov m, 1
+        //   jmp c1
+        // ... (30 times)
+        // c30:
+        //   ret m
+        // }
+        //
+        // Tracing every path through this takes 2^30 steps
+
+        final IntegerType i32 = IntegerType.INT32;
+        final int depth = 30;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Mutable m = new Binding.Mutable("m", i32);
+        subF.setParameters(Collections.singletonList(x));
+
+        final Block[] conds = new Block[depth + 1];
+        for (int i = 0; i <= depth; ++i) {
+            conds[i] = new Block("c" + i);
+        }
+        conds[depth].setStatements(Collections.singletonList(new ReturnStatement(m)));
+
+        Block lastTrue = null;
+        for (int i = 0; i < depth; ++i) {
+            final Block t = new Block("t" + i);
+            final Block f = new Block("f" + i);
+            t.setStatements(Arrays.asList(
+                    new MoveStatement(m, i32.createImmediate(2 * i)),
+                    new GotoStatement(conds[i + 1])));
+            f.setStatements(Arrays.asList(
+                    new MoveStatement(m, i32.createImmediate(2 * i + 1)),
+                    new GotoStatement(conds[i + 1])));
+            conds[i].setStatements(Collections.singletonList(
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, t, f, x, i32.createImmediate(i))));
+            lastTrue = t;
+        }
+
+        final Block entry = new Block("_entry");
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(m, i32.createImmediate(0)),
+                new GotoStatement(conds[0])));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final DataFlowAnalysis flow = subF.getDataFlowAnalysis();
+        Assert.assertSame(flow, subF.getDataFlowAnalysis());
+        Assert.assertEquals(2 + 3 * depth, flow.getControlFlowGraph().size());
+        Assert.assertEquals(1, flow.getReads(m));
+        Assert.assertTrue(flow.isLiveOut(entry, x));
+        Assert.assertFalse(flow.isLiveOut(entry, m));
+        Assert.assertTrue(flow.isLiveOut(lastTrue, m));
+        Assert.assertEquals(2, flow.getReachingDefinitions(conds[depth], m).size());
+        Assert.assertEquals(1, flow.getReachingDefinitions(conds[depth], x).size());
+        Assert.assertTrue(flow.getReachingDefinitions(conds[depth], x).get(0).isParameter());
+
+        Assert.assertTrue(subF.optimize());
+        for (final Statement stmt : subF.getInitialBlock().getStatements()) {
+            Assert.assertFalse(stmt instanceof MoveStatement);
+        }
+    }
+
+    @Test
+    public void testMutableBindingsAreRenamed() {
+        // function f(x) {
+        // _entry:
+        //   mov m, 2
+        //   jmp b1
+        // b1:
+        //   mul.ii m, m, 3
+        //   jmp b2
+        // b2:
+        //   add.ii m, m, x
+        //   ret m
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Mutable m = new Binding.Mutable("m", i32);
+        subF.setParameters(Collections.singletonList(x));
+
+        final Block entry = new Block("_entry");
+        final Block b1 = new Block("b1");
+        final Block b2 = new Block("b2");
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(m, i32.createImmediate(2)),
+                new GotoStatement(b1)));
+        b1.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, m, m, i32.createImmediate(3)),
+                new GotoStatement(b2)));
+        b2.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, m, m, x),
+                new ReturnStatement(m)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+
+        // the whole thing folds into x + 6
+        final List<Statement> stmts = subF.getInitialBlock().getStatements();
+        Assert.assertEquals(2, stmts.size());
+        final BinaryStatement add = (BinaryStatement) stmts.get(0);
+        Assert.assertEquals(i32.createImmediate(6), add.lhs);
+        Assert.assertEquals(x, add.rhs);
+        Assert.assertFalse(add.dst instanceof Binding.Mutable);
+    }
+
+    @Test
+    public void testMutableBindingsMergeAtJoins() {
+        // function f(x) {
+        // _entry:
+        //   mov m, 1
+        //   add.ii a, m, x
+        //   eq.ii t, j, x, 0
+        // t:
+        //   mov m, 2
+        //   jmp j
+        // j:
+        //   add.ii r, m, a     <-- m is either 1 or 2
+        //   ret r
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Mutable m = new Binding.Mutable("m", i32);
+        final Binding.Immutable a = new Binding.Immutable("a", i32);
+        final Binding.Immutable r = new Binding.Immutable("r", i32);
+        subF.setParameters(Collections.singletonList(x));
+
+        final Block entry = new Block("_entry");
+        final Block t = new Block("t");
+        final Block j = new Block("j");
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(m, i32.createImmediate(1)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, a, m, x),
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, t, j, x, i32.createImmediate(0))));
+        t.setStatements(Arrays.asList(
+                new MoveStatement(m, i32.createImmediate(2)),
+                new GotoStatement(j)));
+        j.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, r, m, a),
+                new ReturnStatement(r)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[4];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subF, i32.createImmediate(i));
+        }
+
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+
+        // the first read of m is folded, the merge stays
+        final BinaryStatement add = (BinaryStatement) subF.getInitialBlock().getStatements().get(0);
+        Assert.assertEquals(i32.createImmediate(1), add.lhs);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subF, i32.createImmediate(i)));
+        }
+    }
+
+    @Test
+    public void testRedundantComputationsAreEliminated() {
+        // function f(x, y) {
+        // _entry:
+        //   cmp.ii c1, x, y
+        //   add.ii a, x, y
+        //   eq.ii t, j, x, 0
+        // t:
+        //   cmp.ii c2, x, y    <-- same as c1
+        //   add.ii b, y, x     <-- same as a
+        //   mul.ii r, c2, b
+        //   ret r
+        // j:
+        //   sub.ii s, c1, a
+        //   ret s
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(TupleType.from(i32, i32), i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Parameter y = new Binding.Parameter("y", i32);
+        final Binding.Immutable c1 = new Binding.Immutable("c1", i32);
+        final Binding.Immutable c2 = new Binding.Immutable("c2", i32);
+        final Binding.Immutable a = new Binding.Immutable("a", i32);
+        final Binding.Immutable b = new Binding.Immutable("b", i32);
+        final Binding.Immutable r = new Binding.Immutable("r", i32);
+        final Binding.Immutable s = new Binding.Immutable("s", i32);
+        subF.setParameters(Arrays.asList(x, y));
+
+        final Block entry = new Block("_entry");
+        final Block t = new Block("t");
+        final Block j = new Block("j");
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.CMP_II, c1, x, y),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, a, x, y),
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, t, j, x, i32.createImmediate(0))));
+        t.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.CMP_II, c2, x, y),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, b, y, x),
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, r, c2, b),
+                new ReturnStatement(r)));
+        j.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, s, c1, a),
+                new ReturnStatement(s)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[4];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i % 2), i32.createImmediate(i / 2)));
+        }
+
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+
+        // only the multiplication is left in t
+        Assert.assertEquals(2, t.getStatements().size());
+        final BinaryStatement mul = (BinaryStatement) t.getStatements().get(0);
+        Assert.assertEquals(c1, mul.lhs);
+        Assert.assertEquals(a, mul.rhs);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i % 2), i32.createImmediate(i / 2))));
+        }
+    }
+
+    @Test
+    public void testValuesBehindReferencesAreNotReused() {
+        // function f(p) {
+        // _entry:
+        //   add.ii x, p, 1
+        //   mul.ii t1, x, 3
+        //   mkref r, x
+        //   stref r, 100       <-- x changes without being assigned
+        //   jmp b
+        // b:
+        //   mul.ii t2, x, 3    <-- not the same as t1
+        //   add.ii s, t1, t2
+        //   ret s
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter p = new Binding.Parameter("p", i32);
+        final Binding.Immutable x = new Binding.Immutable("x", i32);
+        final Binding.Immutable t1 = new Binding.Immutable("t1", i32);
+        final Binding.Immutable r = new Binding.Immutable("r", ReferenceType.mutable(i32));
+        final Binding.Immutable t2 = new Binding.Immutable("t2", i32);
+        final Binding.Immutable s = new Binding.Immutable("s", i32);
+        subF.setParameters(Collections.singletonList(p));
+
+        final Block entry = new Block("_entry");
+        final Block b = new Block("b");
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, x, p, i32.createImmediate(1)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t1, x, i32.createImmediate(3)),
+                new MakeRefStatement(r, x),
+                new StoreRefStatement(r, i32.createImmediate(100)),
+                new GotoStatement(b)));
+        b.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t2, x, i32.createImmediate(3)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, s, t1, t2),
+                new ReturnStatement(s)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final Emulator emulator = new Emulator();
+        Assert.assertEquals(i32.createImmediate(306), emulator.callSubroutine(subF, i32.createImmediate(1)));
+
+        subF.optimize();
+        Assert.assertEquals(i32.createImmediate(306), emulator.callSubroutine(subF, i32.createImmediate(1)));
+
+        // function g(p) {
+        // _entry:
+        //   add.ii x, p, 1
+        //   mkref r, x
+        //   stref r, 100
+        //   jmp b
+        // b:
+        //   add.ii y, x, 1     <-- not p + 2
+        //   ret y
+        // }
+
+        final Subroutine subG = new Subroutine("", "g", new FunctionType(i32, i32));
+        final Binding.Immutable y = new Binding.Immutable("y", i32);
+        subG.setParameters(Collections.singletonList(p));
+
+        final Block entryG = new Block("_entry");
+        final Block bG = new Block("b");
+        entryG.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, x, p, i32.createImmediate(1)),
+                new MakeRefStatement(r, x),
+                new StoreRefStatement(r, i32.createImmediate(100)),
+                new GotoStatement(bG)));
+        bG.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, y, x, i32.createImmediate(1)),
+                new ReturnStatement(y)));
+        subG.setInitialBlock(entryG);
+        subG.validate();
+
+        Assert.assertEquals(i32.createImmediate(101), emulator.callSubroutine(subG, i32.createImmediate(1)));
+
+        subG.optimize();
+        Assert.assertEquals(i32.createImmediate(101), emulator.callSubroutine(subG, i32.createImmediate(1)));
+    }
+
+    @Test
+    public void testConstantsPropagateAcrossBlocks() {
+        // function f(x) {
+        // _entry:
+        //   mov c, 5
+        //   mov i, 0
+        //   jmp h
+        // h:
+        //   lt.ii b, e, i, x
+        // b:
+        //   eq.ii same, diff, c, 5     <-- c is always 5
+        // same:
+        //   add.ii i, i, 1
+        //   jmp h
+        // diff:
+        //   mov c, 6                   <-- never reached
+        //   jmp h
+        // e:
+        //   ret c
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Mutable c = new Binding.Mutable("c", i32);
+        final Binding.Mutable i = new Binding.Mutable("i", i32);
+        subF.setParameters(Collections.singletonList(x));
+
+        final Block entry = new Block("_entry");
+        final Block h = new Block("h");
+        final Block b = new Block("b");
+        final Block same = new Block("same");
+        final Block diff = new Block("diff");
+        final Block e = new Block("e");
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(c, i32.createImmediate(5)),
+                new MoveStatement(i, i32.createImmediate(0)),
+                new GotoStatement(h)));
+        h.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, b, e, i, x)));
+        b.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, same, diff, c, i32.createImmediate(5))));
+        same.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, i, i, i32.createImmediate(1)),
+                new GotoStatement(h)));
+        diff.setStatements(Arrays.asList(
+                new MoveStatement(c, i32.createImmediate(6)),
+                new GotoStatement(h)));
+        e.setStatements(Collections.singletonList(new ReturnStatement(c)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+
+        final ControlFlowGraph cfg = subF.getControlFlowGraph();
+        Assert.assertFalse(cfg.contains(diff));
+        Assert.assertEquals(new ReturnStatement(i32.createImmediate(5)).toString(), e.getStatements().get(0).toString());
+
+        final Emulator emulator = new Emulator();
+        for (int k = 0; k < 4; ++k) {
+            Assert.assertEquals(i32.createImmediate(5), emulator.callSubroutine(subF, i32.createImmediate(k)));
+        }
+    }
+
+    @Test
+    public void testDivisionByZeroIsLeftForRuntime() {
+        // function f(c) {
+        // _entry:
+        //   mov d, 0
+        //   gt.ii a, b, c, 0
+        // a:
+        //   div.ii q, 1, d     <-- only fails if c > 0
+        //   ret q
+        // b:
+        //   ret 0
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Binding.Parameter c = new Binding.Parameter("c", i32);
+        final Binding.Immutable d = new Binding.Immutable("d", i32);
+        final Binding.Immutable q = new Binding.Immutable("q", i32);
+        subF.setParameters(Collections.singletonList(c));
+
+        final Block entry = new Block("_entry");
+        final Block a = new Block("a");
+        final Block b = new Block("b");
+        entry.setStatements(Arrays.asList(
+                new MoveStatement(d, i32.createImmediate(0)),
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.GT_II, a, b, c, i32.createImmediate(0))));
+        a.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.DIV_II, q, i32.createImmediate(1), d),
+                new ReturnStatement(q)));
+        b.setStatements(Collections.singletonList(new ReturnStatement(i32.createImmediate(0))));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        subF.optimize();
+
+        final Emulator emulator = new Emulator();
+        Assert.assertEquals(i32.createImmediate(0), emulator.callSubroutine(subF, i32.createImmediate(0)));
+        try {
+            emulator.callSubroutine(subF, i32.createImmediate(1));
+            Assert.fail("Division by zero should still happen at runtime");
+        } catch (ArithmeticException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSmallCalleesAreInlined() {
+        // function clamp(v) {
+        // _entry:
+        //   lt.ii neg, pos, v, 0
+        // neg:
+        //   ret 0
+        // pos:
+        //   ret v
+        // }
+        //
+        // function count(n) {
+        // _entry:
+        //   eq.ii done, next, n, 0
+        // done:
+        //   ret 0
+        // next:
+        //   sub.ii %0, n, 1
+        //   call %1, count %0      <-- recursive, never inlined
+        //   sub.ii %2, n, %1
+        //   ret %2
+        // }
+        //
+        // function f(x) {
+        // _entry:
+        //   call a, clamp x
+        //   sub.ii %0, 0, x
+        //   call b, clamp %0
+        //   call c, count a
+        //   add.ii %1, a, b
+        //   add.ii %2, %1, c
+        //   ret %2
+        // }
+        //
+        // function mk(p) {
+        // _entry:
+        //   mov x, p
+        //   mkref r, x           <-- every call needs its own x
+        //   ret r
+        // }
+        //
+        // function main() {
+        // _entry:
+        //   mov z, 0
+        //   mkref first, z
+        //   mov i, 0
+        //   jmp loop
+        // loop:
+        //   mul.ii %0, i, 5
+        //   add.ii %1, %0, 5
+        //   call r, mk %1
+        //   eq.ii save, skip, i, 0
+        // save:
+        //   mov first, r
+        //   jmp skip
+        // skip:
+        //   add.ii i, i, 1
+        //   lt.ii loop, end, i, 2
+        // end:
+        //   ldref %2, first
+        //   ldref %3, r
+        //   add.ii %4, %2, %3
+        //   ret %4
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final ReferenceType refType = ReferenceType.mutable(i32);
+        final Subroutine subClamp = new Subroutine("", "clamp", new FunctionType(i32, i32));
+        final Subroutine subCount = new Subroutine("", "count", new FunctionType(i32, i32));
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(i32, i32));
+        final Subroutine subMk = new Subroutine("", "mk", new FunctionType(i32, refType));
+        final Subroutine subMain = new Subroutine("", "main", new FunctionType(UnitType.INSTANCE, i32));
+
+        {
+            final Binding.Parameter v = new Binding.Parameter("v", i32);
+            subClamp.setParameters(Collections.singletonList(v));
+
+            final Block entry = new Block("_entry");
+            final Block neg = new Block("neg");
+            final Block pos = new Block("pos");
+            entry.setStatements(Collections.singletonList(
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, neg, pos, v, i32.createImmediate(0))));
+            neg.setStatements(Collections.singletonList(new ReturnStatement(i32.createImmediate(0))));
+            pos.setStatements(Collections.singletonList(new ReturnStatement(v)));
+            subClamp.setInitialBlock(entry);
+        }
+
+        {
+            final Binding.Parameter n = new Binding.Parameter("n", i32);
+            final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+            final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+            final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+            subCount.setParameters(Collections.singletonList(n));
+
+            final Block entry = new Block("_entry");
+            final Block done = new Block("done");
+            final Block next = new Block("next");
+            entry.setStatements(Collections.singletonList(
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, done, next, n, i32.createImmediate(0))));
+            done.setStatements(Collections.singletonList(new ReturnStatement(i32.createImmediate(0))));
+            next.setStatements(Arrays.asList(
+                    new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, n, i32.createImmediate(1)),
+                    new CallStatement(t1, new FuncRef.Local(subCount), t0),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t2, n, t1),
+                    new ReturnStatement(t2)));
+            subCount.setInitialBlock(entry);
+        }
+
+        {
+            final Binding.Parameter x = new Binding.Parameter("x", i32);
+            final Binding.Immutable a = new Binding.Immutable("a", i32);
+            final Binding.Immutable b = new Binding.Immutable("b", i32);
+            final Binding.Immutable c = new Binding.Immutable("c", i32);
+            final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+            final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+            final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+            subF.setParameters(Collections.singletonList(x));
+
+            final Block entry = new Block("_entry");
+            entry.setStatements(Arrays.asList(
+                    new CallStatement(a, new FuncRef.Local(subClamp), x),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, i32.createImmediate(0), x),
+                    new CallStatement(b, new FuncRef.Local(subClamp), t0),
+                    new CallStatement(c, new FuncRef.Local(subCount), a),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t1, a, b),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t2, t1, c),
+                    new ReturnStatement(t2)));
+            subF.setInitialBlock(entry);
+        }
+
+        {
+            final Binding.Parameter p = new Binding.Parameter("p", i32);
+            final Binding.Mutable x = new Binding.Mutable("x", i32);
+            final Binding.Immutable r = new Binding.Immutable("r", refType);
+            subMk.setParameters(Collections.singletonList(p));
+
+            final Block entry = new Block("_entry");
+            entry.setStatements(Arrays.asList(
+                    new MoveStatement(x, p),
+                    new MakeRefStatement(r, x),
+                    new ReturnStatement(r)));
+            subMk.setInitialBlock(entry);
+        }
+
+        {
+            final Binding.Mutable z = new Binding.Mutable("z", i32);
+            final Binding.Mutable i = new Binding.Mutable("i", i32);
+            final Binding.Mutable r = new Binding.Mutable("r", refType);
+            final Binding.Mutable first = new Binding.Mutable("first", refType);
+            final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+            final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+            final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+            final Binding.Immutable t3 = new Binding.Immutable("%3", i32);
+            final Binding.Immutable t4 = new Binding.Immutable("%4", i32);
+
+            final Block entry = new Block("_entry");
+            final Block loop = new Block("loop");
+            final Block save = new Block("save");
+            final Block skip = new Block("skip");
+            final Block end = new Block("end");
+            entry.setStatements(Arrays.asList(
+                    new MoveStatement(z, i32.createImmediate(0)),
+                    new MakeRefStatement(first, z),
+                    new MoveStatement(i, i32.createImmediate(0)),
+                    new GotoStatement(loop)));
+            loop.setStatements(Arrays.asList(
+                    new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t0, i, i32.createImmediate(5)),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t1, t0, i32.createImmediate(5)),
+                    new CallStatement(r, new FuncRef.Local(subMk), t1),
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, save, skip, i, i32.createImmediate(0))));
+            save.setStatements(Arrays.asList(
+                    new MoveStatement(first, r),
+                    new GotoStatement(skip)));
+            skip.setStatements(Arrays.asList(
+                    new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, i, i, i32.createImmediate(1)),
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, loop, end, i, i32.createImmediate(2))));
+            end.setStatements(Arrays.asList(
+                    new LoadRefStatement(t2, first),
+                    new LoadRefStatement(t3, r),
+                    new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t4, t2, t3),
+                    new ReturnStatement(t4)));
+            subMain.setInitialBlock(entry);
+        }
+
+        final List<Subroutine> subs = Arrays.asList(subF, subClamp, subCount, subMk, subMain);
+        for (final Subroutine sub : subs) {
+            sub.validate();
+        }
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[7];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subF, i32.createImmediate(i - 3));
+        }
+        Assert.assertEquals(i32.createImmediate(15), emulator.callSubroutine(subMain));
+
+        Assert.assertTrue(ProgramOptimizer.optimizeAll(subs));
+        Assert.assertFalse(ProgramOptimizer.optimizeAll(subs));
+
+        // only the call to count is left
+        int calls = 0;
+        for (final Block block : subF.traceAllBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (stmt instanceof AbstractCallStatement) {
+                    Assert.assertEquals(new FuncRef.Local(subCount), ((AbstractCallStatement<?>) stmt).sub);
+                    ++calls;
+                }
+            }
+        }
+        Assert.assertEquals(1, calls);
+
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subF, i32.createImmediate(i - 3)));
+        }
+
+        // mk is tiny, but each call has to make a new x
+        Assert.assertEquals(i32.createImmediate(15), emulator.callSubroutine(subMain));
+    }
+
+    @Test
+    public void testSelfTailCallsBecomeLoops() {
+        // function fib(a, b, n) {
+        // _entry:
+        //   eq.ii done, next, n, 0
+        // done:
+        //   ret a
+        // next:
+        //   add.ii %0, a, b
+        //   sub.ii %1, n, 1
+        //   tailcall fib (b, %0, %1)   <-- a and b swap places
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subFib = new Subroutine("", "fib", new FunctionType(TupleType.from(i32, i32, i32), i32));
+        final Binding.Parameter a = new Binding.Parameter("a", i32);
+        final Binding.Parameter b = new Binding.Parameter("b", i32);
+        final Binding.Parameter n = new Binding.Parameter("n", i32);
+        final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+        final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+        subFib.setParameters(Arrays.asList(a, b, n));
+
+        final Block entry = new Block("_entry");
+        final Block done = new Block("done");
+        final Block next = new Block("next");
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, done, next, n, i32.createImmediate(0))));
+        done.setStatements(Collections.singletonList(new ReturnStatement(a)));
+        next.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t0, a, b),
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t1, n, i32.createImmediate(1)),
+                new TailCallStatement(new FuncRef.Local(subFib), Tuple.from(b, t0, t1))));
+        subFib.setInitialBlock(entry);
+        subFib.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[10];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subFib, Tuple.from(i32.createImmediate(0), i32.createImmediate(1), i32.createImmediate(i)));
+        }
+
+        Assert.assertTrue(subFib.optimize());
+        Assert.assertFalse(subFib.optimize());
+
+        for (final Block block : subFib.traceAllBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                Assert.assertFalse(stmt instanceof AbstractCallStatement);
+            }
+        }
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subFib, Tuple.from(i32.createImmediate(0), i32.createImmediate(1), i32.createImmediate(i))));
+        }
+    }
+
+    @Test
+    public void testLinearRecursionGetsAccumulator() {
+        // function sum(n) {
+        // _entry:
+        //   eq.ii done, next, n, 0
+        // done:
+        //   ret 0
+        // next:
+        //   sub.ii %0, n, 1
+        //   call %1, sum %0
+        //   add.ii %2, n, %1       <-- not a tail call
+        //   ret %2
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subSum = new Subroutine("", "sum", new FunctionType(i32, i32));
+        final Binding.Parameter n = new Binding.Parameter("n", i32);
+        final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+        final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+        final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+        subSum.setParameters(Collections.singletonList(n));
+
+        final Block entry = new Block("_entry");
+        final Block done = new Block("done");
+        final Block next = new Block("next");
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, done, next, n, i32.createImmediate(0))));
+        done.setStatements(Collections.singletonList(new ReturnStatement(i32.createImmediate(0))));
+        next.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t0, n, i32.createImmediate(1)),
+                new CallStatement(t1, new FuncRef.Local(subSum), t0),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t2, n, t1),
+                new ReturnStatement(t2)));
+        subSum.setInitialBlock(entry);
+        subSum.validate();
+
+        final Emulator emulator = new Emulator();
+        emulator.setMaxCallDepth(16);
+        Assert.assertEquals(i32.createImmediate(55), emulator.callSubroutine(subSum, i32.createImmediate(10)));
+
+        Assert.assertTrue(subSum.optimize());
+        Assert.assertFalse(subSum.optimize());
+
+        // runs in constant stack now
+        Assert.assertEquals(i32.createImmediate(5050), emulator.callSubroutine(subSum, i32.createImmediate(100)));
+        Assert.assertEquals(i32.createImmediate(0), emulator.callSubroutine(subSum, i32.createImmediate(0)));
+    }
+
+    @Test
+    public void testLoopInvariantsAreHoisted() {
+        // function scale(x, n, acc) {
+        // _entry:
+        //   eq.ii done, next, n, 0
+        // done:
+        //   ret acc
+        // next:
+        //   mul.ii %0, x, 3        <-- same on every iteration
+        //   add.ii %1, acc, %0
+        //   sub.ii %2, n, 1
+        //   tailcall scale (x, %2, %1)
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subScale = new Subroutine("", "scale", new FunctionType(TupleType.from(i32, i32, i32), i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Parameter n = new Binding.Parameter("n", i32);
+        final Binding.Parameter acc = new Binding.Parameter("acc", i32);
+        final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+        final Binding.Immutable t1 = new Binding.Immutable("%1", i32);
+        final Binding.Immutable t2 = new Binding.Immutable("%2", i32);
+        subScale.setParameters(Arrays.asList(x, n, acc));
+
+        final Block entry = new Block("_entry");
+        final Block done = new Block("done");
+        final Block next = new Block("next");
+        entry.setStatements(Collections.singletonList(
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, done, next, n, i32.createImmediate(0))));
+        done.setStatements(Collections.singletonList(new ReturnStatement(acc)));
+        next.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t0, x, i32.createImmediate(3)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t1, acc, t0),
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t2, n, i32.createImmediate(1)),
+                new TailCallStatement(new FuncRef.Local(subScale), Tuple.from(x, t2, t1))));
+        subScale.setInitialBlock(entry);
+        subScale.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[10];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subScale, Tuple.from(i32.createImmediate(7), i32.createImmediate(i), i32.createImmediate(1)));
+        }
+
+        Assert.assertTrue(subScale.optimize());
+        Assert.assertFalse(subScale.optimize());
+
+        // the multiplication is no longer part of the loop
+        int found = 0;
+        for (final Block block : subScale.traceAllBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (stmt instanceof BinaryStatement && ((BinaryStatement) stmt).operator == BinaryStatement.BinaryOperator.MUL_II) {
+                    Assert.assertFalse(isOnCycle(block));
+                    ++found;
+                }
+            }
+        }
+        Assert.assertEquals(1, found);
+
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subScale, Tuple.from(i32.createImmediate(7), i32.createImmediate(i), i32.createImmediate(1))));
+        }
+    }
+
+    @Test
+    public void testAlgebraicIdentitiesAreSimplified() {
+        // function f(x, y) {
+        // _entry:
+        //   add.ii %0, 0, x
+        //   add.ii %1, %0, 1
+        //   add.ii %2, %1, 2
+        //   sub.ii %3, y, y
+        //   mul.ii %4, %2, 1
+        //   add.ii %5, %4, %3      <-- all of this is x + 3
+        //   cmp.ii %6, x, y
+        //   lt.ii less, other, %6, 0
+        // less:
+        //   ret %5
+        // other:
+        //   ret y
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(TupleType.from(i32, i32), i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        final Binding.Parameter y = new Binding.Parameter("y", i32);
+        final Binding.Immutable[] t = new Binding.Immutable[7];
+        for (int i = 0; i < t.length; ++i) {
+            t[i] = new Binding.Immutable("%" + i, i32);
+        }
+        subF.setParameters(Arrays.asList(x, y));
+
+        final Block entry = new Block("_entry");
+        final Block less = new Block("less");
+        final Block other = new Block("other");
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[0], i32.createImmediate(0), x),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[1], t[0], i32.createImmediate(1)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[2], t[1], i32.createImmediate(2)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t[3], y, y),
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t[4], t[2], i32.createImmediate(1)),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[5], t[4], t[3]),
+                new BinaryStatement(BinaryStatement.BinaryOperator.CMP_II, t[6], x, y),
+                new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.LT_II, less, other, t[6], i32.createImmediate(0))));
+        less.setStatements(Collections.singletonList(new ReturnStatement(t[5])));
+        other.setStatements(Collections.singletonList(new ReturnStatement(y)));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[9];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i / 3), i32.createImmediate(i % 3)));
+        }
+
+        final long reassociated = Peephole.getFireCounts().get("op (op x, k1), k2 -> op x, k1 op k2");
+        Assert.assertTrue(subF.optimize());
+        Assert.assertFalse(subF.optimize());
+        Assert.assertTrue(Peephole.getFireCounts().get("op (op x, k1), k2 -> op x, k1 op k2") > reassociated);
+
+        // one addition is left and the jump compares x and y directly
+        int computations = 0;
+        for (final Block block : subF.traceAllBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (stmt instanceof BinaryStatement) {
+                    final BinaryStatement bin = (BinaryStatement) stmt;
+                    Assert.assertEquals(BinaryStatement.BinaryOperator.ADD_II, bin.operator);
+                    Assert.assertEquals(x, bin.lhs);
+                    Assert.assertEquals(i32.createImmediate(3), bin.rhs);
+                    ++computations;
+                } else if (stmt instanceof ConditionalJumpStatement) {
+                    final ConditionalJumpStatement jump = (ConditionalJumpStatement) stmt;
+                    Assert.assertEquals(ConditionalJumpStatement.ConditionalOperator.LT_II, jump.operator);
+                    Assert.assertEquals(x, jump.lhs);
+                    Assert.assertEquals(y, jump.rhs);
+                } else {
+                    Assert.assertFalse(stmt instanceof UnaryStatement);
+                }
+            }
+        }
+        Assert.assertEquals(1, computations);
+
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i / 3), i32.createImmediate(i % 3))));
+        }
+    }
+
+    @Test
+    public void testEqualitySaturationCombinesRewrites() {
+        // function f(a, b, c, d) {
+        // _entry:
+        //   mul.ii %0, a, b
+        //   mul.ii %1, c, a
+        //   add.ii %2, %0, %1
+        //   add.ii %3, %2, d
+        //   sub.ii %4, %3, d     <-- a * (b + c)
+        //   ret %4
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine subF = new Subroutine("", "f", new FunctionType(TupleType.from(i32, i32, i32, i32), i32));
+        final Binding.Parameter a = new Binding.Parameter("a", i32);
+        final Binding.Parameter b = new Binding.Parameter("b", i32);
+        final Binding.Parameter c = new Binding.Parameter("c", i32);
+        final Binding.Parameter d = new Binding.Parameter("d", i32);
+        final Binding.Immutable[] t = new Binding.Immutable[5];
+        for (int i = 0; i < t.length; ++i) {
+            t[i] = new Binding.Immutable("%" + i, i32);
+        }
+        subF.setParameters(Arrays.asList(a, b, c, d));
+
+        final Block entry = new Block("_entry");
+        entry.setStatements(Arrays.asList(
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t[0], a, b),
+                new BinaryStatement(BinaryStatement.BinaryOperator.MUL_II, t[1], c, a),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[2], t[0], t[1]),
+                new BinaryStatement(BinaryStatement.BinaryOperator.ADD_II, t[3], t[2], d),
+                new BinaryStatement(BinaryStatement.BinaryOperator.SUB_II, t[4], t[3], d),
+                new ReturnStatement(t[4])));
+        subF.setInitialBlock(entry);
+        subF.validate();
+
+        final Emulator emulator = new Emulator();
+        final Value[] expected = new Value[16];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i), i32.createImmediate(i % 3), i32.createImmediate(-i), i32.createImmediate(7)));
+        }
+
+        final EqualitySaturation saturation = Subroutine.getEqualitySaturation();
+        saturation.setEnabled(true);
+        try {
+            Assert.assertTrue(subF.optimize());
+            Assert.assertFalse(subF.optimize());
+        } finally {
+            saturation.setEnabled(false);
+        }
+
+        // one multiplication and one addition
+        int multiplications = 0;
+        int others = 0;
+        for (final Block block : subF.traceAllBlocks()) {
+            for (final Statement stmt : block.getStatements()) {
+                if (stmt instanceof BinaryStatement && ((BinaryStatement) stmt).operator == BinaryStatement.BinaryOperator.MUL_II) {
+                    ++multiplications;
+                } else if (stmt instanceof BinaryStatement || stmt instanceof UnaryStatement) {
+                    ++others;
+                }
+            }
+        }
+        Assert.assertEquals(1, multiplications);
+        Assert.assertEquals(1, others);
+
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertEquals(expected[i], emulator.callSubroutine(subF, Tuple.from(i32.createImmediate(i), i32.createImmediate(i % 3), i32.createImmediate(-i), i32.createImmediate(7))));
+        }
+    }
+
+    private static boolean isOnCycle(Block block) {
+        final HashSet<Block> seen = new HashSet<>();
+        final ArrayDeque<Block> pending = new ArrayDeque<>(block.getSuccessors());
+        while (!pending.isEmpty()) {
+            final Block next = pending.poll();
+            if (next == block) {
+                return true;
+            }
+            if (seen.add(next)) {
+                pending.addAll(next.getSuccessors());
+            }
+        }
+        return false;
+    }
+
+    private static Subroutine synthForwarder(String name, Subroutine target) {
+        // function name(x) {
+        // _entry:
+        //   jmp b1
+        // b1:
+        //   call %0, target x    <-- or ret x if target is null
+        //   ret %0
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        final Subroutine sub = new Subroutine("", name, new FunctionType(i32, i32));
+        final Binding.Parameter x = new Binding.Parameter("x", i32);
+        sub.setParameters(Collections.singletonList(x));
+
+        final Block entry = new Block("_entry");
+        final Block b1 = new Block("b1");
+        entry.setStatements(Collections.singletonList(new GotoStatement(b1)));
+        if (target == null) {
+            b1.setStatements(Collections.singletonList(new ReturnStatement(x)));
+        } else {
+            final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+            b1.setStatements(Arrays.asList(
+                    new CallStatement(t0, new FuncRef.Local(target), x),
+                    new ReturnStatement(t0)));
+        }
+        sub.setInitialBlock(entry);
+        return sub;
+    }
+
+    @Test
+    public void testProgramIsOptimizedCalleesFirst() {
+        for (final ForkJoinPool pool : new ForkJoinPool[] { null, new ForkJoinPool(2) }) {
+            // leaf only becomes inlinable once its jump is squashed
+            final Subroutine leaf = synthForwarder("leaf", null);
+            final Subroutine mid = synthForwarder("mid", leaf);
+            final Subroutine top = synthForwarder("top", mid);
+
+            // a pair of mutually recursive functions is one component:
+            // ping(x) = x == 0 ? top(x) : pong(x), pong(x) = ping(x)
+            final Subroutine ping = synthForwarder("ping", top);
+            final Subroutine pong = synthForwarder("pong", ping);
+            final Block pingBody = ping.getInitialBlock().getJumpTarget();
+            final CallStatement pingCall = (CallStatement) pingBody.getStatements().get(0);
+            final Block recurse = new Block("recurse");
+            recurse.setStatements(Arrays.asList(
+                    new CallStatement(pingCall.dst, new FuncRef.Local(pong), pingCall.arg),
+                    pingBody.getStatements().get(1)));
+            ping.getInitialBlock().setStatements(Collections.singletonList(
+                    new ConditionalJumpStatement(ConditionalJumpStatement.ConditionalOperator.EQ_II, pingBody, recurse, pingCall.arg, IntegerType.INT32.createImmediate(0))));
+
+            // callers are listed first on purpose
+            final List<Subroutine> subs = Arrays.asList(ping, pong, top, mid, leaf);
+            if (pool == null) {
+                Assert.assertTrue(ProgramOptimizer.optimizeAll(subs));
+            } else {
+                Assert.assertTrue(ProgramOptimizer.optimizeAll(subs, pool));
+                pool.shutdown();
+            }
+
+            // everything collapsed into ret x
+            for (final Subroutine sub : Arrays.asList(top, mid, leaf)) {
+                final List<Statement> stmts = sub.getInitialBlock().getStatements();
+                Assert.assertEquals(1, stmts.size());
+                Assert.assertTrue(stmts.get(0) instanceof ReturnStatement);
+            }
+
+            // pong is inlined into ping, which now calls itself
+            for (final Block block : ping.traceAllBlocks()) {
+                for (final Statement stmt : block.getStatements()) {
+                    if (stmt instanceof AbstractCallStatement) {
+                        Assert.assertTrue(stmt instanceof TailCallStatement);
+                        Assert.assertEquals(new FuncRef.Local(ping), ((TailCallStatement) stmt).sub);
+                    }
+                }
+            }
+
+            Assert.assertFalse(ProgramOptimizer.optimizeAll(subs));
+        }
+    }
+
+    @Test
+    public void testFunctionValuesAreOptimizedFirst() {
+        // function apply(x) {
+        // _entry:
+        //   mov f, leaf
+        //   call %0, f x
+        //   ret %0
+        // }
+
+        final IntegerType i32 = IntegerType.INT32;
+        for (final ForkJoinPool pool : new ForkJoinPool[] { null, new ForkJoinPool(2) }) {
+            final Subroutine leaf = synthForwarder("leaf", null);
+
+            final Subroutine apply = new Subroutine("", "apply", new FunctionType(i32, i32));
+            final Binding.Parameter x = new Binding.Parameter("x", i32);
+            apply.setParameters(Collections.singletonList(x));
+            final Binding.Immutable f = new Binding.Immutable("f", leaf.type);
+            final Binding.Immutable t0 = new Binding.Immutable("%0", i32);
+            final Block entry = new Block("_entry");
+            entry.setStatements(Arrays.asList(
+                    new MoveStatement(f, new FuncRef.Local(leaf)),
+                    new CallStatement(t0, f, x),
+                    new ReturnStatement(t0)));
+            apply.setInitialBlock(entry);
+            apply.validate();
+
+            // only called through f, but still has to be done first
+            Assert.assertEquals(Collections.singleton(leaf), apply.getDirectCallees());
+
+            final List<Subroutine> subs = Arrays.asList(apply, leaf);
+            if (pool == null) {
+                Assert.assertTrue(ProgramOptimizer.optimizeAll(subs));
+            } else {
+                Assert.assertTrue(ProgramOptimizer.optimizeAll(subs, pool));
+                pool.shutdown();
+            }
+
+            // leaf was squashed before apply tried to inline it
+            final List<Statement> stmts = apply.getInitialBlock().getStatements();
+            Assert.assertEquals(1, stmts.size());
+            Assert.assertTrue(stmts.get(0) instanceof ReturnStatement);
+        }
+    }
 }